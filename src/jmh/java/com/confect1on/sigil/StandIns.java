@@ -0,0 +1,47 @@
+package com.confect1on.sigil;
+
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.proxy.server.RegisteredServer;
+import com.velocitypowered.api.proxy.server.ServerInfo;
+
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.UUID;
+
+/**
+ * Minimal stand-ins for Velocity API objects so benchmarks run without a proxy.
+ */
+public final class StandIns {
+    private StandIns() {
+    }
+
+    /**
+     * Creates a player that only answers identity queries.
+     */
+    public static Player player(UUID uniqueId, String username) {
+        return (Player) Proxy.newProxyInstance(Player.class.getClassLoader(), new Class<?>[]{Player.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "getUniqueId" -> uniqueId;
+                    case "getUsername" -> username;
+                    case "hashCode" -> uniqueId.hashCode();
+                    case "equals" -> proxy == args[0];
+                    case "toString" -> username;
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    /**
+     * Creates a backend server that only answers {@code getServerInfo}.
+     */
+    public static RegisteredServer server(String name) {
+        ServerInfo info = new ServerInfo(name, InetSocketAddress.createUnresolved(name, 25565));
+        return (RegisteredServer) Proxy.newProxyInstance(RegisteredServer.class.getClassLoader(), new Class<?>[]{RegisteredServer.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "getServerInfo" -> info;
+                    case "hashCode" -> info.hashCode();
+                    case "equals" -> proxy == args[0];
+                    case "toString" -> name;
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}
@@ -0,0 +1,87 @@
+package com.confect1on.sigil.geo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.helpers.NOPLogger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures {@link GeoIpService#getCountryCode} against a generated country database, with every
+ * lookup either answered by the cache or going to the database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeoIpServiceBenchmark {
+    private static final int NETWORKS = 200;
+    private static final int ADDRESSES = 4096;
+    private static final String[] COUNTRIES = {"US", "GB", "DE", "FR", "JP", "BR", "AU", "CA", "NL", "PL"};
+
+    @Param({"true", "false"})
+    public boolean cached;
+
+    private Path dataDirectory;
+    private GeoIpService service;
+    private InetAddress[] addresses;
+
+    @Setup
+    public void setUp() throws IOException {
+        dataDirectory = Files.createTempDirectory("sigil-geoip-bench");
+        TestDatabases.writeCountryDatabase(dataDirectory.resolve("GeoLite2-Country.mmdb"), NETWORKS, COUNTRIES);
+
+        // A single-entry cache misses on every lookup since the addresses are cycled through
+        GeoIpCache cache = new GeoIpCache(cached ? ADDRESSES * 2 : 1, Duration.ZERO, false);
+        service = new GeoIpService(NOPLogger.NOP_LOGGER, dataDirectory, cache);
+
+        addresses = new InetAddress[ADDRESSES];
+        for (int i = 0; i < ADDRESSES; i++) {
+            addresses[i] = TestDatabases.addressIn(i % NETWORKS, i);
+            if (service.getCountryCode(addresses[i]).filter(code -> !code.equals("UNKNOWN")).isEmpty()) {
+                throw new IllegalStateException("Benchmark database does not resolve " + addresses[i]);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        service.close();
+        try (Stream<Path> files = Files.walk(dataDirectory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public Optional<String> getCountryCode(Cursor cursor) {
+        InetAddress address = addresses[cursor.next++ & (ADDRESSES - 1)];
+        return service.getCountryCode(address);
+    }
+}
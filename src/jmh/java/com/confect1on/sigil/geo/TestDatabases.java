@@ -0,0 +1,209 @@
+package com.confect1on.sigil.geo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes small MaxMind DB files so benchmarks can run offline without shipping GeoLite2 data.
+ *
+ * Only what the readers need is implemented: an IPv4 search tree with 24-bit records, and maps,
+ * strings and unsigned integers in the data section. See https://maxmind.github.io/MaxMind-DB/.
+ */
+public final class TestDatabases {
+    private static final int RECORD_BYTES = 3;
+    private static final long EMPTY = -1;
+    private static final byte[] METADATA_MARKER = {
+        (byte) 0xAB, (byte) 0xCD, (byte) 0xEF, 'M', 'a', 'x', 'M', 'i', 'n', 'd', '.', 'c', 'o', 'm'
+    };
+
+    private TestDatabases() {
+    }
+
+    /**
+     * Writes a GeoLite2-Country database that assigns each /16 under {@code 1.0.0.0/8} and up a country,
+     * in turn from the given list.
+     * @param file Where to write the database
+     * @param networks Number of /16 networks to fill, starting at {@code 1.0.0.0/16}
+     * @param countries ISO codes assigned round-robin
+     */
+    public static void writeCountryDatabase(Path file, int networks, String... countries) throws IOException {
+        Builder builder = new Builder();
+        Map<String, Long> records = new HashMap<>();
+        for (String country : countries) {
+            Map<String, Object> countryRecord = new LinkedHashMap<>();
+            countryRecord.put("iso_code", country);
+            countryRecord.put("names", Map.of("en", country));
+            records.put(country, builder.data(Map.of("country", countryRecord)));
+        }
+        for (int i = 0; i < networks; i++) {
+            builder.insert(networkAddress(i), 16, records.get(countries[i % countries.length]));
+        }
+        builder.write(file, "GeoLite2-Country");
+    }
+
+    /**
+     * @return An address inside the n-th /16 filled by {@link #writeCountryDatabase}
+     */
+    public static InetAddress addressIn(int network, int host) {
+        int base = networkAddress(network);
+        try {
+            return InetAddress.getByAddress(new byte[]{
+                (byte) (base >>> 24), (byte) (base >>> 16), (byte) (host >>> 8), (byte) host
+            });
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static int networkAddress(int network) {
+        // Skip 0.0.0.0/8 and stay clear of private and loopback ranges for small counts
+        return (1 << 24) + (network << 16);
+    }
+
+    private static final class Builder {
+        // Each node holds two records: a node index, an encoded data offset (-2 - offset) or EMPTY
+        private final List<long[]> nodes = new ArrayList<>();
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        Builder() {
+            nodes.add(new long[]{EMPTY, EMPTY});
+        }
+
+        long data(Object value) {
+            long offset = data.size();
+            encode(data, value);
+            return -2 - offset;
+        }
+
+        void insert(int address, int prefixLength, long record) {
+            int node = 0;
+            for (int bit = 0; bit < prefixLength - 1; bit++) {
+                int side = (address >>> (31 - bit)) & 1;
+                long next = nodes.get(node)[side];
+                if (next < 0) {
+                    next = nodes.size();
+                    nodes.add(new long[]{EMPTY, EMPTY});
+                    nodes.get(node)[side] = next;
+                }
+                node = (int) next;
+            }
+            nodes.get(node)[(address >>> (32 - prefixLength)) & 1] = record;
+        }
+
+        void write(Path file, String databaseType) throws IOException {
+            int nodeCount = nodes.size();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (long[] node : nodes) {
+                for (long record : node) {
+                    long value;
+                    if (record == EMPTY) {
+                        value = nodeCount;
+                    } else if (record < 0) {
+                        value = nodeCount + 16 + (-2 - record);
+                    } else {
+                        value = record;
+                    }
+                    for (int i = RECORD_BYTES - 1; i >= 0; i--) {
+                        out.write((int) (value >>> (8 * i)));
+                    }
+                }
+            }
+            out.write(new byte[16]);
+            data.writeTo(out);
+
+            Map<String, Object> metadata = new LinkedHashMap<>();
+            metadata.put("binary_format_major_version", new Unsigned(2, 2));
+            metadata.put("binary_format_minor_version", new Unsigned(0, 2));
+            metadata.put("build_epoch", new Unsigned(System.currentTimeMillis() / 1000, 8));
+            metadata.put("database_type", databaseType);
+            metadata.put("description", Map.of("en", "Sigil benchmark database"));
+            metadata.put("ip_version", new Unsigned(4, 2));
+            metadata.put("languages", List.of("en"));
+            metadata.put("node_count", new Unsigned(nodeCount, 4));
+            metadata.put("record_size", new Unsigned(RECORD_BYTES * 8, 2));
+            out.write(METADATA_MARKER);
+            encode(out, metadata);
+
+            Files.write(file, out.toByteArray());
+        }
+    }
+
+    /**
+     * An unsigned integer of the given width in bytes: 2 (uint16), 4 (uint32) or 8 (uint64).
+     */
+    private record Unsigned(long value, int width) {
+    }
+
+    private static void encode(ByteArrayOutputStream out, Object value) {
+        if (value instanceof String string) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            header(out, 2, bytes.length);
+            out.writeBytes(bytes);
+        } else if (value instanceof Map<?, ?> map) {
+            header(out, 7, map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                encode(out, entry.getKey());
+                encode(out, entry.getValue());
+            }
+        } else if (value instanceof List<?> list) {
+            header(out, 11, list.size());
+            for (Object element : list) {
+                encode(out, element);
+            }
+        } else if (value instanceof Unsigned unsigned) {
+            int type = switch (unsigned.width()) {
+                case 2 -> 5;
+                case 4 -> 6;
+                case 8 -> 9;
+                default -> throw new IllegalArgumentException("Unsupported width " + unsigned.width());
+            };
+            // Integers are stored big-endian without leading zero bytes
+            int length = (Long.SIZE - Long.numberOfLeadingZeros(unsigned.value()) + 7) / 8;
+            header(out, type, length);
+            for (int i = length - 1; i >= 0; i--) {
+                out.write((int) (unsigned.value() >>> (8 * i)));
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported value " + value);
+        }
+    }
+
+    private static void header(ByteArrayOutputStream out, int type, int size) {
+        int sizeBits;
+        byte[] extraSize;
+        if (size < 29) {
+            sizeBits = size;
+            extraSize = new byte[0];
+        } else if (size < 285) {
+            sizeBits = 29;
+            extraSize = new byte[]{(byte) (size - 29)};
+        } else if (size < 65821) {
+            sizeBits = 30;
+            int extra = size - 285;
+            extraSize = new byte[]{(byte) (extra >>> 8), (byte) extra};
+        } else {
+            sizeBits = 31;
+            int extra = size - 65821;
+            extraSize = new byte[]{(byte) (extra >>> 16), (byte) (extra >>> 8), (byte) extra};
+        }
+
+        if (type <= 7) {
+            out.write((type << 5) | sizeBits);
+        } else {
+            // Extended types put zero in the type bits and follow with type - 7
+            out.write(sizeBits);
+            out.write(type - 7);
+        }
+        out.writeBytes(extraSize);
+    }
+}
@@ -0,0 +1,144 @@
+package com.confect1on.sigil.metrics;
+
+import com.confect1on.sigil.StandIns;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the original exporter, which formatted a scrape into a String with a StringBuilder and
+ * {@code String.format}, with streaming into a reused {@link TextExpositionWriter}. Run with
+ * {@code -prof gc} and compare {@code gc.alloc.rate.norm}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsExporterBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int sessions;
+
+    @Param({"250"})
+    public int regions;
+
+    private MetricsManager metricsManager;
+    private MetricsExporter exporter;
+    private ExpositionWriter writer;
+
+    @Setup
+    public void setUp() {
+        metricsManager = new MetricsManager();
+        for (int i = 0; i < sessions; i++) {
+            UUID playerId = new UUID(0, i);
+            metricsManager.playerConnected(StandIns.player(playerId, "player" + i), "R" + (i % regions));
+        }
+        for (int i = 0; i < sessions / 2; i++) {
+            metricsManager.playerDisconnected(new UUID(0, i));
+            metricsManager.playerConnected(StandIns.player(new UUID(0, i), "player" + i), "R" + (i % regions));
+        }
+        exporter = new MetricsExporter(metricsManager);
+        writer = new TextExpositionWriter();
+    }
+
+    @Benchmark
+    public void renderToString(Blackhole blackhole) {
+        blackhole.consume(renderBaseline(metricsManager).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public void renderStreaming(Blackhole blackhole) {
+        writer.reset();
+        exporter.exportMetrics(writer);
+        blackhole.consume(writer.size());
+    }
+
+    /**
+     * The exporter as it was before the streaming writer, kept here as the baseline. It renders
+     * the same families the original exporter did, through the copying accessors it used.
+     */
+    private static String renderBaseline(MetricsManager metricsManager) {
+        StringBuilder sb = new StringBuilder();
+
+        Map<String, Boolean> backendStatus = metricsManager.getBackendStatus();
+        if (!backendStatus.isEmpty()) {
+            sb.append("# HELP sigil_backend_status Backend server status (1 = up, 0 = down)\n");
+            sb.append("# TYPE sigil_backend_status gauge\n");
+            backendStatus.forEach((server, isUp) ->
+                sb.append(String.format("sigil_backend_status{server=\"%s\"} %d\n",
+                        server, isUp ? 1 : 0))
+            );
+        }
+
+        int activeSessions = metricsManager.getActiveSessionCount();
+        if (activeSessions > 0) {
+            if (sb.length() > 0) sb.append("\n");
+            sb.append("# HELP sigil_active_sessions Number of players currently connected\n");
+            sb.append("# TYPE sigil_active_sessions gauge\n");
+            sb.append("sigil_active_sessions ").append(activeSessions).append("\n");
+        }
+
+        Map<String, Integer> regionCounts = metricsManager.getPlayersByRegion();
+        boolean hasRegions = regionCounts.values().stream().anyMatch(count -> count > 0);
+        if (hasRegions) {
+            if (sb.length() > 0) sb.append("\n");
+            sb.append("# HELP sigil_players_by_region Number of active players by region\n");
+            sb.append("# TYPE sigil_players_by_region gauge\n");
+            regionCounts.forEach((region, count) -> {
+                if (count > 0) {
+                    sb.append(String.format("sigil_players_by_region{region=\"%s\"} %d\n",
+                            region, count));
+                }
+            });
+        }
+
+        Map<String, Integer> backendCounts = metricsManager.getPlayersByBackend();
+        boolean hasBackendPlayers = backendCounts.values().stream().anyMatch(count -> count > 0);
+        if (hasBackendPlayers) {
+            if (sb.length() > 0) sb.append("\n");
+            sb.append("# HELP sigil_backend_players Number of players per backend server\n");
+            sb.append("# TYPE sigil_backend_players gauge\n");
+            backendCounts.forEach((server, count) -> {
+                if (count > 0) {
+                    sb.append(String.format("sigil_backend_players{server=\"%s\"} %d\n",
+                            server, count));
+                }
+            });
+        }
+
+        int completedSessionCount = metricsManager.getSessionDurationCount();
+        if (completedSessionCount > 0) {
+            if (sb.length() > 0) sb.append("\n");
+            sb.append("# HELP sigil_session_duration_seconds Duration of completed player sessions in seconds\n");
+            sb.append("# TYPE sigil_session_duration_seconds histogram\n");
+
+            NavigableMap<Double, Integer> histogramBuckets = metricsManager.getSessionDurationHistogramBuckets();
+            for (Map.Entry<Double, Integer> entry : histogramBuckets.entrySet()) {
+                String le = entry.getKey().isInfinite() ? "+Inf" : String.format(Locale.US, "%.0f", entry.getKey());
+                sb.append(String.format(Locale.US, "sigil_session_duration_seconds_bucket{le=\"%s\"} %d\n", le, entry.getValue()));
+            }
+
+            sb.append(String.format(Locale.US, "sigil_session_duration_seconds_sum %.1f\n", (double) metricsManager.getSessionDurationSum()));
+            sb.append(String.format(Locale.US, "sigil_session_duration_seconds_count %d\n", completedSessionCount));
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,100 @@
+package com.confect1on.sigil.metrics;
+
+import com.confect1on.sigil.StandIns;
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.proxy.server.RegisteredServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the login and logout path at increasing levels of contention: each operation opens
+ * a session, moves it onto a backend and closes it again. Every thread works on its own players, as
+ * the proxy's event threads do, so contention is only on the shared maps and label counters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsManagerBenchmark {
+    private static final int PLAYERS_PER_THREAD = 1024;
+    private static final int REGIONS = 250;
+    private static final int BACKENDS = 8;
+
+    private MetricsManager metricsManager;
+    private String[] regions;
+    private RegisteredServer[] backends;
+
+    @Setup
+    public void setUp() {
+        metricsManager = new MetricsManager();
+        regions = new String[REGIONS];
+        for (int i = 0; i < REGIONS; i++) {
+            regions[i] = "R" + i;
+        }
+        backends = new RegisteredServer[BACKENDS];
+        for (int i = 0; i < BACKENDS; i++) {
+            backends[i] = StandIns.server("backend" + i);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Players {
+        Player[] players;
+        int next;
+
+        @Setup
+        public void setUp(ThreadParams threads) {
+            players = new Player[PLAYERS_PER_THREAD];
+            for (int i = 0; i < PLAYERS_PER_THREAD; i++) {
+                players[i] = StandIns.player(new UUID(threads.getThreadIndex(), i), "player" + i);
+            }
+        }
+    }
+
+    private void connectAndDisconnect(Players players) {
+        int i = players.next++ & (PLAYERS_PER_THREAD - 1);
+        Player player = players.players[i];
+        metricsManager.playerConnected(player, regions[i % REGIONS]);
+        metricsManager.updatePlayerServer(player.getUniqueId(), backends[i % BACKENDS]);
+        metricsManager.playerDisconnected(player.getUniqueId());
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void connectDisconnect1(Players players) {
+        connectAndDisconnect(players);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void connectDisconnect4(Players players) {
+        connectAndDisconnect(players);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void connectDisconnect16(Players players) {
+        connectAndDisconnect(players);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void connectDisconnect64(Players players) {
+        connectAndDisconnect(players);
+    }
+}
@@ -0,0 +1,77 @@
+package com.confect1on.sigil;
+
+import org.slf4j.Logger;
+
+import java.util.function.Function;
+
+/**
+ * A part of the plugin run from one section of the config, such as a collector and its schedule.
+ *
+ * Applying a section starts the feature, or restarts it if the section differs from the one it is
+ * running with, so a reload only touches what actually changed. A feature that is disabled is not
+ * started at all rather than started and ignored, leaving nothing on the event or scheduler path.
+ * If the new settings fail to start, e.g. because a port is taken, the feature is started again with
+ * the settings it was running with. It cannot start the new instance first, as the new instance
+ * usually needs what the running one holds, such as the same port.
+ *
+ * @param <C> The settings the feature is started with; compared with {@code equals} on reload
+ */
+final class Feature<C> {
+    private final String name;
+    private final Function<C, Runnable> starter;
+    private final Logger logger;
+
+    // Guarded by this
+    private C settings;
+    private Runnable stopper;
+
+    /**
+     * @param name Name used in log messages
+     * @param starter Starts the feature and returns what stops it again, or returns null if the settings leave it disabled
+     */
+    Feature(String name, Function<C, Runnable> starter, Logger logger) {
+        this.name = name;
+        this.starter = starter;
+        this.logger = logger;
+    }
+
+    synchronized void apply(C next) {
+        if (next.equals(settings)) {
+            return;
+        }
+        C previous = settings;
+        stop();
+        try {
+            start(next);
+        } catch (RuntimeException e) {
+            logger.error("Failed to start {}: {}", name, e.getMessage(), e);
+            if (previous == null) {
+                // Left unset so the next reload tries again
+                return;
+            }
+            try {
+                start(previous);
+                logger.warn("Kept {} running with its previous settings", name);
+            } catch (RuntimeException restartFailure) {
+                logger.error("Failed to restart {} with its previous settings: {}", name, restartFailure.getMessage());
+            }
+        }
+    }
+
+    private void start(C next) {
+        stopper = starter.apply(next);
+        settings = next;
+    }
+
+    synchronized void stop() {
+        if (stopper != null) {
+            try {
+                stopper.run();
+            } catch (RuntimeException e) {
+                logger.warn("Failed to stop {}: {}", name, e.getMessage());
+            }
+            stopper = null;
+        }
+        settings = null;
+    }
+}
@@ -1,19 +1,47 @@
 package com.confect1on.sigil;
 
+import com.confect1on.sigil.aggregate.AggregatorServer;
+import com.confect1on.sigil.aggregate.DeltaPusher;
+import com.confect1on.sigil.audit.AuditLog;
+import com.confect1on.sigil.command.SigilCommand;
+import com.confect1on.sigil.config.SigilConfig;
+import com.confect1on.sigil.events.ConnectionFunnelListener;
 import com.confect1on.sigil.events.PlayerEventListener;
+import com.confect1on.sigil.events.TransferTracker;
+import com.confect1on.sigil.geo.GeoIpCache;
+import com.confect1on.sigil.geo.GeoIpResolver;
 import com.confect1on.sigil.geo.GeoIpService;
+import com.confect1on.sigil.metrics.InternalMetrics;
 import com.confect1on.sigil.metrics.MetricsExporter;
 import com.confect1on.sigil.metrics.MetricsHttpServer;
 import com.confect1on.sigil.metrics.MetricsManager;
+import com.confect1on.sigil.metrics.MetricsPusher;
+import com.confect1on.sigil.metrics.MetricsStore;
+import com.confect1on.sigil.metrics.OtlpExpositionWriter;
+import com.confect1on.sigil.metrics.SessionEventLog;
+import com.confect1on.sigil.probe.BackendProber;
+import com.confect1on.sigil.probe.PlayerLatencySampler;
+import com.confect1on.sigil.probe.SessionReconciler;
+import com.confect1on.sigil.runtime.GcPauseMonitor;
+import com.confect1on.sigil.runtime.JvmSampler;
+import com.confect1on.sigil.runtime.SchedulerLagProbe;
 import com.velocitypowered.api.event.Subscribe;
 import com.velocitypowered.api.event.proxy.ProxyInitializeEvent;
+import com.velocitypowered.api.event.proxy.ProxyShutdownEvent;
 import com.velocitypowered.api.plugin.Plugin;
 import com.velocitypowered.api.plugin.annotation.DataDirectory;
 import com.velocitypowered.api.proxy.ProxyServer;
+import com.velocitypowered.api.scheduler.ScheduledTask;
 import org.slf4j.Logger;
 
 import com.google.inject.Inject;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 @Plugin(
     id = "sigil",
@@ -22,21 +50,84 @@ import java.nio.file.Path;
     description = "Telemetry for Velocity - Tracks player activity and exposes metrics to Prometheus"
 )
 public class Sigil {
+    private static final String METRICS_STATE_FILE = "metrics.dat";
+
     private final Logger logger;
     private final ProxyServer proxy;
     private final Path dataDirectory;
+    // Settings read at startup; the restart-only ones stay in effect until the next restart
+    private final SigilConfig startupConfig;
     private final MetricsManager metricsManager;
+    // Null unless session events are enabled
+    private final SessionEventLog sessionEventLog;
+    private final GeoIpCache geoIpCache;
     private final GeoIpService geoIpService;
+    private final GeoIpResolver geoIpResolver;
     private final MetricsExporter metricsExporter;
+    private final MetricsStore metricsStore;
+    private final InternalMetrics internalMetrics;
+    private final GcPauseMonitor gcPauseMonitor;
+    private PlayerEventListener playerListener;
+
+    // Started from their config sections and restarted by a reload when those change
+    private final Feature<Export> export;
+    private final Feature<SigilConfig.BackendProbe> backendProbe;
+    private final Feature<SigilConfig.Periodic> playerLatency;
+    private final Feature<SigilConfig.Periodic> sessionReconcile;
+    private final Feature<Boolean> connectionFunnel;
+    private final Feature<SigilConfig.Transfers> backendTransfers;
+    private final Feature<SigilConfig.Periodic> jvm;
+    private final Feature<Boolean> gcPauses;
+    private final Feature<SigilConfig.Periodic> schedulerLag;
+    private final Feature<SigilConfig.Audit> auditLog;
+    private final Feature<SigilConfig.Aggregator> aggregator;
+    private final Feature<SigilConfig.AggregationPush> aggregationPush;
+
+    /**
+     * The scrape endpoint and the push exporter, restarted together as the exporter shares the scrape snapshots.
+     */
+    private record Export(SigilConfig.Http http, SigilConfig.Push push) {
+    }
 
     @Inject
     public Sigil(ProxyServer proxy, Logger logger, @DataDirectory Path dataDirectory) {
         this.proxy = proxy;
         this.logger = logger;
         this.dataDirectory = dataDirectory;
-        this.metricsManager = new MetricsManager();
-        this.geoIpService = new GeoIpService(logger, dataDirectory);
-        this.metricsExporter = new MetricsExporter(metricsManager);
+        this.startupConfig = loadConfig();
+        SigilConfig.Metrics metrics = startupConfig.metrics();
+        SigilConfig.GeoIp geoIp = startupConfig.geoIp();
+        this.sessionEventLog = metrics.sessionEvents() ? new SessionEventLog(metrics.sessionEventLogCapacity()) : null;
+        this.metricsManager = new MetricsManager(metrics.durationBucketArray(), metrics.nativeHistogramSchema(),
+                metrics.nativeHistograms() ? metrics.nativeHistogramMaxBuckets() : 0, metrics.labelLimits(), sessionEventLog);
+        this.internalMetrics = new InternalMetrics(metrics.internalMetrics());
+        this.geoIpCache = new GeoIpCache(geoIp.cacheMaxSize(), geoIp.cacheTtl(), geoIp.cachePrefixMode());
+        this.geoIpService = new GeoIpService(logger, dataDirectory, geoIpCache, internalMetrics);
+        this.geoIpResolver = new GeoIpResolver(geoIpService, logger, geoIp.resolverThreads(), geoIp.resolverQueueCapacity());
+        this.metricsExporter = new MetricsExporter(metricsManager, internalMetrics);
+        this.metricsExporter.register(geoIpService);
+        this.metricsExporter.register(geoIpResolver);
+        this.metricsExporter.register(geoIpCache);
+        this.metricsExporter.register(internalMetrics);
+        this.gcPauseMonitor = new GcPauseMonitor(logger);
+
+        // Restore cumulative metrics from the previous run before any sessions are recorded
+        this.metricsStore = new MetricsStore(metricsManager, dataDirectory.resolve(METRICS_STATE_FILE), logger);
+        this.metricsStore.restore();
+        this.metricsExporter.register(metricsStore);
+
+        this.export = new Feature<>("metrics server", this::startExport, logger);
+        this.backendProbe = new Feature<>("backend prober", this::startBackendProbe, logger);
+        this.playerLatency = new Feature<>("player latency sampler", this::startPlayerLatency, logger);
+        this.sessionReconcile = new Feature<>("session reconciler", this::startSessionReconcile, logger);
+        this.connectionFunnel = new Feature<>("connection funnel", this::startConnectionFunnel, logger);
+        this.backendTransfers = new Feature<>("transfer tracker", this::startBackendTransfers, logger);
+        this.jvm = new Feature<>("JVM sampler", this::startJvm, logger);
+        this.gcPauses = new Feature<>("GC pause monitor", this::startGcPauses, logger);
+        this.schedulerLag = new Feature<>("scheduler lag probe", this::startSchedulerLag, logger);
+        this.auditLog = new Feature<>("audit log", this::startAuditLog, logger);
+        this.aggregator = new Feature<>("aggregator", this::startAggregator, logger);
+        this.aggregationPush = new Feature<>("aggregation push", this::startAggregationPush, logger);
         
         logger.info("Sigil initializing. This product includes GeoLite2 data created by MaxMind, available from https://www.maxmind.com");
     }
@@ -44,19 +135,289 @@ public class Sigil {
     @Subscribe
     public void onProxyInitialization(ProxyInitializeEvent event) {
         // Create event listener
-        PlayerEventListener listener = new PlayerEventListener(metricsManager, geoIpService, logger, proxy);
+        playerListener = new PlayerEventListener(metricsManager, geoIpResolver, logger, proxy, internalMetrics, null);
         
         // Register event listener
-        proxy.getEventManager().register(this, listener);
+        proxy.getEventManager().register(this, playerListener);
 
-        // Start metrics HTTP server
-        new MetricsHttpServer(metricsExporter, 9091).start();
-        
-        // Start latency updates after plugin is registered
-        listener.startLatencyUpdates();
+        // Pick up GeoIP database updates without a restart
+        geoIpService.startWatching();
+
+        apply(startupConfig);
+
+        // Snapshot cumulative metrics so a crash loses at most one interval
+        schedule(metricsStore, startupConfig.metrics().stateSaveInterval());
+
+        proxy.getCommandManager().register(proxy.getCommandManager().metaBuilder("sigil").plugin(this).build(),
+                new SigilCommand(this, logger));
         
         logger.info("Sigil initialized - tracking player metrics and geo-location data");
-        logger.info("Metrics available at http://localhost:9091/metrics");
+    }
+
+    @Subscribe
+    public void onProxyShutdown(ProxyShutdownEvent event) {
+        export.stop();
+        geoIpResolver.shutdown();
+        geoIpService.close();
+        gcPauses.stop();
+        auditLog.stop();
+
+        // Record the durations of sessions still open, then persist the final state
+        metricsManager.closeAllSessions();
+        aggregationPush.stop();
+        aggregator.stop();
+        try {
+            metricsStore.save();
+        } catch (IOException e) {
+            logger.warn("Failed to save metrics snapshot on shutdown: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Re-reads the config and applies it, restarting only the features whose settings changed.
+     * @return The sections with changes that only take effect after a restart
+     * @throws IllegalArgumentException If the config is invalid, in which case nothing is changed
+     */
+    public synchronized List<String> reload() throws IOException {
+        SigilConfig config = SigilConfig.load(dataDirectory);
+        apply(config);
+        List<String> restartRequired = startupConfig.restartRequired(config);
+        logger.info("Reloaded {}", SigilConfig.FILE_NAME);
+        if (!restartRequired.isEmpty()) {
+            logger.warn("Changes to {} in {} take effect after a restart", String.join(", ", restartRequired), SigilConfig.FILE_NAME);
+        }
+        return restartRequired;
+    }
+
+    private SigilConfig loadConfig() {
+        try {
+            return SigilConfig.load(dataDirectory);
+        } catch (IOException | IllegalArgumentException e) {
+            logger.error("Failed to load {}, using the defaults: {}", SigilConfig.FILE_NAME, e.getMessage());
+            return SigilConfig.defaults();
+        }
+    }
+
+    private synchronized void apply(SigilConfig config) {
+        geoIpService.setDevMode(config.devMode());
+        metricsManager.setPingTimeout(config.pingTimeout());
+        export.apply(new Export(config.http(), config.push()));
+        backendProbe.apply(config.backendProbe());
+        playerLatency.apply(config.playerLatency());
+        sessionReconcile.apply(config.sessionReconcile());
+        connectionFunnel.apply(config.connectionFunnel());
+        backendTransfers.apply(config.backendTransfers());
+        jvm.apply(config.jvm());
+        gcPauses.apply(config.gcPauses());
+        schedulerLag.apply(config.schedulerLag());
+        auditLog.apply(config.auditLog());
+        aggregator.apply(config.aggregator());
+        aggregationPush.apply(config.aggregationPush());
+    }
+
+    private Runnable startExport(Export settings) {
+        SigilConfig.Http http = settings.http();
+        MetricsHttpServer metricsHttpServer = new MetricsHttpServer(metricsExporter,
+                new InetSocketAddress(http.bindAddress(), http.port()),
+                http.threads(), http.virtualThreads(), http.snapshotInterval(), startupConfig.metrics().nativeHistograms(),
+                internalMetrics, sessionEventLog);
+
+        // Push to an OTLP receiver where the proxy cannot be scraped, sharing the scrape snapshots when there are any
+        SigilConfig.Push push = settings.push();
+        MetricsPusher metricsPusher = null;
+        if (push.enabled()) {
+            OtlpExpositionWriter pushWriter = new OtlpExpositionWriter(push.proxyId());
+            Supplier<byte[]> pushSource = metricsHttpServer.shareSnapshots(pushWriter);
+            if (pushSource == null) {
+                pushSource = MetricsPusher.rendering(metricsExporter, pushWriter);
+            }
+            metricsPusher = new MetricsPusher(pushSource, push.endpoint(), push.headers(),
+                    push.queueCapacity(), push.batchSize(), push.interval(), push.timeout(), logger);
+        }
+        try {
+            metricsHttpServer.start();
+        } catch (RuntimeException e) {
+            metricsHttpServer.stop();
+            if (metricsPusher != null) {
+                metricsPusher.close();
+            }
+            throw e;
+        }
+        logger.info("Metrics available at http://{}:{}/metrics", http.bindAddress(), http.port());
+
+        if (metricsPusher == null) {
+            return metricsHttpServer::stop;
+        }
+        MetricsPusher pusher = metricsPusher;
+        metricsExporter.register(pusher);
+        ScheduledTask pushTask = schedule(pusher, push.interval());
+        return () -> {
+            pushTask.cancel();
+            metricsExporter.unregister(pusher);
+            pusher.close();
+            metricsHttpServer.stop();
+        };
+    }
+
+    private Runnable startBackendProbe(SigilConfig.BackendProbe settings) {
+        if (!settings.enabled()) {
+            return null;
+        }
+        // Probe backend servers on a fixed schedule
+        BackendProber backendProber = new BackendProber(proxy, metricsManager, logger,
+                settings.timeout(), settings.jitter(), settings.concurrency());
+        return schedule(backendProber, settings.interval())::cancel;
+    }
+
+    private Runnable startPlayerLatency(SigilConfig.Periodic settings) {
+        if (!settings.enabled()) {
+            return null;
+        }
+        // Sample player latency in a single pass over all players
+        return schedule(new PlayerLatencySampler(proxy, metricsManager), settings.interval())::cancel;
+    }
+
+    private Runnable startSessionReconcile(SigilConfig.Periodic settings) {
+        if (!settings.enabled()) {
+            return null;
+        }
+        // Correct session drift left by missed or out-of-order events
+        SessionReconciler sessionReconciler = new SessionReconciler(proxy, metricsManager, geoIpResolver, logger);
+        metricsExporter.register(sessionReconciler);
+        ScheduledTask task = schedule(sessionReconciler, settings.interval());
+        return () -> {
+            task.cancel();
+            metricsExporter.unregister(sessionReconciler);
+        };
+    }
+
+    private Runnable startConnectionFunnel(boolean enabled) {
+        if (!enabled) {
+            return null;
+        }
+        // Count every step from handshake to backend, with rates for spotting floods
+        ConnectionFunnelListener funnelListener = new ConnectionFunnelListener(geoIpCache,
+                startupConfig.metrics().labelLimits().regions());
+        proxy.getEventManager().register(this, funnelListener);
+        metricsExporter.register(funnelListener);
+        return () -> {
+            proxy.getEventManager().unregisterListener(this, funnelListener);
+            metricsExporter.unregister(funnelListener);
+        };
+    }
+
+    private Runnable startBackendTransfers(SigilConfig.Transfers settings) {
+        if (!settings.enabled()) {
+            return null;
+        }
+        // Time backend transfers and expire the ones that hang
+        TransferTracker transferTracker = new TransferTracker(logger, settings.timeout(),
+                settings.maxInFlight(), startupConfig.metrics().labelLimits().backends());
+        proxy.getEventManager().register(this, transferTracker);
+        metricsExporter.register(transferTracker);
+        ScheduledTask task = schedule(transferTracker, settings.sweepInterval());
+        return () -> {
+            task.cancel();
+            proxy.getEventManager().unregisterListener(this, transferTracker);
+            metricsExporter.unregister(transferTracker);
+        };
+    }
+
+    private Runnable startJvm(SigilConfig.Periodic settings) {
+        if (!settings.enabled()) {
+            return null;
+        }
+        // Sample JVM health in the background so scrapes only read the cached values
+        JvmSampler jvmSampler = new JvmSampler(logger);
+        jvmSampler.run();
+        metricsExporter.register(jvmSampler);
+        ScheduledTask task = schedule(jvmSampler, settings.interval());
+        return () -> {
+            task.cancel();
+            metricsExporter.unregister(jvmSampler);
+        };
+    }
+
+    private Runnable startGcPauses(boolean enabled) {
+        if (!enabled) {
+            return null;
+        }
+        // Kept across restarts of the feature so the pause histograms stay cumulative
+        gcPauseMonitor.start();
+        metricsExporter.register(gcPauseMonitor);
+        return () -> {
+            metricsExporter.unregister(gcPauseMonitor);
+            gcPauseMonitor.close();
+        };
+    }
+
+    private Runnable startSchedulerLag(SigilConfig.Periodic settings) {
+        if (!settings.enabled()) {
+            return null;
+        }
+        SchedulerLagProbe schedulerLagProbe = new SchedulerLagProbe(settings.interval());
+        metricsExporter.register(schedulerLagProbe);
+        ScheduledTask task = schedule(schedulerLagProbe, settings.interval());
+        return () -> {
+            task.cancel();
+            metricsExporter.unregister(schedulerLagProbe);
+        };
+    }
+
+    private Runnable startAuditLog(SigilConfig.Audit settings) {
+        if (!settings.enabled()) {
+            return null;
+        }
+        AuditLog log = new AuditLog(dataDirectory.resolve(settings.file()), settings.maxFileBytes(), settings.maxFiles(),
+                settings.sampleRate(), settings.maxEventsPerSecond(), settings.queueCapacity(), logger);
+        log.start();
+        metricsExporter.register(log);
+        playerListener.setAuditLog(log);
+        return () -> {
+            playerListener.setAuditLog(null);
+            metricsExporter.unregister(log);
+            log.close();
+        };
+    }
+
+    private Runnable startAggregator(SigilConfig.Aggregator settings) {
+        if (!settings.enabled()) {
+            return null;
+        }
+        // Merge metrics pushed by other proxies into network-wide totals
+        AggregatorServer aggregatorServer = new AggregatorServer(new InetSocketAddress(settings.bindAddress(), settings.port()),
+                settings.secret(), settings.proxyTimeout(), settings.maxProxies(), settings.maxSeries(), logger);
+        aggregatorServer.start();
+        metricsExporter.register(aggregatorServer);
+        logger.info("Aggregating metrics pushed by proxies on {}:{}", settings.bindAddress(), settings.port());
+        return () -> {
+            metricsExporter.unregister(aggregatorServer);
+            aggregatorServer.stop();
+        };
+    }
+
+    private Runnable startAggregationPush(SigilConfig.AggregationPush settings) {
+        if (!settings.enabled()) {
+            return null;
+        }
+        // Push this proxy's changes to the aggregator, which may be this proxy itself
+        DeltaPusher deltaPusher = new DeltaPusher(metricsManager, new InetSocketAddress(settings.host(), settings.port()),
+                settings.proxyId(), settings.secret(), settings.timeout(), logger);
+        metricsExporter.register(deltaPusher);
+        ScheduledTask task = schedule(deltaPusher, settings.interval());
+        return () -> {
+            task.cancel();
+            // Hand over the changes since the last push before disconnecting
+            deltaPusher.run();
+            deltaPusher.close();
+            metricsExporter.unregister(deltaPusher);
+        };
+    }
+
+    private ScheduledTask schedule(Runnable task, Duration interval) {
+        return proxy.getScheduler().buildTask(this, task)
+                .repeat(interval.toMillis(), TimeUnit.MILLISECONDS)
+                .schedule();
     }
 
     public MetricsManager getMetricsManager() {
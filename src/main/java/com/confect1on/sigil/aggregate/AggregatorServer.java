@@ -0,0 +1,465 @@
+package com.confect1on.sigil.aggregate;
+
+import com.confect1on.sigil.aggregate.DeltaProtocol.GaugeKey;
+import com.confect1on.sigil.aggregate.DeltaProtocol.GaugeKind;
+import com.confect1on.sigil.aggregate.DeltaProtocol.HistogramKey;
+import com.confect1on.sigil.aggregate.DeltaProtocol.HistogramKind;
+import com.confect1on.sigil.metrics.ExpositionWriter;
+import com.confect1on.sigil.metrics.Histogram;
+import com.confect1on.sigil.metrics.MetricsCollector;
+import org.slf4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Receives deltas from {@link DeltaPusher}s on other proxies and serves their sum as
+ * {@code sigil_network_*} metrics.
+ *
+ * Histograms are merged as they arrive and keep counting when a proxy goes away, like any counter.
+ * Gauges are kept per proxy and dropped as soon as its connection closes or it stays silent for
+ * longer than the timeout, so a proxy that crashes stops contributing players instead of freezing
+ * its last counts into the totals. Each connection is served by its own daemon thread.
+ *
+ * Proxies prove they know the shared secret before anything is read from them beyond their hello.
+ * A connection gets a few seconds for that and only then counts as a proxy; connections still
+ * handshaking are limited separately, so unauthenticated sockets can neither hold slots for the
+ * full proxy timeout nor keep real proxies out.
+ */
+public class AggregatorServer implements MetricsCollector {
+    private static final int MAX_BOUNDS = 1024;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * What the aggregator keeps for one proxy.
+     */
+    private static final class ProxyState {
+        final Map<GaugeKey, Integer> gauges = new ConcurrentHashMap<>();
+        // Guarded by the state itself
+        long instanceId;
+        long lastApplied = -1;
+        Socket socket;
+        volatile boolean connected;
+        volatile long lastPushMillis;
+    }
+
+    /**
+     * A decoded histogram delta, waiting for the frame to be applied.
+     */
+    private record HistogramDelta(Histogram target, long[] counts, double sum) {
+    }
+
+    private final InetSocketAddress bindAddress;
+    private final String secret;
+    private final int timeoutMillis;
+    private final int maxProxies;
+    private final int maxSeries;
+    private final Logger logger;
+    private final Map<String, ProxyState> proxies = new ConcurrentHashMap<>();
+    private final Map<HistogramKey, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger handshaking = new AtomicInteger();
+    private final SecureRandom random = new SecureRandom();
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final LongAdder failedHandshakes = new LongAdder();
+    private final LongAdder droppedSeries = new LongAdder();
+    private ServerSocket serverSocket;
+    private volatile boolean stopped;
+
+    /**
+     * @param bindAddress Address to accept proxy connections on
+     * @param secret Secret the proxies must prove they know; must not be empty
+     * @param timeout How long a proxy may go without pushing before its gauges are dropped; must exceed the push interval
+     * @param maxProxies Maximum number of distinct proxies tracked, and of connections still handshaking
+     * @param maxSeries Maximum number of gauge series per proxy and of merged histogram series; more are dropped
+     */
+    public AggregatorServer(InetSocketAddress bindAddress, String secret, Duration timeout, int maxProxies, int maxSeries,
+                            Logger logger) {
+        if (secret.isEmpty()) {
+            throw new IllegalArgumentException("The aggregator needs a secret");
+        }
+        this.bindAddress = bindAddress;
+        this.secret = secret;
+        this.timeoutMillis = (int) timeout.toMillis();
+        this.maxProxies = maxProxies;
+        this.maxSeries = maxSeries;
+        this.logger = logger;
+    }
+
+    public void start() {
+        try {
+            serverSocket = new ServerSocket();
+            serverSocket.bind(bindAddress);
+        } catch (IOException e) {
+            closeQuietly(serverSocket);
+            throw new RuntimeException("Failed to start aggregator", e);
+        }
+        Thread thread = new Thread(this::acceptConnections, "sigil-aggregator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        stopped = true;
+        if (serverSocket != null) {
+            closeQuietly(serverSocket);
+        }
+        connections.forEach(AggregatorServer::closeQuietly);
+    }
+
+    public InetSocketAddress getAddress() {
+        return serverSocket != null && serverSocket.isBound()
+                ? (InetSocketAddress) serverSocket.getLocalSocketAddress()
+                : bindAddress;
+    }
+
+    private void acceptConnections() {
+        while (!stopped) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!stopped) {
+                    logger.error("Aggregator stopped accepting proxy connections: {}", e.getMessage());
+                }
+                return;
+            }
+            // Proxies that completed the handshake are limited by attach
+            if (handshaking.get() >= maxProxies) {
+                rejectedConnections.increment();
+                closeQuietly(socket);
+                continue;
+            }
+            handshaking.incrementAndGet();
+            connections.add(socket);
+            Thread thread = new Thread(() -> serve(socket), "sigil-aggregator-" + socket.getRemoteSocketAddress());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        String proxyId = null;
+        ProxyState state = null;
+        boolean authenticated = false;
+        try {
+            socket.setSoTimeout(Math.min(HANDSHAKE_TIMEOUT_MILLIS, timeoutMillis));
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if (in.readInt() != DeltaProtocol.MAGIC || in.readUnsignedByte() != DeltaProtocol.VERSION) {
+                throw new IOException("Not a Sigil delta stream or an unsupported version");
+            }
+            String claimedId = in.readUTF();
+            long instanceId = in.readLong();
+            byte[] nonce = new byte[DeltaProtocol.NONCE_BYTES];
+            random.nextBytes(nonce);
+            out.write(nonce);
+            out.flush();
+            byte[] proof = new byte[DeltaProtocol.MAC_BYTES];
+            in.readFully(proof);
+            if (!MessageDigest.isEqual(proof, DeltaProtocol.authenticate(secret, nonce, claimedId, instanceId))) {
+                throw new IOException("Wrong secret");
+            }
+            authenticated = true;
+            handshaking.decrementAndGet();
+            proxyId = claimedId;
+            socket.setSoTimeout(timeoutMillis);
+            state = attach(proxyId, instanceId, socket);
+            if (state == null) {
+                rejectedConnections.increment();
+                logger.warn("Rejected proxy {}: already tracking {} proxies", proxyId, maxProxies);
+                return;
+            }
+            long lastApplied;
+            synchronized (state) {
+                lastApplied = state.lastApplied;
+            }
+            out.writeLong(lastApplied);
+            out.flush();
+            logger.info("Proxy {} connected to the aggregator from {}", proxyId, socket.getRemoteSocketAddress());
+
+            // Histograms this connection sends that cannot be merged, e.g. because their bounds differ
+            Set<HistogramKey> unmergeable = new HashSet<>();
+            while (!stopped) {
+                int length = in.readInt();
+                if (length < 0 || length > DeltaProtocol.MAX_FRAME_BYTES) {
+                    throw new IOException("Frame of " + length + " bytes is too large");
+                }
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                long sequence = apply(proxyId, state, socket, frame, unmergeable);
+                out.writeLong(sequence);
+                out.flush();
+            }
+        } catch (IOException e) {
+            if (!authenticated) {
+                failedHandshakes.increment();
+                if (!stopped) {
+                    logger.warn("Rejected connection from {} to the aggregator: {}", socket.getRemoteSocketAddress(),
+                            e instanceof EOFException || e instanceof SocketTimeoutException ? "incomplete handshake" : e.getMessage());
+                }
+            } else if (e instanceof EOFException) {
+                // The proxy closed the connection, normally because it is shutting down
+            } else if (e instanceof SocketTimeoutException) {
+                logger.warn("Proxy {} stopped pushing for {}s, no longer counting its players", proxyId, timeoutMillis / 1000);
+            } else if (!stopped && !socket.isClosed()) {
+                logger.warn("Dropped connection from proxy {}: {}", proxyId, e.getMessage());
+            }
+        } finally {
+            if (!authenticated) {
+                handshaking.decrementAndGet();
+            }
+            connections.remove(socket);
+            closeQuietly(socket);
+            if (state != null) {
+                detach(proxyId, state, socket);
+            }
+        }
+    }
+
+    /**
+     * Makes the socket the current connection of a proxy, replacing any older one.
+     * @return The proxy's state, or null if the proxy limit has been reached
+     */
+    private ProxyState attach(String proxyId, long instanceId, Socket socket) {
+        ProxyState state = proxies.get(proxyId);
+        if (state == null) {
+            if (proxies.size() >= maxProxies) {
+                return null;
+            }
+            state = proxies.computeIfAbsent(proxyId, k -> new ProxyState());
+        }
+        synchronized (state) {
+            if (state.socket != null) {
+                if (state.instanceId != instanceId) {
+                    logger.warn("Two proxies are pushing as {}; give each proxy a unique ID", proxyId);
+                }
+                closeQuietly(state.socket);
+            }
+            if (state.instanceId != instanceId) {
+                // A restarted proxy numbers its pushes from zero again
+                state.instanceId = instanceId;
+                state.lastApplied = -1;
+            }
+            state.socket = socket;
+            state.gauges.clear();
+            state.connected = true;
+        }
+        return state;
+    }
+
+    private void detach(String proxyId, ProxyState state, Socket socket) {
+        synchronized (state) {
+            // A newer connection from the same proxy may already have taken over
+            if (state.socket != socket) {
+                return;
+            }
+            state.socket = null;
+            state.gauges.clear();
+            state.connected = false;
+        }
+        logger.info("Proxy {} disconnected from the aggregator", proxyId);
+    }
+
+    /**
+     * Decodes a frame fully, then applies it unless it was already applied before a reconnect.
+     * @return The frame's sequence number
+     */
+    private long apply(String proxyId, ProxyState state, Socket socket, byte[] bytes, Set<HistogramKey> unmergeable) throws IOException {
+        DataInputStream frame = new DataInputStream(new ByteArrayInputStream(bytes));
+        long sequence = frame.readLong();
+        boolean fullGauges = (frame.readUnsignedByte() & DeltaProtocol.FLAG_FULL_GAUGES) != 0;
+
+        int gaugeCount = DeltaProtocol.readVarInt(frame, DeltaProtocol.MAX_FRAME_BYTES);
+        List<GaugeKey> gaugeKeys = new ArrayList<>(Math.min(gaugeCount, maxSeries));
+        int[] gaugeValues = new int[Math.min(gaugeCount, maxSeries)];
+        for (int i = 0; i < gaugeCount; i++) {
+            GaugeKey key = new GaugeKey(DeltaProtocol.readKind(frame, GaugeKind.values()), frame.readUTF());
+            int value = DeltaProtocol.readVarInt(frame, Integer.MAX_VALUE);
+            if (i < gaugeValues.length) {
+                gaugeKeys.add(key);
+                gaugeValues[i] = value;
+            } else {
+                droppedSeries.increment();
+            }
+        }
+
+        int histogramCount = DeltaProtocol.readVarInt(frame, DeltaProtocol.MAX_FRAME_BYTES);
+        List<HistogramDelta> deltas = new ArrayList<>();
+        for (int i = 0; i < histogramCount; i++) {
+            HistogramKey key = new HistogramKey(DeltaProtocol.readKind(frame, HistogramKind.values()), frame.readUTF(), frame.readUTF());
+            int boundCount = DeltaProtocol.readVarInt(frame, MAX_BOUNDS);
+            double[] bounds = new double[boundCount];
+            for (int b = 0; b < boundCount; b++) {
+                bounds[b] = frame.readDouble();
+            }
+            Histogram target;
+            if (boundCount > 0) {
+                target = mergeTarget(proxyId, key, bounds, unmergeable);
+            } else if (unmergeable.contains(key)) {
+                // Rejected when its bounds were announced; the merged histogram has other buckets
+                target = null;
+            } else {
+                target = histograms.get(key);
+                if (target == null) {
+                    throw new IOException("Delta for histogram " + key + " before its bounds");
+                }
+            }
+            int buckets = target != null ? target.boundCount() + 1 : MAX_BOUNDS + 1;
+            long[] counts = new long[buckets];
+            int nonZero = DeltaProtocol.readVarInt(frame, buckets);
+            for (int b = 0; b < nonZero; b++) {
+                int bucket = DeltaProtocol.readVarInt(frame, buckets - 1);
+                counts[bucket] = DeltaProtocol.readVarLong(frame);
+            }
+            double sum = frame.readDouble();
+            if (target != null) {
+                deltas.add(new HistogramDelta(target, counts, sum));
+            }
+        }
+
+        synchronized (state) {
+            if (state.socket != socket) {
+                throw new IOException("Connection replaced by a newer one");
+            }
+            if (sequence <= state.lastApplied) {
+                // Applied before the previous connection broke, only the acknowledgement was lost
+                return sequence;
+            }
+            if (fullGauges) {
+                state.gauges.clear();
+            }
+            for (int i = 0; i < gaugeKeys.size(); i++) {
+                GaugeKey key = gaugeKeys.get(i);
+                if (gaugeValues[i] == 0) {
+                    state.gauges.remove(key);
+                } else if (state.gauges.size() < maxSeries || state.gauges.containsKey(key)) {
+                    state.gauges.put(key, gaugeValues[i]);
+                } else {
+                    droppedSeries.increment();
+                }
+            }
+            for (HistogramDelta delta : deltas) {
+                delta.target().add(delta.counts(), delta.sum());
+            }
+            state.lastApplied = sequence;
+            state.lastPushMillis = System.currentTimeMillis();
+        }
+        frames.increment();
+        return sequence;
+    }
+
+    /**
+     * @return The merged histogram for the key, or null if it cannot take deltas with these bounds
+     */
+    private Histogram mergeTarget(String proxyId, HistogramKey key, double[] bounds, Set<HistogramKey> unmergeable) {
+        Histogram histogram = histograms.get(key);
+        if (histogram == null) {
+            if (histograms.size() >= maxSeries) {
+                droppedSeries.increment();
+                unmergeable.add(key);
+                return null;
+            }
+            histogram = histograms.computeIfAbsent(key, k -> new Histogram(bounds));
+        }
+        if (!Arrays.equals(histogram.bounds(), bounds)) {
+            if (unmergeable.add(key)) {
+                logger.warn("Proxy {} uses different buckets for {}; its observations are not merged", proxyId, key.kind().family);
+            }
+            return null;
+        }
+        unmergeable.remove(key);
+        return histogram;
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            // Already closed or broken, either way it is gone
+        }
+    }
+
+    @Override
+    public void collect(ExpositionWriter out) {
+        long now = System.currentTimeMillis();
+        out.family("sigil_network_proxy_up", "Whether a proxy is connected to the aggregator (1 = yes, 0 = no)", "gauge");
+        proxies.forEach((proxyId, state) -> out.sample("sigil_network_proxy_up").label("proxy", proxyId).value(state.connected ? 1 : 0));
+
+        out.family("sigil_network_proxy_last_push_age_seconds", "Seconds since the aggregator last applied a push from the proxy", "gauge");
+        proxies.forEach((proxyId, state) -> {
+            if (state.lastPushMillis != 0) {
+                out.sample("sigil_network_proxy_last_push_age_seconds").label("proxy", proxyId).value((now - state.lastPushMillis) / 1000.0);
+            }
+        });
+
+        Map<GaugeKind, Map<String, Long>> sums = new EnumMap<>(GaugeKind.class);
+        for (GaugeKind kind : GaugeKind.values()) {
+            sums.put(kind, new TreeMap<>());
+        }
+        proxies.values().forEach(state ->
+                state.gauges.forEach((key, value) -> sums.get(key.kind()).merge(key.label(), (long) value, Long::sum)));
+        for (GaugeKind kind : GaugeKind.values()) {
+            out.family(kind.family, kind.help, "gauge");
+            if (kind.label == null) {
+                out.sample(kind.family).value(sums.get(kind).getOrDefault("", 0L));
+            } else {
+                sums.get(kind).forEach((label, value) -> out.sample(kind.family).label(kind.label, label).value(value));
+            }
+        }
+
+        for (HistogramKind kind : HistogramKind.values()) {
+            out.family(kind.family, kind.help, "histogram");
+            histograms.forEach((key, histogram) -> {
+                if (key.kind() != kind) {
+                    return;
+                }
+                out.sample(kind.family);
+                if (kind.firstLabel != null) {
+                    out.label(kind.firstLabel, key.firstLabel());
+                }
+                if (kind.secondLabel != null) {
+                    out.label(kind.secondLabel, key.secondLabel());
+                }
+                out.histogram(histogram);
+            });
+        }
+
+        out.family("sigil_network_pushes_total", "Pushes from proxies applied by the aggregator", "counter");
+        out.sample("sigil_network_pushes_total").value(frames.sum());
+
+        out.family("sigil_network_rejected_connections_total", "Proxy connections refused because the proxy or handshake limit was reached", "counter");
+        out.sample("sigil_network_rejected_connections_total").value(rejectedConnections.sum());
+
+        out.family("sigil_network_failed_handshakes_total", "Connections closed because they did not prove they know the secret in time", "counter");
+        out.sample("sigil_network_failed_handshakes_total").value(failedHandshakes.sum());
+
+        out.family("sigil_network_dropped_series_total", "Pushed series dropped because the aggregator reached its series limit", "counter");
+        out.sample("sigil_network_dropped_series_total").value(droppedSeries.sum());
+    }
+}
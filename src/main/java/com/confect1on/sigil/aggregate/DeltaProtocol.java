@@ -0,0 +1,146 @@
+package com.confect1on.sigil.aggregate;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+/**
+ * Wire format shared by {@link DeltaPusher} and {@link AggregatorServer}.
+ *
+ * A connection opens with a hello from the proxy: magic, version, proxy ID and an instance ID that is
+ * new every time the proxy starts. The aggregator challenges it with a random nonce, which the proxy
+ * answers with an HMAC-SHA256 over the nonce and its hello, keyed with the secret both sides share,
+ * so the secret itself never crosses the wire. Once the proxy has proven it knows the secret, the
+ * aggregator answers with the last sequence number it applied for that instance, or -1, so a proxy
+ * that lost its connection mid-push knows whether the push it was waiting on counted. After that each push is a length-prefixed frame that the aggregator
+ * acknowledges with its sequence number once applied.
+ *
+ * A frame holds a sequence number, flags, the gauge values that changed (0 removes one) and the
+ * histograms that received observations, as non-zero bucket deltas. Counts are varints, so an idle
+ * proxy sends a handful of bytes. Bucket bounds are only sent the first time a histogram appears on
+ * a connection.
+ */
+final class DeltaProtocol {
+    static final int MAGIC = 0x53474444; // "SGDD"
+    static final int VERSION = 2;
+    static final int MAX_FRAME_BYTES = 4 * 1024 * 1024;
+    static final int NONCE_BYTES = 32;
+    static final int MAC_BYTES = 32;
+
+    /** The frame carries every gauge value, replacing the ones the aggregator holds for the proxy. */
+    static final int FLAG_FULL_GAUGES = 1;
+
+    /**
+     * Gauges pushed by proxies and summed across them.
+     */
+    enum GaugeKind {
+        ACTIVE_SESSIONS("sigil_network_active_sessions", "Number of players connected across all proxies", null),
+        REGION("sigil_network_players_by_region", "Number of active players by region across all proxies", "region"),
+        ASN("sigil_network_players_by_asn", "Number of active players by autonomous system number across all proxies", "asn"),
+        SUBDIVISION("sigil_network_players_by_subdivision", "Number of active players by country subdivision across all proxies", "subdivision"),
+        BACKEND("sigil_network_backend_players", "Number of players per backend server across all proxies", "server");
+
+        final String family;
+        final String help;
+        final String label;
+
+        GaugeKind(String family, String help, String label) {
+            this.family = family;
+            this.help = help;
+            this.label = label;
+        }
+    }
+
+    /**
+     * Histograms pushed by proxies and merged across them.
+     */
+    enum HistogramKind {
+        SESSION_DURATION("sigil_network_session_duration_seconds", "Duration of completed player sessions across all proxies in seconds", null, null),
+        BACKEND_PING("sigil_network_backend_ping_seconds", "Round-trip time of backend server pings from all proxies in seconds", "server", null),
+        PLAYER_PING("sigil_network_player_ping_seconds", "Player network latency by region and backend server across all proxies in seconds", "region", "server");
+
+        final String family;
+        final String help;
+        final String firstLabel;
+        final String secondLabel;
+
+        HistogramKind(String family, String help, String firstLabel, String secondLabel) {
+            this.family = family;
+            this.help = help;
+            this.firstLabel = firstLabel;
+            this.secondLabel = secondLabel;
+        }
+    }
+
+    /**
+     * Identifies one gauge series; the label is empty for unlabelled gauges.
+     */
+    record GaugeKey(GaugeKind kind, String label) {
+    }
+
+    /**
+     * Identifies one histogram series; unused labels are empty.
+     */
+    record HistogramKey(HistogramKind kind, String firstLabel, String secondLabel) {
+    }
+
+    private DeltaProtocol() {
+    }
+
+    /**
+     * @return The proof that a proxy knows the shared secret, for the nonce it was challenged with
+     */
+    static byte[] authenticate(String secret, byte[] nonce, String proxyId, long instanceId) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            mac.update(nonce);
+            mac.update(proxyId.getBytes(StandardCharsets.UTF_8));
+            return mac.doFinal(ByteBuffer.allocate(Long.BYTES).putLong(instanceId).array());
+        } catch (GeneralSecurityException e) {
+            // Every Java runtime is required to provide HmacSHA256
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static int readVarInt(DataInput in, int max) throws IOException {
+        long value = readVarLong(in);
+        if (value < 0 || value > max) {
+            throw new IOException("Value out of range: " + value);
+        }
+        return (int) value;
+    }
+
+    static <E extends Enum<E>> E readKind(DataInput in, E[] kinds) throws IOException {
+        int ordinal = in.readUnsignedByte();
+        if (ordinal >= kinds.length) {
+            throw new IOException("Unknown metric kind " + ordinal);
+        }
+        return kinds[ordinal];
+    }
+}
@@ -0,0 +1,410 @@
+package com.confect1on.sigil.aggregate;
+
+import com.confect1on.sigil.aggregate.DeltaProtocol.GaugeKey;
+import com.confect1on.sigil.aggregate.DeltaProtocol.GaugeKind;
+import com.confect1on.sigil.aggregate.DeltaProtocol.HistogramKey;
+import com.confect1on.sigil.aggregate.DeltaProtocol.HistogramKind;
+import com.confect1on.sigil.metrics.ExpositionWriter;
+import com.confect1on.sigil.metrics.Histogram;
+import com.confect1on.sigil.metrics.LabelLimiter;
+import com.confect1on.sigil.metrics.MetricsCollector;
+import com.confect1on.sigil.metrics.MetricsManager;
+import org.slf4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pushes this proxy's player gauges and histograms to an {@link AggregatorServer} so one instance can
+ * serve network-wide totals.
+ *
+ * Each push only carries what changed since the last push the aggregator acknowledged: gauges whose
+ * value moved and the new observations in each histogram. If a push fails it is not retried as is;
+ * the next one simply covers a longer stretch, and on reconnecting the aggregator reports the last
+ * push it applied so nothing is counted twice or lost. Histograms start from their values when the
+ * pusher is created, so totals restored from a snapshot are not pushed again after a restart.
+ */
+public class DeltaPusher implements Runnable, MetricsCollector, AutoCloseable {
+    private static final int MAX_BOUNDS = 1024;
+
+    /**
+     * Cumulative state of one histogram at the time of a snapshot.
+     */
+    private record HistogramState(double[] bounds, long[] counts, double sum) {
+        static HistogramState of(Histogram histogram) {
+            long[] counts = new long[histogram.boundCount() + 1];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = histogram.bucketCount(i);
+            }
+            return new HistogramState(histogram.bounds(), counts, histogram.sum());
+        }
+    }
+
+    /**
+     * Everything pushed, as of one point in time. Gauges with no players are left out.
+     */
+    private record Snapshot(Map<GaugeKey, Integer> gauges, Map<HistogramKey, HistogramState> histograms) {
+    }
+
+    /**
+     * A push sent but not yet acknowledged.
+     */
+    private record Pending(long sequence, Snapshot snapshot) {
+    }
+
+    private final MetricsManager metricsManager;
+    private final InetSocketAddress aggregator;
+    private final String proxyId;
+    private final String secret;
+    private final int timeoutMillis;
+    private final Logger logger;
+    private final long instanceId = ThreadLocalRandom.current().nextLong();
+
+    // Guarded by this; pushes come from the scheduler and a final one from shutdown
+    private Socket socket;
+    private DataInputStream in;
+    private DataOutputStream out;
+    private Snapshot acknowledged;
+    private Pending pending;
+    private long nextSequence;
+    private boolean sendAllGauges;
+    private final Set<HistogramKey> announced = new HashSet<>();
+    private boolean failing;
+    private boolean closed;
+
+    private final LongAdder pushes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private volatile boolean connected;
+
+    /**
+     * @param aggregator Address of the aggregator
+     * @param proxyId Name this proxy is reported under; must be unique among the proxies pushing to the aggregator
+     * @param secret Secret shared with the aggregator, proving this proxy may push to it
+     * @param timeout Timeout for connecting and for each acknowledgement
+     */
+    public DeltaPusher(MetricsManager metricsManager, InetSocketAddress aggregator, String proxyId, String secret,
+                       Duration timeout, Logger logger) {
+        this.metricsManager = metricsManager;
+        this.aggregator = aggregator;
+        this.proxyId = proxyId;
+        this.secret = secret;
+        this.timeoutMillis = (int) timeout.toMillis();
+        this.logger = logger;
+        this.acknowledged = new Snapshot(Map.of(), histograms());
+    }
+
+    /**
+     * Pushes the changes since the last acknowledged push, connecting first if needed.
+     */
+    @Override
+    public synchronized void run() {
+        if (closed) {
+            return;
+        }
+        try {
+            if (socket == null) {
+                connect();
+            }
+            push();
+            if (failing) {
+                logger.info("Pushing metrics to the aggregator at {} again", aggregator);
+                failing = false;
+            }
+        } catch (IOException e) {
+            failures.increment();
+            disconnect();
+            if (!failing) {
+                logger.warn("Failed to push metrics to the aggregator at {}, will keep retrying: {}", aggregator, e.getMessage());
+                failing = true;
+            } else {
+                logger.debug("Failed to push metrics to the aggregator at {}: {}", aggregator, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Disconnects from the aggregator, which stops counting this proxy's players.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        disconnect();
+    }
+
+    private void connect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(aggregator, timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.writeInt(DeltaProtocol.MAGIC);
+            out.writeByte(DeltaProtocol.VERSION);
+            out.writeUTF(proxyId);
+            out.writeLong(instanceId);
+            out.flush();
+            byte[] nonce = new byte[DeltaProtocol.NONCE_BYTES];
+            in.readFully(nonce);
+            out.write(DeltaProtocol.authenticate(secret, nonce, proxyId, instanceId));
+            out.flush();
+            // The aggregator closes the connection instead of answering if the secret does not match
+            long lastApplied = in.readLong();
+
+            // The push in flight when the last connection broke may or may not have been applied
+            if (pending != null) {
+                if (lastApplied >= pending.sequence()) {
+                    acknowledged = pending.snapshot();
+                }
+                pending = null;
+            }
+            this.socket = socket;
+            this.in = in;
+            this.out = out;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        // The aggregator drops a proxy's gauges and bucket bounds along with its connection
+        sendAllGauges = true;
+        announced.clear();
+        connected = true;
+    }
+
+    private void disconnect() {
+        connected = false;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to clean up
+            }
+            socket = null;
+            in = null;
+            out = null;
+        }
+    }
+
+    private void push() throws IOException {
+        Snapshot current = new Snapshot(gauges(), histograms());
+        long sequence = nextSequence++;
+        byte[] frame = encode(sequence, current);
+        pending = new Pending(sequence, current);
+
+        out.writeInt(frame.length);
+        out.write(frame);
+        out.flush();
+        long ack = in.readLong();
+        if (ack != sequence) {
+            throw new IOException("Aggregator acknowledged push " + ack + " instead of " + sequence);
+        }
+        acknowledged = current;
+        pending = null;
+        sendAllGauges = false;
+        pushes.increment();
+        bytesSent.add(frame.length + 4);
+    }
+
+    private byte[] encode(long sequence, Snapshot current) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream frame = new DataOutputStream(bytes);
+        frame.writeLong(sequence);
+        frame.writeByte(sendAllGauges ? DeltaProtocol.FLAG_FULL_GAUGES : 0);
+
+        List<GaugeKey> changed = new ArrayList<>();
+        current.gauges().forEach((key, value) -> {
+            if (sendAllGauges || !value.equals(acknowledged.gauges().get(key))) {
+                changed.add(key);
+            }
+        });
+        if (!sendAllGauges) {
+            for (GaugeKey key : acknowledged.gauges().keySet()) {
+                if (!current.gauges().containsKey(key)) {
+                    changed.add(key);
+                }
+            }
+        }
+        DeltaProtocol.writeVarLong(frame, changed.size());
+        for (GaugeKey key : changed) {
+            frame.writeByte(key.kind().ordinal());
+            frame.writeUTF(key.label());
+            DeltaProtocol.writeVarLong(frame, current.gauges().getOrDefault(key, 0));
+        }
+
+        // Series folded into "other" since the last push make it grow by what was already pushed for
+        // them; that much is taken back out of the "other" deltas so the aggregator does not count it twice
+        HistogramState folded = folded(current);
+        long[] unclaimed = folded != null ? folded.counts().clone() : null;
+        double[] unclaimedSum = {folded != null ? folded.sum() : 0};
+        List<HistogramKey> observed = new ArrayList<>();
+        List<long[]> deltas = new ArrayList<>();
+        List<Double> sums = new ArrayList<>();
+        current.histograms().forEach((key, state) -> {
+            HistogramState base = acknowledged.histograms().get(key);
+            long[] delta = delta(state, base);
+            double sum = state.sum() - (base != null ? base.sum() : 0);
+            if (delta != null && unclaimed != null && isFoldTarget(key) && delta.length == unclaimed.length) {
+                boolean empty = true;
+                for (int i = 0; i < delta.length; i++) {
+                    long taken = Math.min(delta[i], unclaimed[i]);
+                    delta[i] -= taken;
+                    unclaimed[i] -= taken;
+                    empty &= delta[i] == 0;
+                }
+                double takenSum = Math.min(sum, unclaimedSum[0]);
+                sum -= takenSum;
+                unclaimedSum[0] -= takenSum;
+                if (empty) {
+                    delta = null;
+                }
+            }
+            if (delta != null) {
+                observed.add(key);
+                deltas.add(delta);
+                sums.add(sum);
+            }
+        });
+        DeltaProtocol.writeVarLong(frame, observed.size());
+        for (int i = 0; i < observed.size(); i++) {
+            HistogramKey key = observed.get(i);
+            HistogramState state = current.histograms().get(key);
+            frame.writeByte(key.kind().ordinal());
+            frame.writeUTF(key.firstLabel());
+            frame.writeUTF(key.secondLabel());
+            if (announced.add(key)) {
+                DeltaProtocol.writeVarLong(frame, state.bounds().length);
+                for (double bound : state.bounds()) {
+                    frame.writeDouble(bound);
+                }
+            } else {
+                DeltaProtocol.writeVarLong(frame, 0);
+            }
+            long[] delta = deltas.get(i);
+            int nonZero = 0;
+            for (long count : delta) {
+                if (count != 0) {
+                    nonZero++;
+                }
+            }
+            DeltaProtocol.writeVarLong(frame, nonZero);
+            for (int bucket = 0; bucket < delta.length; bucket++) {
+                if (delta[bucket] != 0) {
+                    DeltaProtocol.writeVarLong(frame, bucket);
+                    DeltaProtocol.writeVarLong(frame, delta[bucket]);
+                }
+            }
+            frame.writeDouble(sums.get(i));
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return What was pushed for the player latency series missing from the current snapshot, by
+     *         bucket, or null if none are. A series only goes away when its region or server loses
+     *         its slot to another value, and then it is folded into a series labelled "other".
+     */
+    private HistogramState folded(Snapshot current) {
+        HistogramState folded = null;
+        for (Map.Entry<HistogramKey, HistogramState> entry : acknowledged.histograms().entrySet()) {
+            HistogramState state = entry.getValue();
+            if (entry.getKey().kind() != HistogramKind.PLAYER_PING || current.histograms().containsKey(entry.getKey())) {
+                continue;
+            }
+            if (folded == null) {
+                folded = new HistogramState(state.bounds(), new long[state.counts().length], 0);
+            }
+            if (state.counts().length == folded.counts().length) {
+                for (int i = 0; i < state.counts().length; i++) {
+                    folded.counts()[i] += state.counts()[i];
+                }
+                folded = new HistogramState(folded.bounds(), folded.counts(), folded.sum() + state.sum());
+            }
+        }
+        return folded;
+    }
+
+    private static boolean isFoldTarget(HistogramKey key) {
+        return key.kind() == HistogramKind.PLAYER_PING
+                && (key.firstLabel().equals(LabelLimiter.OTHER) || key.secondLabel().equals(LabelLimiter.OTHER));
+    }
+
+    /**
+     * @return New observations per bucket since the base, or null if there are none
+     */
+    private static long[] delta(HistogramState state, HistogramState base) {
+        if (state.bounds().length > MAX_BOUNDS) {
+            return null;
+        }
+        long[] delta = state.counts().clone();
+        if (base != null && base.counts().length == delta.length) {
+            for (int i = 0; i < delta.length; i++) {
+                delta[i] = Math.max(0, delta[i] - base.counts()[i]);
+            }
+        }
+        for (long count : delta) {
+            if (count != 0) {
+                return delta;
+            }
+        }
+        return null;
+    }
+
+    private Map<GaugeKey, Integer> gauges() {
+        Map<GaugeKey, Integer> gauges = new HashMap<>();
+        int activeSessions = metricsManager.getActiveSessionCount();
+        if (activeSessions > 0) {
+            gauges.put(new GaugeKey(GaugeKind.ACTIVE_SESSIONS, ""), activeSessions);
+        }
+        metricsManager.forEachPlayersByRegion((region, count) -> putGauge(gauges, GaugeKind.REGION, region, count));
+        metricsManager.forEachPlayersByAsn((asn, count) -> putGauge(gauges, GaugeKind.ASN, asn, count));
+        metricsManager.forEachPlayersBySubdivision((subdivision, count) -> putGauge(gauges, GaugeKind.SUBDIVISION, subdivision, count));
+        metricsManager.forEachPlayersByBackend((server, count) -> putGauge(gauges, GaugeKind.BACKEND, server, count));
+        return gauges;
+    }
+
+    private static void putGauge(Map<GaugeKey, Integer> gauges, GaugeKind kind, String label, int count) {
+        if (count > 0) {
+            gauges.put(new GaugeKey(kind, label), count);
+        }
+    }
+
+    private Map<HistogramKey, HistogramState> histograms() {
+        Map<HistogramKey, HistogramState> histograms = new HashMap<>();
+        histograms.put(new HistogramKey(HistogramKind.SESSION_DURATION, "", ""),
+                HistogramState.of(metricsManager.getSessionDurationHistogram()));
+        metricsManager.forEachBackendPingLatency((server, histogram) ->
+                histograms.put(new HistogramKey(HistogramKind.BACKEND_PING, server, ""), HistogramState.of(histogram)));
+        metricsManager.forEachPlayerLatency((region, server, histogram) ->
+                histograms.put(new HistogramKey(HistogramKind.PLAYER_PING, region, server), HistogramState.of(histogram)));
+        return histograms;
+    }
+
+    @Override
+    public void collect(ExpositionWriter out) {
+        out.family("sigil_aggregation_pushes_total", "Pushes to the aggregator by result", "counter");
+        out.sample("sigil_aggregation_pushes_total").label("result", "ok").value(pushes.sum());
+        out.sample("sigil_aggregation_pushes_total").label("result", "failed").value(failures.sum());
+
+        out.family("sigil_aggregation_push_bytes_total", "Bytes of acknowledged pushes to the aggregator", "counter");
+        out.sample("sigil_aggregation_push_bytes_total").value(bytesSent.sum());
+
+        out.family("sigil_aggregation_connected", "Whether this proxy is connected to the aggregator (1 = yes, 0 = no)", "gauge");
+        out.sample("sigil_aggregation_connected").value(connected ? 1 : 0);
+    }
+}
@@ -0,0 +1,335 @@
+package com.confect1on.sigil.audit;
+
+import com.confect1on.sigil.metrics.ExpositionWriter;
+import com.confect1on.sigil.metrics.JsonStrings;
+import com.confect1on.sigil.metrics.MetricsCollector;
+import org.slf4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes one JSON line per player event (join, resolved region, backend switch, disconnect) to a
+ * rotating file in the data directory, taking that detail out of the proxy log.
+ *
+ * Event handlers only append the event to a lock-free queue; formatting and file I/O happen on a
+ * background writer thread that drains the queue and flushes once it is empty. Events are sampled
+ * per player, so a sampled player's events are all kept together, and rate-limited across all
+ * players so a join flood cannot flood the disk. Events suppressed by either, or because the
+ * writer fell behind and the queue filled up, are counted by reason.
+ */
+public class AuditLog implements MetricsCollector, AutoCloseable {
+    private static final long DRAIN_INTERVAL_NANOS = Duration.ofMillis(500).toNanos();
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Kinds of audited event.
+     */
+    public enum Type {
+        JOIN("join"),
+        REGION("region"),
+        SWITCH("switch"),
+        DISCONNECT("disconnect");
+
+        private final String label;
+
+        Type(String label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * Why an event was not written.
+     */
+    private enum Suppression {
+        SAMPLED("sampled"),
+        RATE_LIMITED("rate_limited"),
+        QUEUE_FULL("queue_full");
+
+        private final String label;
+
+        Suppression(String label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * A queued event; fields that do not apply to its type are null.
+     */
+    private record Entry(long timeMillis, Type type, UUID player, String username, InetAddress address,
+                         String region, String server, String previousServer) {
+    }
+
+    private final Path file;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final long sampleThreshold;
+    private final int maxPerSecond;
+    private final int queueCapacity;
+    private final Logger logger;
+
+    private final Queue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    // Epoch second in the high half, events let through in that second in the low half
+    private final AtomicLong rateWindow = new AtomicLong();
+    private final LongAdder[] suppressed = new LongAdder[Suppression.values().length];
+    private final LongAdder written = new LongAdder();
+    private final LongAdder writeErrors = new LongAdder();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    // Only touched by the writer thread
+    private OutputStream out;
+    private long fileBytes;
+    private boolean failing;
+
+    /**
+     * @param file The log file; rotated files get the suffixes .1, .2 and so on, .1 being the newest
+     * @param maxFileBytes Size at which the file is rotated
+     * @param maxFiles Number of rotated files kept besides the current one
+     * @param sampleRate Fraction of players whose events are written, from 0 to 1
+     * @param maxPerSecond Maximum number of events written per second across all players
+     * @param queueCapacity Maximum number of events waiting for the writer
+     */
+    public AuditLog(Path file, long maxFileBytes, int maxFiles, double sampleRate, int maxPerSecond, int queueCapacity, Logger logger) {
+        this.file = file;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        this.sampleThreshold = (long) (Math.max(0, Math.min(1, sampleRate)) * 0x1_0000_0000L);
+        this.maxPerSecond = maxPerSecond;
+        this.queueCapacity = queueCapacity;
+        this.logger = logger;
+        for (int i = 0; i < suppressed.length; i++) {
+            suppressed[i] = new LongAdder();
+        }
+        this.writer = new Thread(this::drain, "sigil-audit-writer");
+        this.writer.setDaemon(true);
+    }
+
+    public void start() {
+        writer.start();
+    }
+
+    /**
+     * Writes the events still queued and closes the file.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void join(UUID player, String username, InetAddress address) {
+        record(new Entry(System.currentTimeMillis(), Type.JOIN, player, username, address, null, null, null));
+    }
+
+    public void region(UUID player, String username, String region) {
+        record(new Entry(System.currentTimeMillis(), Type.REGION, player, username, null, region, null, null));
+    }
+
+    /**
+     * @param previousServer The backend the player left, or null on the initial connect
+     */
+    public void serverSwitch(UUID player, String username, String server, String previousServer) {
+        record(new Entry(System.currentTimeMillis(), Type.SWITCH, player, username, null, null, server, previousServer));
+    }
+
+    public void disconnect(UUID player, String username) {
+        record(new Entry(System.currentTimeMillis(), Type.DISCONNECT, player, username, null, null, null, null));
+    }
+
+    private void record(Entry entry) {
+        if (closed) {
+            return;
+        }
+        if ((entry.player().hashCode() & 0xFFFF_FFFFL) >= sampleThreshold) {
+            suppressed[Suppression.SAMPLED.ordinal()].increment();
+            return;
+        }
+        if (!acquire(entry.timeMillis() / 1000)) {
+            suppressed[Suppression.RATE_LIMITED.ordinal()].increment();
+            return;
+        }
+        if (queued.incrementAndGet() > queueCapacity) {
+            queued.decrementAndGet();
+            suppressed[Suppression.QUEUE_FULL.ordinal()].increment();
+            return;
+        }
+        queue.offer(entry);
+    }
+
+    /**
+     * @return Whether the rate limit lets another event through in the given second
+     */
+    private boolean acquire(long second) {
+        while (true) {
+            long window = rateWindow.get();
+            long count = window >>> 32 == second ? window & 0xFFFF_FFFFL : 0;
+            if (count >= maxPerSecond) {
+                return false;
+            }
+            if (rateWindow.compareAndSet(window, (second << 32) | (count + 1))) {
+                return true;
+            }
+        }
+    }
+
+    private void drain() {
+        StringBuilder line = new StringBuilder(256);
+        while (true) {
+            boolean stopping = closed;
+            boolean wrote = false;
+            Entry entry;
+            while ((entry = queue.poll()) != null) {
+                queued.decrementAndGet();
+                line.setLength(0);
+                appendJson(line, entry);
+                write(line.toString().getBytes(StandardCharsets.UTF_8));
+                wrote = true;
+            }
+            if (wrote) {
+                flush();
+            }
+            if (stopping) {
+                break;
+            }
+            LockSupport.parkNanos(DRAIN_INTERVAL_NANOS);
+        }
+        closeFile();
+    }
+
+    private void write(byte[] bytes) {
+        try {
+            if (out != null && fileBytes > 0 && fileBytes + bytes.length > maxFileBytes) {
+                closeFile();
+                rotate();
+            }
+            if (out == null) {
+                Files.createDirectories(file.getParent());
+                out = new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+                fileBytes = Files.size(file);
+            }
+            out.write(bytes);
+            fileBytes += bytes.length;
+            written.increment();
+            if (failing) {
+                logger.info("Writing the audit log to {} again", file);
+                failing = false;
+            }
+        } catch (IOException e) {
+            writeFailed(e);
+        }
+    }
+
+    private void flush() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.flush();
+        } catch (IOException e) {
+            writeFailed(e);
+        }
+    }
+
+    private void writeFailed(IOException e) {
+        writeErrors.increment();
+        if (!failing) {
+            logger.warn("Failed to write the audit log to {}, events are being dropped: {}", file, e.getMessage());
+            failing = true;
+        }
+        // Reopen on the next event in case the file was moved or the disk freed up
+        closeFile();
+    }
+
+    private void rotate() throws IOException {
+        if (maxFiles <= 0) {
+            Files.deleteIfExists(file);
+            return;
+        }
+        Files.deleteIfExists(rotated(maxFiles));
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            try {
+                Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            } catch (NoSuchFileException e) {
+                // Fewer files than the limit so far
+            }
+        }
+        Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path rotated(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    private void closeFile() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            writeErrors.increment();
+        }
+        out = null;
+        fileBytes = 0;
+    }
+
+    private static void appendJson(StringBuilder out, Entry entry) {
+        out.append("{\"time\":").append(entry.timeMillis())
+                .append(",\"event\":\"").append(entry.type().label).append('"')
+                .append(",\"player\":\"").append(entry.player()).append('"');
+        appendField(out, "name", entry.username());
+        appendField(out, "ip", entry.address() != null ? entry.address().getHostAddress() : null);
+        appendField(out, "region", entry.region());
+        appendField(out, "server", entry.server());
+        appendField(out, "previous_server", entry.previousServer());
+        out.append("}\n");
+    }
+
+    private static void appendField(StringBuilder out, String field, String value) {
+        if (value == null) {
+            return;
+        }
+        out.append(",\"").append(field).append("\":");
+        JsonStrings.append(out, value);
+    }
+
+    @Override
+    public void collect(ExpositionWriter out) {
+        out.family("sigil_audit_events_total", "Player events written to the audit log", "counter");
+        out.sample("sigil_audit_events_total").value(written.sum());
+
+        out.family("sigil_audit_suppressed_total", "Player events left out of the audit log, by reason", "counter");
+        for (Suppression reason : Suppression.values()) {
+            out.sample("sigil_audit_suppressed_total").label("reason", reason.label).value(suppressed[reason.ordinal()].sum());
+        }
+
+        out.family("sigil_audit_write_errors_total", "Failed writes to the audit log file", "counter");
+        out.sample("sigil_audit_write_errors_total").value(writeErrors.sum());
+
+        out.family("sigil_audit_queue_length", "Player events waiting to be written to the audit log", "gauge");
+        out.sample("sigil_audit_queue_length").value(Math.max(0, queued.get()));
+    }
+}
@@ -0,0 +1,68 @@
+package com.confect1on.sigil.command;
+
+import com.confect1on.sigil.Sigil;
+import com.confect1on.sigil.config.SigilConfig;
+import com.velocitypowered.api.command.CommandSource;
+import com.velocitypowered.api.command.SimpleCommand;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.format.NamedTextColor;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The {@code /sigil} command. {@code /sigil reload} re-reads the config and applies it without
+ * restarting the proxy.
+ */
+public class SigilCommand implements SimpleCommand {
+    public static final String PERMISSION = "sigil.reload";
+
+    private final Sigil plugin;
+    private final Logger logger;
+
+    public SigilCommand(Sigil plugin, Logger logger) {
+        this.plugin = plugin;
+        this.logger = logger;
+    }
+
+    @Override
+    public void execute(Invocation invocation) {
+        CommandSource source = invocation.source();
+        String[] args = invocation.arguments();
+        if (args.length != 1 || !args[0].equalsIgnoreCase("reload")) {
+            source.sendMessage(Component.text("Usage: /" + invocation.alias() + " reload", NamedTextColor.RED));
+            return;
+        }
+
+        List<String> restartRequired;
+        try {
+            restartRequired = plugin.reload();
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("Failed to reload {}, keeping the current settings: {}", SigilConfig.FILE_NAME, e.getMessage());
+            source.sendMessage(Component.text("Failed to reload " + SigilConfig.FILE_NAME + ", keeping the current settings: "
+                    + e.getMessage(), NamedTextColor.RED));
+            return;
+        }
+
+        source.sendMessage(Component.text("Reloaded " + SigilConfig.FILE_NAME, NamedTextColor.GREEN));
+        if (!restartRequired.isEmpty()) {
+            source.sendMessage(Component.text("Changes to " + String.join(", ", restartRequired)
+                    + " take effect after a restart", NamedTextColor.YELLOW));
+        }
+    }
+
+    @Override
+    public List<String> suggest(Invocation invocation) {
+        String[] args = invocation.arguments();
+        if (args.length == 0 || (args.length == 1 && "reload".startsWith(args[0].toLowerCase()))) {
+            return List.of("reload");
+        }
+        return List.of();
+    }
+
+    @Override
+    public boolean hasPermission(Invocation invocation) {
+        return invocation.source().hasPermission(PERMISSION);
+    }
+}
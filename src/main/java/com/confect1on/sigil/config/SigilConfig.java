@@ -0,0 +1,405 @@
+package com.confect1on.sigil.config;
+
+import com.confect1on.sigil.metrics.LabelLimits;
+import com.confect1on.sigil.metrics.MetricsManager;
+import com.confect1on.sigil.metrics.NativeHistogram;
+import com.confect1on.sigil.metrics.SessionEventLog;
+import com.moandjiezana.toml.Toml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Settings read from {@code config.toml} in the plugin's data directory.
+ *
+ * The defaults live in the {@code config.toml} bundled with the plugin, which is copied to the
+ * data directory on first start. Keys missing from the data directory's file fall back to the
+ * bundled defaults, so a config written by an older version keeps working as settings are added.
+ *
+ * Settings are grouped the way they are applied: each collector's section is compared on reload
+ * and the collector is restarted only if it changed, while {@link GeoIp} and {@link Metrics} hold
+ * the settings baked into long-lived state, which only take effect on a restart.
+ */
+public record SigilConfig(boolean devMode, Duration pingTimeout, GeoIp geoIp, Metrics metrics, Http http,
+                          BackendProbe backendProbe, Periodic playerLatency, Periodic sessionReconcile,
+                          boolean connectionFunnel, Transfers backendTransfers, Periodic jvm, boolean gcPauses,
+                          Periodic schedulerLag, Audit auditLog, Aggregator aggregator, AggregationPush aggregationPush,
+                          Push push) {
+    public static final String FILE_NAME = "config.toml";
+
+    /**
+     * GeoIP resolver and cache sizing, applied on restart.
+     */
+    public record GeoIp(int resolverThreads, int resolverQueueCapacity, int cacheMaxSize, Duration cacheTtl,
+                        boolean cachePrefixMode) {
+    }
+
+    /**
+     * Layout of the recorded metrics, applied on restart.
+     * @param durationBuckets Ascending session duration bucket upper bounds in seconds
+     */
+    public record Metrics(List<Double> durationBuckets, boolean nativeHistograms, int nativeHistogramSchema,
+                          int nativeHistogramMaxBuckets, boolean sessionEvents, int sessionEventLogCapacity,
+                          boolean internalMetrics, Duration stateSaveInterval, LabelLimits labelLimits) {
+        public double[] durationBucketArray() {
+            return durationBuckets.stream().mapToDouble(Double::doubleValue).toArray();
+        }
+    }
+
+    /**
+     * The scrape endpoint.
+     */
+    public record Http(String bindAddress, int port, int threads, boolean virtualThreads, Duration snapshotInterval) {
+    }
+
+    /**
+     * A collector that only runs on a schedule.
+     */
+    public record Periodic(boolean enabled, Duration interval) {
+    }
+
+    public record BackendProbe(boolean enabled, Duration interval, Duration timeout, Duration jitter, int concurrency) {
+    }
+
+    public record Transfers(boolean enabled, Duration timeout, Duration sweepInterval, int maxInFlight) {
+    }
+
+    public record Audit(boolean enabled, String file, long maxFileBytes, int maxFiles, double sampleRate,
+                        int maxEventsPerSecond, int queueCapacity) {
+    }
+
+    public record Aggregator(boolean enabled, String bindAddress, int port, String secret, Duration proxyTimeout,
+                             int maxProxies, int maxSeries) {
+    }
+
+    public record AggregationPush(boolean enabled, String host, int port, String secret, String proxyId,
+                                  Duration interval, Duration timeout) {
+    }
+
+    public record Push(boolean enabled, URI endpoint, Map<String, String> headers, String proxyId, Duration interval,
+                       Duration timeout, int queueCapacity, int batchSize) {
+    }
+
+    /**
+     * Reads the config from the data directory, first writing the defaults there if it has none.
+     * @throws IllegalArgumentException If the file is not valid TOML or a setting is out of range
+     */
+    public static SigilConfig load(Path dataDirectory) throws IOException {
+        Path file = dataDirectory.resolve(FILE_NAME);
+        if (!Files.exists(file)) {
+            Files.createDirectories(dataDirectory);
+            try (InputStream in = openDefaults()) {
+                Files.copy(in, file);
+            }
+        }
+        Toml toml;
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            toml = new Toml(readDefaults()).read(reader);
+        } catch (IllegalStateException e) {
+            // toml4j reports syntax errors this way
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+        return parse(toml);
+    }
+
+    /**
+     * @return The bundled defaults
+     */
+    public static SigilConfig defaults() {
+        return parse(readDefaults());
+    }
+
+    /**
+     * @return The sections whose changed settings only take effect after a restart
+     */
+    public List<String> restartRequired(SigilConfig next) {
+        List<String> sections = new ArrayList<>();
+        if (!geoIp.equals(next.geoIp)) {
+            sections.add("geoip");
+        }
+        if (!metrics.equals(next.metrics)) {
+            sections.add("metrics");
+        }
+        return sections;
+    }
+
+    private static SigilConfig parse(Toml toml) {
+        Settings in = new Settings(toml);
+        String proxyId = in.string("proxy_id");
+        if (proxyId.isEmpty()) {
+            proxyId = hostName();
+        }
+
+        List<Double> durationBuckets = in.decimals("metrics.session_duration_buckets");
+        for (int i = 1; i < durationBuckets.size(); i++) {
+            if (durationBuckets.get(i) <= durationBuckets.get(i - 1)) {
+                throw new IllegalArgumentException("metrics.session_duration_buckets must be ascending");
+            }
+        }
+
+        return new SigilConfig(
+                in.flag("geoip.dev_mode"),
+                in.seconds("metrics.ping_timeout_seconds", 1),
+                new GeoIp(
+                        in.integer("geoip.resolver_threads", 1),
+                        in.integer("geoip.resolver_queue_capacity", 1),
+                        in.integer("geoip.cache_max_size", 1),
+                        in.seconds("geoip.cache_ttl_seconds", 1),
+                        in.flag("geoip.cache_prefix_mode")),
+                new Metrics(
+                        durationBuckets,
+                        in.flag("metrics.native_histograms"),
+                        in.integer("metrics.native_histogram_schema", NativeHistogram.MIN_SCHEMA, NativeHistogram.MAX_SCHEMA),
+                        in.integer("metrics.native_histogram_max_buckets", 2),
+                        in.flag("metrics.session_events"),
+                        in.integer("metrics.session_event_log_capacity", 1, SessionEventLog.MAX_CAPACITY),
+                        in.flag("metrics.internal_metrics"),
+                        in.seconds("metrics.state_save_interval_seconds", 1),
+                        new LabelLimits(
+                                in.integer("metrics.label_limits.regions", 0, MetricsManager.MAX_LABEL_VALUES),
+                                in.integer("metrics.label_limits.backends", 0, MetricsManager.MAX_LABEL_VALUES),
+                                in.integer("metrics.label_limits.asns", 0, MetricsManager.MAX_LABEL_VALUES),
+                                in.integer("metrics.label_limits.subdivisions", 0, MetricsManager.MAX_LABEL_VALUES))),
+                new Http(
+                        in.string("metrics.bind_address"),
+                        in.port("metrics.port"),
+                        in.integer("metrics.http_threads", 1),
+                        in.flag("metrics.http_virtual_threads"),
+                        in.millis("metrics.snapshot_interval_ms", 0)),
+                new BackendProbe(
+                        in.flag("backend_probe.enabled"),
+                        in.seconds("backend_probe.interval_seconds", 1),
+                        in.seconds("backend_probe.timeout_seconds", 1),
+                        in.seconds("backend_probe.jitter_seconds", 0),
+                        in.integer("backend_probe.concurrency", 1)),
+                new Periodic(
+                        in.flag("player_latency.enabled"),
+                        in.seconds("player_latency.interval_seconds", 1)),
+                new Periodic(
+                        in.flag("session_reconcile.enabled"),
+                        in.seconds("session_reconcile.interval_seconds", 1)),
+                in.flag("connection_funnel.enabled"),
+                new Transfers(
+                        in.flag("backend_transfers.enabled"),
+                        in.seconds("backend_transfers.timeout_seconds", 1),
+                        in.seconds("backend_transfers.sweep_interval_seconds", 1),
+                        in.integer("backend_transfers.max_in_flight", 1)),
+                new Periodic(
+                        in.flag("jvm.enabled"),
+                        in.seconds("jvm.interval_seconds", 1)),
+                in.flag("gc_pauses.enabled"),
+                new Periodic(
+                        in.flag("scheduler_lag.enabled"),
+                        in.millis("scheduler_lag.interval_ms", 1)),
+                new Audit(
+                        in.flag("audit_log.enabled"),
+                        in.string("audit_log.file"),
+                        in.integer("audit_log.max_file_size_mb", 1) * 1024L * 1024,
+                        in.integer("audit_log.max_files", 0),
+                        in.fraction("audit_log.sample_rate"),
+                        in.integer("audit_log.max_events_per_second", 1),
+                        in.integer("audit_log.queue_capacity", 1)),
+                new Aggregator(
+                        in.flag("aggregator.enabled"),
+                        in.string("aggregator.bind_address"),
+                        in.port("aggregator.port"),
+                        in.secret("aggregator.secret", "aggregator.enabled"),
+                        in.seconds("aggregator.proxy_timeout_seconds", 1),
+                        in.integer("aggregator.max_proxies", 1),
+                        in.integer("aggregator.max_series", 1)),
+                new AggregationPush(
+                        in.flag("aggregation_push.enabled"),
+                        in.string("aggregation_push.host"),
+                        in.port("aggregation_push.port"),
+                        in.secret("aggregation_push.secret", "aggregation_push.enabled"),
+                        proxyId,
+                        in.seconds("aggregation_push.interval_seconds", 1),
+                        in.seconds("aggregation_push.timeout_seconds", 1)),
+                new Push(
+                        in.flag("push.enabled"),
+                        in.uri("push.endpoint"),
+                        in.strings("push.headers"),
+                        proxyId,
+                        in.seconds("push.interval_seconds", 1),
+                        in.seconds("push.timeout_seconds", 1),
+                        in.integer("push.queue_capacity", 1),
+                        in.integer("push.batch_size", 1)));
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "proxy";
+        }
+    }
+
+    private static InputStream openDefaults() throws IOException {
+        InputStream in = SigilConfig.class.getClassLoader().getResourceAsStream(FILE_NAME);
+        if (in == null) {
+            throw new IOException(FILE_NAME + " not found in plugin resources");
+        }
+        return in;
+    }
+
+    private static Toml readDefaults() {
+        try (Reader reader = new InputStreamReader(openDefaults(), StandardCharsets.UTF_8)) {
+            return new Toml().read(reader);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read the bundled " + FILE_NAME, e);
+        }
+    }
+
+    /**
+     * Typed, range-checked access to dotted keys. toml4j throws {@link ClassCastException} when a
+     * value has the wrong type, which is turned into an error naming the key.
+     */
+    private record Settings(Toml toml) {
+        boolean flag(String key) {
+            try {
+                return toml.getBoolean(key);
+            } catch (ClassCastException e) {
+                throw new IllegalArgumentException(key + " must be true or false");
+            }
+        }
+
+        String string(String key) {
+            try {
+                return toml.getString(key);
+            } catch (ClassCastException e) {
+                throw new IllegalArgumentException(key + " must be a string");
+            }
+        }
+
+        long number(String key) {
+            try {
+                return toml.getLong(key);
+            } catch (ClassCastException e) {
+                throw new IllegalArgumentException(key + " must be a whole number");
+            }
+        }
+
+        int integer(String key, int min) {
+            return integer(key, min, Integer.MAX_VALUE);
+        }
+
+        int integer(String key, int min, int max) {
+            long value = number(key);
+            if (value < min || value > max) {
+                throw new IllegalArgumentException(key + (max == Integer.MAX_VALUE
+                        ? " must be at least " + min
+                        : " must be between " + min + " and " + max));
+            }
+            return (int) value;
+        }
+
+        /**
+         * @param enabledKey The switch of the section; the secret is required while it is on
+         */
+        String secret(String key, String enabledKey) {
+            String value = string(key);
+            if (value.isEmpty() && flag(enabledKey)) {
+                throw new IllegalArgumentException(key + " must be set when " + enabledKey + " is true");
+            }
+            return value;
+        }
+
+        int port(String key) {
+            long value = number(key);
+            if (value < 1 || value > 65535) {
+                throw new IllegalArgumentException(key + " must be between 1 and 65535");
+            }
+            return (int) value;
+        }
+
+        Duration seconds(String key, long min) {
+            long value = number(key);
+            if (value < min) {
+                throw new IllegalArgumentException(key + " must be at least " + min);
+            }
+            return Duration.ofSeconds(value);
+        }
+
+        Duration millis(String key, long min) {
+            long value = number(key);
+            if (value < min) {
+                throw new IllegalArgumentException(key + " must be at least " + min);
+            }
+            return Duration.ofMillis(value);
+        }
+
+        double fraction(String key) {
+            double value;
+            try {
+                value = toml.getDouble(key);
+            } catch (ClassCastException e) {
+                // Written as a whole number, e.g. 1 rather than 1.0
+                value = number(key);
+            }
+            if (!(value >= 0 && value <= 1)) {
+                throw new IllegalArgumentException(key + " must be between 0 and 1");
+            }
+            return value;
+        }
+
+        List<Double> decimals(String key) {
+            List<Object> values;
+            try {
+                values = toml.getList(key);
+            } catch (ClassCastException e) {
+                throw new IllegalArgumentException(key + " must be a list of numbers");
+            }
+            List<Double> result = new ArrayList<>(values.size());
+            for (Object value : values) {
+                if (!(value instanceof Number number)) {
+                    throw new IllegalArgumentException(key + " must be a list of numbers");
+                }
+                result.add(number.doubleValue());
+            }
+            if (result.isEmpty()) {
+                throw new IllegalArgumentException(key + " must not be empty");
+            }
+            return List.copyOf(result);
+        }
+
+        URI uri(String key) {
+            try {
+                return URI.create(string(key));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(key + " is not a valid URL: " + e.getMessage());
+            }
+        }
+
+        Map<String, String> strings(String key) {
+            Toml table;
+            try {
+                table = toml.getTable(key);
+            } catch (ClassCastException e) {
+                throw new IllegalArgumentException(key + " must be a table");
+            }
+            Map<String, String> result = new LinkedHashMap<>();
+            if (table != null) {
+                for (Map.Entry<String, Object> entry : table.entrySet()) {
+                    if (!(entry.getValue() instanceof String value)) {
+                        throw new IllegalArgumentException(key + "." + entry.getKey() + " must be a string");
+                    }
+                    result.put(entry.getKey(), value);
+                }
+            }
+            return Map.copyOf(result);
+        }
+    }
+}
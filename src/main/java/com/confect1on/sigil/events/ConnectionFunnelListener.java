@@ -0,0 +1,176 @@
+package com.confect1on.sigil.events;
+
+import com.confect1on.sigil.geo.GeoIpCache;
+import com.confect1on.sigil.geo.GeoLocation;
+import com.confect1on.sigil.metrics.ExpositionWriter;
+import com.confect1on.sigil.metrics.LabelLimiter;
+import com.confect1on.sigil.metrics.LabeledSeries;
+import com.confect1on.sigil.metrics.MetricsCollector;
+import com.confect1on.sigil.metrics.RateCounter;
+import com.velocitypowered.api.event.PostOrder;
+import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.connection.ConnectionHandshakeEvent;
+import com.velocitypowered.api.event.connection.LoginEvent;
+import com.velocitypowered.api.event.connection.PostLoginEvent;
+import com.velocitypowered.api.event.connection.PreLoginEvent;
+import com.velocitypowered.api.event.player.KickedFromServerEvent;
+import com.velocitypowered.api.event.player.ServerPreConnectEvent;
+
+import java.net.InetSocketAddress;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Counts connections at every step from handshake to joining a backend, plus failed logins and kicks,
+ * so floods and outages show up as per-second rates rather than only in the session gauge.
+ *
+ * The handshake and pre-login steps, where floods arrive, only increment a counter: they carry no
+ * region, as an address is not resolved before login and looking it up in the cache would allocate
+ * and lock on every connection. From login on, steps are labelled by region when the address is
+ * already in the GeoIP cache; this never triggers a lookup. Regions are bounded by a
+ * {@link LabelLimiter} shared by all steps. Listeners run last so they see the final result after
+ * other plugins have had their say.
+ */
+public class ConnectionFunnelListener implements MetricsCollector {
+    private static final String UNKNOWN_REGION = GeoLocation.UNKNOWN.region();
+    private static final String[] WINDOW_LABELS = new String[RateCounter.WINDOWS.length];
+
+    static {
+        for (int i = 0; i < WINDOW_LABELS.length; i++) {
+            WINDOW_LABELS[i] = RateCounter.WINDOWS[i] + "s";
+        }
+    }
+
+    /**
+     * Steps of the connection funnel.
+     */
+    private enum Stage {
+        HANDSHAKE("handshake"),
+        PRE_LOGIN("pre_login"),
+        PRE_LOGIN_DENIED("pre_login_denied"),
+        LOGIN_DENIED("login_denied"),
+        LOGIN("login"),
+        POST_LOGIN("post_login"),
+        SERVER_CONNECT("server_connect"),
+        SERVER_SWITCH("server_switch");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        boolean byRegion() {
+            return this != HANDSHAKE && this != PRE_LOGIN && this != PRE_LOGIN_DENIED;
+        }
+    }
+
+    private final GeoIpCache geoIpCache;
+    private final LabelLimiter regionLimiter;
+    private final Map<Stage, RateCounter> counters = new EnumMap<>(Stage.class);
+    private final Map<Stage, LabeledSeries<RateCounter>> countersByRegion = new EnumMap<>(Stage.class);
+    private final RateCounter kickedWhileConnecting = new RateCounter();
+    private final RateCounter kickedWhilePlaying = new RateCounter();
+
+    /**
+     * @param geoIpCache Cache to take regions from
+     * @param regionLimit Maximum number of regions tracked, the rest are counted as "other"
+     */
+    public ConnectionFunnelListener(GeoIpCache geoIpCache, int regionLimit) {
+        this.geoIpCache = geoIpCache;
+        this.regionLimiter = new LabelLimiter("sigil_connection_funnel_total", regionLimit, Set.of(UNKNOWN_REGION));
+        for (Stage stage : Stage.values()) {
+            if (stage.byRegion()) {
+                countersByRegion.put(stage, new LabeledSeries<>(regionLimiter, RateCounter::new));
+            } else {
+                counters.put(stage, new RateCounter());
+            }
+        }
+    }
+
+    @Subscribe(order = PostOrder.LAST)
+    public void onHandshake(ConnectionHandshakeEvent event) {
+        counters.get(Stage.HANDSHAKE).increment();
+    }
+
+    @Subscribe(order = PostOrder.LAST)
+    public void onPreLogin(PreLoginEvent event) {
+        counters.get(Stage.PRE_LOGIN).increment();
+        if (!event.getResult().isAllowed()) {
+            counters.get(Stage.PRE_LOGIN_DENIED).increment();
+        }
+    }
+
+    @Subscribe(order = PostOrder.LAST)
+    public void onLogin(LoginEvent event) {
+        InetSocketAddress address = event.getPlayer().getRemoteAddress();
+        record(event.getResult().isAllowed() ? Stage.LOGIN : Stage.LOGIN_DENIED, address);
+    }
+
+    @Subscribe(order = PostOrder.LAST)
+    public void onPostLogin(PostLoginEvent event) {
+        record(Stage.POST_LOGIN, event.getPlayer().getRemoteAddress());
+    }
+
+    @Subscribe(order = PostOrder.LAST)
+    public void onServerPreConnect(ServerPreConnectEvent event) {
+        if (!event.getResult().isAllowed()) {
+            return;
+        }
+        boolean switching = event.getPlayer().getCurrentServer().isPresent();
+        record(switching ? Stage.SERVER_SWITCH : Stage.SERVER_CONNECT, event.getPlayer().getRemoteAddress());
+    }
+
+    @Subscribe(order = PostOrder.LAST)
+    public void onKicked(KickedFromServerEvent event) {
+        (event.kickedDuringServerConnect() ? kickedWhileConnecting : kickedWhilePlaying).increment();
+    }
+
+    private void record(Stage stage, InetSocketAddress address) {
+        countersByRegion.get(stage).get(regionOf(address)).increment();
+    }
+
+    private String regionOf(InetSocketAddress address) {
+        if (address == null || address.getAddress() == null) {
+            return UNKNOWN_REGION;
+        }
+        GeoLocation location = geoIpCache.peek(address.getAddress());
+        return location != null ? location.region() : UNKNOWN_REGION;
+    }
+
+    @Override
+    public void collect(ExpositionWriter out) {
+        out.family("sigil_connection_funnel_total", "Connections reaching each step from handshake to backend, by region from login on", "counter");
+        counters.forEach((stage, counter) ->
+                out.sample("sigil_connection_funnel_total").label("stage", stage.label).value(counter.total()));
+        countersByRegion.forEach((stage, byRegion) -> byRegion.forEach((region, counter) ->
+                out.sample("sigil_connection_funnel_total").label("stage", stage.label).label("region", region).value(counter.total())));
+
+        out.family("sigil_connection_funnel_rate", "Connections per second reaching each step, over the window", "gauge");
+        counters.forEach((stage, counter) -> {
+            for (int i = 0; i < WINDOW_LABELS.length; i++) {
+                out.sample("sigil_connection_funnel_rate").label("stage", stage.label)
+                        .label("window", WINDOW_LABELS[i]).value(counter.rate(RateCounter.WINDOWS[i]));
+            }
+        });
+        countersByRegion.forEach((stage, byRegion) -> byRegion.forEach((region, counter) -> {
+            for (int i = 0; i < WINDOW_LABELS.length; i++) {
+                out.sample("sigil_connection_funnel_rate").label("stage", stage.label).label("region", region)
+                        .label("window", WINDOW_LABELS[i]).value(counter.rate(RateCounter.WINDOWS[i]));
+            }
+        }));
+
+        out.family("sigil_kicks_total", "Players kicked from a backend, by whether it happened while connecting to it", "counter");
+        out.sample("sigil_kicks_total").label("reason", "connect_failed").value(kickedWhileConnecting.total());
+        out.sample("sigil_kicks_total").label("reason", "kicked").value(kickedWhilePlaying.total());
+
+        out.family("sigil_kicks_rate", "Players kicked from a backend per second, over the window", "gauge");
+        for (int i = 0; i < WINDOW_LABELS.length; i++) {
+            out.sample("sigil_kicks_rate").label("reason", "connect_failed").label("window", WINDOW_LABELS[i])
+                    .value(kickedWhileConnecting.rate(RateCounter.WINDOWS[i]));
+            out.sample("sigil_kicks_rate").label("reason", "kicked").label("window", WINDOW_LABELS[i])
+                    .value(kickedWhilePlaying.rate(RateCounter.WINDOWS[i]));
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package com.confect1on.sigil.events;
 
-import com.confect1on.sigil.geo.GeoIpService;
+import com.confect1on.sigil.audit.AuditLog;
+import com.confect1on.sigil.geo.GeoIpResolver;
+import com.confect1on.sigil.metrics.InternalMetrics;
+import com.confect1on.sigil.metrics.InternalMetrics.Event;
 import com.confect1on.sigil.metrics.MetricsManager;
 import com.velocitypowered.api.event.Subscribe;
 import com.velocitypowered.api.event.connection.DisconnectEvent;
@@ -11,6 +14,7 @@ import org.slf4j.Logger;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.UUID;
 import com.velocitypowered.api.proxy.ProxyServer;
 
 /**
@@ -18,21 +22,41 @@ import com.velocitypowered.api.proxy.ProxyServer;
  */
 public class PlayerEventListener {
     private final MetricsManager metricsManager;
-    private final GeoIpService geoIpService;
+    private final GeoIpResolver geoIpResolver;
     private final Logger logger;
+    private final InternalMetrics internalMetrics;
+    private volatile AuditLog auditLog;
 
-    public PlayerEventListener(MetricsManager metricsManager, GeoIpService geoIpService, Logger logger, ProxyServer proxy) {
+    /**
+     * @param auditLog Receives every join, resolved region, backend switch and disconnect, or null to audit nothing
+     */
+    public PlayerEventListener(MetricsManager metricsManager, GeoIpResolver geoIpResolver, Logger logger, ProxyServer proxy,
+                               InternalMetrics internalMetrics, AuditLog auditLog) {
         this.metricsManager = metricsManager;
-        this.geoIpService = geoIpService;
+        this.geoIpResolver = geoIpResolver;
         this.logger = logger;
+        this.internalMetrics = internalMetrics;
+        this.auditLog = auditLog;
     }
 
-    public void startLatencyUpdates() {
-        // No longer needed
+    /**
+     * @param auditLog The audit log to write to from now on, or null to stop auditing
+     */
+    public void setAuditLog(AuditLog auditLog) {
+        this.auditLog = auditLog;
     }
 
     @Subscribe
     public void onPlayerJoin(PostLoginEvent event) {
+        long start = internalMetrics.startNanos();
+        try {
+            handlePlayerJoin(event);
+        } finally {
+            internalMetrics.recordEventHandler(Event.JOIN, start);
+        }
+    }
+
+    private void handlePlayerJoin(PostLoginEvent event) {
         Player player = event.getPlayer();
         InetSocketAddress socketAddress = player.getRemoteAddress();
         
@@ -47,31 +71,68 @@ public class PlayerEventListener {
             return;
         }
 
-        logger.info("Player {} connecting from IP: {}", player.getUsername(), playerIp);
-        
-        String region = geoIpService.getCountryCode(playerIp)
-                                  .orElse("UNKNOWN");
-        
-        logger.info("Resolved region for {} ({}): {}", player.getUsername(), playerIp, region);
-        
-        metricsManager.playerConnected(event.getPlayer(), region);
+        // Parameterised so the address is only formatted when debug logging is on
+        logger.debug("Player {} connecting from IP: {}", player.getUsername(), playerIp);
+        UUID playerId = player.getUniqueId();
+        AuditLog auditLog = this.auditLog;
+        if (auditLog != null) {
+            auditLog.join(playerId, player.getUsername(), playerIp);
+        }
+
+        // Count the session straight away and resolve its region off the event thread
+        metricsManager.playerConnected(player, MetricsManager.PENDING_REGION);
+        geoIpResolver.resolve(playerIp, location -> {
+            logger.debug("Resolved region for {} ({}): {}", player.getUsername(), playerIp, location.region());
+            AuditLog regionAuditLog = this.auditLog;
+            if (regionAuditLog != null) {
+                regionAuditLog.region(playerId, player.getUsername(), location.region());
+            }
+            metricsManager.updatePlayerLocation(playerId, location.region(), location.asn(), location.subdivision());
+        });
     }
 
     @Subscribe
     public void onPlayerDisconnect(DisconnectEvent event) {
+        long start = internalMetrics.startNanos();
+        try {
+            handlePlayerDisconnect(event);
+        } finally {
+            internalMetrics.recordEventHandler(Event.DISCONNECT, start);
+        }
+    }
+
+    private void handlePlayerDisconnect(DisconnectEvent event) {
         Player player = event.getPlayer();
         logger.debug("Player {} disconnected from {}", 
             player.getUsername(), 
             player.getRemoteAddress().getAddress());
-            
+        AuditLog auditLog = this.auditLog;
+        if (auditLog != null) {
+            auditLog.disconnect(player.getUniqueId(), player.getUsername());
+        }
+
         metricsManager.playerDisconnected(event.getPlayer().getUniqueId());
     }
 
     @Subscribe
     public void onServerConnected(ServerConnectedEvent event) {
+        long start = internalMetrics.startNanos();
+        try {
+            handleServerConnected(event);
+        } finally {
+            internalMetrics.recordEventHandler(Event.SERVER_CONNECTED, start);
+        }
+    }
+
+    private void handleServerConnected(ServerConnectedEvent event) {
         Player player = event.getPlayer();
         String server = event.getServer().getServerInfo().getName();
-        logger.info("Player {} connected to backend server {}", player.getUsername(), server);
+        String previousServer = event.getPreviousServer().map(previous -> previous.getServerInfo().getName()).orElse(null);
+        logger.debug("Player {} connected to backend server {}", player.getUsername(), server);
+        AuditLog auditLog = this.auditLog;
+        if (auditLog != null) {
+            auditLog.serverSwitch(player.getUniqueId(), player.getUsername(), server, previousServer);
+        }
         metricsManager.updatePlayerServer(player.getUniqueId(), event.getServer());
     }
 }
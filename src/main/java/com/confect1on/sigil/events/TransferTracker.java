@@ -0,0 +1,210 @@
+package com.confect1on.sigil.events;
+
+import com.confect1on.sigil.metrics.ExpositionWriter;
+import com.confect1on.sigil.metrics.Histogram;
+import com.confect1on.sigil.metrics.LabelLimiter;
+import com.confect1on.sigil.metrics.LabeledSeries;
+import com.confect1on.sigil.metrics.MetricsCollector;
+import com.velocitypowered.api.event.PostOrder;
+import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.connection.DisconnectEvent;
+import com.velocitypowered.api.event.player.KickedFromServerEvent;
+import com.velocitypowered.api.event.player.ServerConnectedEvent;
+import com.velocitypowered.api.event.player.ServerPreConnectEvent;
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.proxy.server.RegisteredServer;
+import org.slf4j.Logger;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Times how long players wait between {@link ServerPreConnectEvent} and {@link ServerConnectedEvent}
+ * and counts transfers that never complete, per target backend.
+ *
+ * Each player has at most one transfer in flight. Transfers that neither complete nor fail within
+ * the timeout, e.g. because the backend hangs, are expired by the periodic {@link #run() sweep} and
+ * counted as timeouts, and the number in flight is capped so memory stays bounded however many
+ * players pile up on a dead backend. A connect to the backend the player is already on, or already
+ * connecting to, is not tracked: Velocity answers it without connecting, so it would never complete.
+ * Target backends are bounded by a {@link LabelLimiter}.
+ */
+public class TransferTracker implements Runnable, MetricsCollector {
+    private static final double[] TRANSFER_BUCKETS = {
+        0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30
+    };
+
+    /**
+     * Why a transfer did not complete.
+     */
+    private enum Failure {
+        KICKED("kicked"),
+        DISCONNECTED("disconnected"),
+        TIMEOUT("timeout"),
+        SUPERSEDED("superseded");
+
+        private final String label;
+
+        Failure(String label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * A transfer in flight.
+     * @param source Backend the player is leaving, or null on the initial connect
+     */
+    private record Transfer(String source, String target, long startNanos) {
+    }
+
+    /**
+     * Outcomes of transfers to one backend.
+     */
+    private static final class TargetStats {
+        final Histogram connectSeconds = new Histogram(TRANSFER_BUCKETS);
+        final Histogram switchSeconds = new Histogram(TRANSFER_BUCKETS);
+        final LongAdder[] failures = new LongAdder[Failure.values().length];
+
+        TargetStats() {
+            for (int i = 0; i < failures.length; i++) {
+                failures[i] = new LongAdder();
+            }
+        }
+    }
+
+    private final Logger logger;
+    private final long timeoutNanos;
+    private final int maxInFlight;
+    private final Map<UUID, Transfer> inFlight = new ConcurrentHashMap<>();
+    private final LabeledSeries<TargetStats> stats;
+    private final LongAdder untracked = new LongAdder();
+
+    /**
+     * @param timeout How long a transfer may take before it is counted as timed out
+     * @param maxInFlight Maximum number of transfers tracked at once; further ones are only counted as untracked
+     * @param backendLimit Maximum number of target backends with their own series, the rest are counted as "other"
+     */
+    public TransferTracker(Logger logger, Duration timeout, int maxInFlight, int backendLimit) {
+        this.logger = logger;
+        this.timeoutNanos = timeout.toNanos();
+        this.maxInFlight = maxInFlight;
+        this.stats = new LabeledSeries<>(new LabelLimiter("sigil_backend_transfer_seconds", backendLimit, Set.of()),
+                TargetStats::new);
+    }
+
+    @Subscribe(order = PostOrder.LAST)
+    public void onServerPreConnect(ServerPreConnectEvent event) {
+        if (!event.getResult().isAllowed()) {
+            return;
+        }
+        Player player = event.getPlayer();
+        RegisteredServer target = event.getResult().getServer().orElse(event.getOriginalServer());
+        String targetName = target.getServerInfo().getName();
+        String source = player.getCurrentServer().map(connection -> connection.getServerInfo().getName()).orElse(null);
+        UUID playerId = player.getUniqueId();
+
+        // Resolved by Velocity as ALREADY_CONNECTED or CONNECTION_IN_PROGRESS, which fire neither Connected nor Kicked
+        if (targetName.equals(source)) {
+            return;
+        }
+        Transfer pending = inFlight.get(playerId);
+        if (pending != null && pending.target().equals(targetName)) {
+            return;
+        }
+
+        if (inFlight.size() >= maxInFlight && !inFlight.containsKey(playerId)) {
+            untracked.increment();
+            return;
+        }
+        Transfer previous = inFlight.put(playerId, new Transfer(source, targetName, System.nanoTime()));
+        if (previous != null) {
+            fail(previous, Failure.SUPERSEDED);
+        }
+    }
+
+    @Subscribe(order = PostOrder.LAST)
+    public void onServerConnected(ServerConnectedEvent event) {
+        Transfer transfer = inFlight.remove(event.getPlayer().getUniqueId());
+        if (transfer == null) {
+            return;
+        }
+        double seconds = (System.nanoTime() - transfer.startNanos()) / 1e9;
+        TargetStats target = stats.get(transfer.target());
+        (transfer.source() == null ? target.connectSeconds : target.switchSeconds).observe(seconds);
+    }
+
+    @Subscribe(order = PostOrder.LAST)
+    public void onKicked(KickedFromServerEvent event) {
+        if (!event.kickedDuringServerConnect()) {
+            return;
+        }
+        Transfer transfer = inFlight.remove(event.getPlayer().getUniqueId());
+        if (transfer != null) {
+            fail(transfer, Failure.KICKED);
+        }
+    }
+
+    @Subscribe(order = PostOrder.LAST)
+    public void onDisconnect(DisconnectEvent event) {
+        Transfer transfer = inFlight.remove(event.getPlayer().getUniqueId());
+        if (transfer != null) {
+            fail(transfer, Failure.DISCONNECTED);
+        }
+    }
+
+    /**
+     * Expires transfers that have been in flight for longer than the timeout.
+     */
+    @Override
+    public void run() {
+        long now = System.nanoTime();
+        int expired = 0;
+        for (Map.Entry<UUID, Transfer> entry : inFlight.entrySet()) {
+            Transfer transfer = entry.getValue();
+            // Only remove the exact transfer seen, a new one may have replaced it since
+            if (now - transfer.startNanos() > timeoutNanos && inFlight.remove(entry.getKey(), transfer)) {
+                fail(transfer, Failure.TIMEOUT);
+                expired++;
+            }
+        }
+        if (expired > 0) {
+            logger.debug("Expired {} backend transfers that did not complete in time", expired);
+        }
+    }
+
+    private void fail(Transfer transfer, Failure failure) {
+        stats.get(transfer.target()).failures[failure.ordinal()].increment();
+        logger.debug("Transfer from {} to {} failed: {}", transfer.source(), transfer.target(), failure.label);
+    }
+
+    @Override
+    public void collect(ExpositionWriter out) {
+        out.family("sigil_backend_transfer_seconds", "Time from choosing a backend to being connected to it, by target backend", "histogram");
+        stats.forEach((server, target) -> {
+            if (target.connectSeconds.count() > 0) {
+                out.sample("sigil_backend_transfer_seconds").label("server", server).label("kind", "connect").histogram(target.connectSeconds);
+            }
+            if (target.switchSeconds.count() > 0) {
+                out.sample("sigil_backend_transfer_seconds").label("server", server).label("kind", "switch").histogram(target.switchSeconds);
+            }
+        });
+
+        out.family("sigil_backend_transfer_failures_total", "Backend transfers that did not complete, by target backend and reason", "counter");
+        stats.forEach((server, target) -> {
+            for (Failure failure : Failure.values()) {
+                out.sample("sigil_backend_transfer_failures_total").label("server", server).label("reason", failure.label)
+                        .value(target.failures[failure.ordinal()].sum());
+            }
+        });
+
+        out.family("sigil_backend_transfers_in_flight", "Backend transfers currently waiting to complete", "gauge");
+        out.sample("sigil_backend_transfers_in_flight").value(inFlight.size());
+
+        out.family("sigil_backend_transfers_untracked_total", "Backend transfers not timed because too many were already in flight", "counter");
+        out.sample("sigil_backend_transfers_untracked_total").value(untracked.sum());
+    }
+}
@@ -0,0 +1,196 @@
+package com.confect1on.sigil.geo;
+
+import com.confect1on.sigil.metrics.ExpositionWriter;
+import com.confect1on.sigil.metrics.MetricsCollector;
+
+import java.net.InetAddress;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, concurrent cache of resolved locations keyed on address bytes.
+ * Entries are evicted least-recently-used once the size limit is reached, and expire after a TTL.
+ * In prefix mode addresses are cached per /24 (IPv4) or /48 (IPv6) network instead of per address,
+ * which suits players reconnecting from dynamic addresses within the same ISP block.
+ */
+public class GeoIpCache implements MetricsCollector {
+    private static final int MAX_SEGMENTS = 16;
+    private static final int IPV4_PREFIX_BITS = 24;
+    private static final int IPV6_PREFIX_BITS = 48;
+
+    private final Segment[] segments;
+    private final int maxSize;
+    private final long ttlNanos;
+    private final boolean prefixMode;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder sizeEvictions = new LongAdder();
+    private final LongAdder expiredEvictions = new LongAdder();
+
+    /**
+     * @param maxSize Maximum number of cached entries across all segments
+     * @param ttl How long an entry stays valid, or zero to keep entries until evicted
+     * @param prefixMode Whether to cache per network prefix rather than per address
+     */
+    public GeoIpCache(int maxSize, Duration ttl, boolean prefixMode) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("GeoIP cache size must be positive: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.ttlNanos = ttl.toNanos();
+        this.prefixMode = prefixMode;
+
+        int segmentCount = Math.min(MAX_SEGMENTS, Integer.highestOneBit(maxSize));
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(Math.max(1, maxSize / segmentCount));
+        }
+    }
+
+    /**
+     * Looks up a cached location.
+     * @param ip The address to look up
+     * @return The cached location, or null on a miss
+     */
+    public GeoLocation get(InetAddress ip) {
+        AddressKey key = keyFor(ip);
+        Segment segment = segmentFor(key);
+        Entry entry;
+        synchronized (segment) {
+            entry = segment.get(key);
+            if (entry != null && isExpired(entry)) {
+                segment.remove(key);
+                expiredEvictions.increment();
+                entry = null;
+            }
+        }
+
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.location();
+    }
+
+    /**
+     * Looks up a cached location without counting a hit or miss, for callers that only want a
+     * location if one is already known and never resolve on a miss.
+     * @param ip The address to look up
+     * @return The cached location, or null if none is cached or it has expired
+     */
+    public GeoLocation peek(InetAddress ip) {
+        AddressKey key = keyFor(ip);
+        Segment segment = segmentFor(key);
+        Entry entry;
+        synchronized (segment) {
+            entry = segment.get(key);
+        }
+        return entry != null && !isExpired(entry) ? entry.location() : null;
+    }
+
+    public void put(InetAddress ip, GeoLocation location) {
+        AddressKey key = keyFor(ip);
+        Segment segment = segmentFor(key);
+        long expiresAt = ttlNanos > 0 ? System.nanoTime() + ttlNanos : Long.MAX_VALUE;
+        synchronized (segment) {
+            segment.put(key, new Entry(location, expiresAt));
+        }
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    private boolean isExpired(Entry entry) {
+        return entry.expiresAt() != Long.MAX_VALUE && System.nanoTime() - entry.expiresAt() > 0;
+    }
+
+    private Segment segmentFor(AddressKey key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return segments[hash & (segments.length - 1)];
+    }
+
+    private AddressKey keyFor(InetAddress ip) {
+        byte[] address = ip.getAddress();
+        int prefixBits = prefixMode
+                ? (address.length == 4 ? IPV4_PREFIX_BITS : IPV6_PREFIX_BITS)
+                : address.length * 8;
+
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < address.length; i++) {
+            int keep = Math.max(0, Math.min(8, prefixBits - i * 8));
+            long masked = address[i] & (0xFF00 >>> keep) & 0xFF;
+            if (i < 8) {
+                high = (high << 8) | masked;
+            } else {
+                low = (low << 8) | masked;
+            }
+        }
+        // Keep IPv4 and IPv4-compatible IPv6 keys apart
+        return new AddressKey(high, low, address.length);
+    }
+
+    @Override
+    public void collect(ExpositionWriter out) {
+        out.family("sigil_geoip_cache_hits_total", "GeoIP lookups served from the cache", "counter");
+        out.sample("sigil_geoip_cache_hits_total").value(hits.sum());
+
+        out.family("sigil_geoip_cache_misses_total", "GeoIP lookups that went to the database", "counter");
+        out.sample("sigil_geoip_cache_misses_total").value(misses.sum());
+
+        out.family("sigil_geoip_cache_evictions_total", "Entries removed from the GeoIP cache", "counter");
+        out.sample("sigil_geoip_cache_evictions_total").label("cause", "size").value(sizeEvictions.sum());
+        out.sample("sigil_geoip_cache_evictions_total").label("cause", "expired").value(expiredEvictions.sum());
+
+        out.family("sigil_geoip_cache_size", "Entries currently held in the GeoIP cache", "gauge");
+        out.sample("sigil_geoip_cache_size").value(size());
+
+        out.family("sigil_geoip_cache_max_size", "Configured GeoIP cache size limit", "gauge");
+        out.sample("sigil_geoip_cache_max_size").value(maxSize);
+    }
+
+    private record AddressKey(long high, long low, int length) {}
+
+    private record Entry(GeoLocation location, long expiresAt) {}
+
+    /**
+     * One LRU segment; all access is synchronized on the segment itself.
+     */
+    private final class Segment extends LinkedHashMap<AddressKey, Entry> {
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<AddressKey, Entry> eldest) {
+            if (size() > capacity) {
+                sizeEvictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.confect1on.sigil.geo;
+
+import com.maxmind.db.CHMCache;
+import com.maxmind.db.Reader;
+import com.maxmind.geoip2.DatabaseReader;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A memory-mapped MaxMind database with a reference count, so it can be swapped out while lookups
+ * are still running against it. The holder's own reference is dropped by {@link #retire()}; the
+ * reader is closed once the last in-flight lookup has released it.
+ *
+ * The file is mapped rather than read into the heap. Updates must replace the file (write a new
+ * file and move it into place, as geoipupdate does) rather than overwrite it, or the live mapping
+ * would see the new bytes mid-lookup.
+ */
+final class GeoIpDatabase {
+    private static final int NODE_CACHE_CAPACITY = 4096;
+
+    private final DatabaseReader reader;
+    private final Logger logger;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private GeoIpDatabase(DatabaseReader reader, Logger logger) {
+        this.reader = reader;
+        this.logger = logger;
+    }
+
+    /**
+     * Opens and validates a database file.
+     * @param path The .mmdb file
+     * @param expectedType Substring the database type must contain, e.g. "Country" or "ASN"
+     * @throws IOException If the file cannot be read, is not a MaxMind database, or is of the wrong type
+     */
+    static GeoIpDatabase open(Path path, String expectedType, Logger logger) throws IOException {
+        DatabaseReader reader = new DatabaseReader.Builder(path.toFile())
+                .fileMode(Reader.FileMode.MEMORY_MAPPED)
+                .withCache(new CHMCache(NODE_CACHE_CAPACITY))
+                .build();
+        try {
+            String type = reader.getMetadata().getDatabaseType();
+            if (type == null || !type.contains(expectedType)) {
+                throw new IOException("Expected a " + expectedType + " database but " + path.getFileName() + " is " + type);
+            }
+            // Walk the search tree and decode a record to catch truncated or corrupt files up front
+            switch (expectedType) {
+                case "ASN" -> reader.tryAsn(InetAddress.getByName("8.8.8.8"));
+                case "City" -> reader.tryCity(InetAddress.getByName("8.8.8.8"));
+                default -> reader.tryCountry(InetAddress.getByName("8.8.8.8"));
+            }
+        } catch (IOException e) {
+            reader.close();
+            throw e;
+        } catch (Exception e) {
+            reader.close();
+            throw new IOException("Validation lookup failed: " + e.getMessage(), e);
+        }
+        return new GeoIpDatabase(reader, logger);
+    }
+
+    DatabaseReader reader() {
+        return reader;
+    }
+
+    /**
+     * @return The build time of the database in epoch milliseconds
+     */
+    long buildEpochMillis() {
+        return reader.getMetadata().getBuildDate().getTime();
+    }
+
+    /**
+     * Takes a reference for a lookup.
+     * @return False if the database has already been closed; the caller should fetch the current one again
+     */
+    boolean acquire() {
+        while (true) {
+            int current = references.get();
+            if (current == 0) {
+                return false;
+            }
+            if (references.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close GeoIP database: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Drops the holder's reference after the database has been replaced or on shutdown.
+     */
+    void retire() {
+        release();
+    }
+}
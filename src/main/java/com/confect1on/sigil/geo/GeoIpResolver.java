@@ -0,0 +1,87 @@
+package com.confect1on.sigil.geo;
+
+import com.confect1on.sigil.metrics.ExpositionWriter;
+import com.confect1on.sigil.metrics.MetricsCollector;
+import org.slf4j.Logger;
+
+import java.net.InetAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Resolves player regions off the Velocity event thread.
+ * Lookups run on a small pool with a bounded queue. When the queue is full the lookup is
+ * dropped and reported as UNKNOWN, so a login storm can never back up event handling.
+ */
+public class GeoIpResolver implements MetricsCollector {
+    private final GeoIpService geoIpService;
+    private final Logger logger;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong droppedLookups = new AtomicLong(0);
+
+    public GeoIpResolver(GeoIpService geoIpService, Logger logger, int threads, int queueCapacity) {
+        this.geoIpService = geoIpService;
+        this.logger = logger;
+
+        AtomicInteger threadId = new AtomicInteger(0);
+        this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "sigil-geoip-" + threadId.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues a lookup for the given address. The callback runs on a resolver thread once the
+     * lookup completes, or immediately on the calling thread with UNKNOWN if the lookup is dropped.
+     * @param ip The address to resolve
+     * @param callback Receives the resolved location
+     */
+    public void resolve(InetAddress ip, Consumer<GeoLocation> callback) {
+        try {
+            executor.execute(() -> callback.accept(lookup(ip)));
+        } catch (RejectedExecutionException e) {
+            droppedLookups.incrementAndGet();
+            callback.accept(GeoLocation.UNKNOWN);
+        }
+    }
+
+    private GeoLocation lookup(InetAddress ip) {
+        try {
+            return geoIpService.getLocation(ip);
+        } catch (RuntimeException e) {
+            logger.warn("GeoIP lookup for {} failed: {}", ip, e.getMessage());
+            return GeoLocation.UNKNOWN;
+        }
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public long getDroppedLookups() {
+        return droppedLookups.get();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void collect(ExpositionWriter out) {
+        out.family("sigil_geoip_queue_depth", "GeoIP lookups waiting to be resolved", "gauge");
+        out.sample("sigil_geoip_queue_depth").value(getQueueDepth());
+
+        out.family("sigil_geoip_lookups_dropped_total", "GeoIP lookups dropped because the queue was full", "counter");
+        out.sample("sigil_geoip_lookups_dropped_total").value(getDroppedLookups());
+    }
+}
@@ -1,8 +1,15 @@
 package com.confect1on.sigil.geo;
 
+import com.confect1on.sigil.metrics.ExpositionWriter;
+import com.confect1on.sigil.metrics.Histogram;
+import com.confect1on.sigil.metrics.InternalMetrics;
+import com.confect1on.sigil.metrics.MetricsCollector;
 import com.maxmind.geoip2.DatabaseReader;
 import com.maxmind.geoip2.exception.GeoIp2Exception;
+import com.maxmind.geoip2.model.AsnResponse;
+import com.maxmind.geoip2.model.CityResponse;
 import com.maxmind.geoip2.model.CountryResponse;
+import com.maxmind.geoip2.record.Country;
 import org.slf4j.Logger;
 
 import java.io.IOException;
@@ -11,36 +18,71 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.net.InetAddress;
+import java.time.Duration;
+import java.util.List;
 import java.util.Optional;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
 
 /**
  * GeoIpService resolves IP addresses to ISO country codes using MaxMind GeoLite2.
+ * If the optional GeoLite2-ASN and GeoLite2-City databases are present in the data directory,
+ * results are enriched with the autonomous system number and the subdivision (state, province).
  * Falls back to simple heuristics if the database is unavailable.
  *
+ * Databases can be replaced while the proxy is running: a watcher on the data directory opens
+ * the new file in the background, validates it, and swaps it in. Lookups already running finish
+ * on the old database, which is closed once they have released it.
+ *
  * This product includes GeoLite2 data created by MaxMind, available from https://www.maxmind.com.
  * Licensed under CC BY-SA 4.0.
  */
-public class GeoIpService {
+public class GeoIpService implements MetricsCollector {
     private static final String DB_RESOURCE = "GeoLite2-Country.mmdb";
-    private static final boolean DEV_MODE = true; // Set to false in production
+    private static final String ASN_DB_FILE = "GeoLite2-ASN.mmdb";
+    private static final String CITY_DB_FILE = "GeoLite2-City.mmdb";
     private static final String[] TEST_REGIONS = {"US", "GB", "DE", "FR", "JP", "BR", "AU"};
-    
+    private static final Duration RELOAD_SETTLE_DELAY = Duration.ofSeconds(2);
+    private static final double[] LOOKUP_BUCKETS = {
+        0.00001, 0.000025, 0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01
+    };
+
     private final Logger logger;
     private final Random random;
-    private DatabaseReader dbReader;
-    private boolean dbAvailable = false;
+    private final GeoIpCache cache;
+    private final Path dataDirectory;
+    private final DatabaseSlot country = new DatabaseSlot("country", DB_RESOURCE, "Country");
+    private final DatabaseSlot asn = new DatabaseSlot("asn", ASN_DB_FILE, "ASN");
+    private final DatabaseSlot city = new DatabaseSlot("city", CITY_DB_FILE, "City");
+    private final List<DatabaseSlot> slots = List.of(country, asn, city);
+    private final Histogram lookupSeconds = new Histogram(LOOKUP_BUCKETS);
+    private final InternalMetrics internalMetrics;
+    private GeoIpWatcher watcher;
+    private volatile boolean devMode;
+
+    public GeoIpService(Logger logger, Path dataDirectory, GeoIpCache cache) {
+        this(logger, dataDirectory, cache, new InternalMetrics());
+    }
 
-    public GeoIpService(Logger logger, Path dataDirectory) {
+    /**
+     * @param internalMetrics Receives the time spent on each resolution, including cache hits
+     */
+    public GeoIpService(Logger logger, Path dataDirectory, GeoIpCache cache, InternalMetrics internalMetrics) {
         this.logger = logger;
+        this.internalMetrics = internalMetrics;
         this.random = new Random();
+        this.cache = cache;
+        this.dataDirectory = dataDirectory;
         initializeDatabase(dataDirectory);
     }
 
     private void initializeDatabase(Path dataDirectory) {
         try {
             // Log the resource URL to verify it exists
-            logger.info("Looking for GeoIP database in resources: {}", 
+            logger.info("Looking for GeoIP database in resources: {}",
                 getClass().getClassLoader().getResource(DB_RESOURCE));
 
             // Ensure data directory exists
@@ -53,40 +95,73 @@ public class GeoIpService {
                 try (InputStream is = getClass().getClassLoader().getResourceAsStream(DB_RESOURCE)) {
                     if (is == null) {
                         logger.error("GeoLite2-Country.mmdb not found in plugin resources!");
-                        return;
+                    } else {
+                        Files.copy(is, dbPath, StandardCopyOption.REPLACE_EXISTING);
+                        logger.info("Copied GeoLite2-Country.mmdb to: {}", dbPath.toAbsolutePath());
                     }
-                    Files.copy(is, dbPath, StandardCopyOption.REPLACE_EXISTING);
-                    logger.info("Copied GeoLite2-Country.mmdb to: {}", dbPath.toAbsolutePath());
-                }
-            }
-
-            // Load the database
-            if (Files.exists(dbPath)) {
-                dbReader = new DatabaseReader.Builder(dbPath.toFile()).build();
-                dbAvailable = true;
-                logger.info("Successfully loaded GeoLite2-Country.mmdb");
-                
-                // Test the database with a known IP
-                try {
-                    InetAddress testIp = InetAddress.getByName("8.8.8.8"); // Google DNS
-                    CountryResponse response = dbReader.country(testIp);
-                    logger.info("Database test successful - resolved 8.8.8.8 to: {}", 
-                        response.getCountry().getIsoCode());
-                } catch (Exception e) {
-                    logger.error("Database test failed: {}", e.getMessage());
                 }
             }
         } catch (IOException e) {
             logger.error("Failed to initialize GeoIP database: {}", e.getMessage(), e);
         }
-        
-        if (!dbAvailable) {
+
+        for (DatabaseSlot slot : slots) {
+            if (Files.exists(dataDirectory.resolve(slot.fileName))) {
+                slot.load();
+            }
+        }
+
+        if (!country.isLoaded()) {
             logger.warn("GeoIP database not available. Using fallback detection.");
         }
+    }
 
-        if (DEV_MODE) {
+    /**
+     * In dev mode, loopback and site-local connections are assigned random regions so a local test
+     * network shows a spread of regions. Never enable this on a production proxy.
+     */
+    public void setDevMode(boolean devMode) {
+        if (devMode && !this.devMode) {
             logger.info("Running in DEV mode - localhost connections will be assigned random regions");
         }
+        this.devMode = devMode;
+    }
+
+    /**
+     * Starts watching the data directory so updated databases are picked up without a restart.
+     */
+    public void startWatching() {
+        Set<String> fileNames = slots.stream().map(slot -> slot.fileName).collect(Collectors.toUnmodifiableSet());
+        try {
+            watcher = new GeoIpWatcher(dataDirectory, fileNames, this::reload, RELOAD_SETTLE_DELAY, logger);
+            watcher.start();
+        } catch (IOException e) {
+            logger.warn("Cannot watch {} for GeoIP database updates: {}", dataDirectory, e.getMessage());
+        }
+    }
+
+    /**
+     * Stops the watcher and closes the databases once in-flight lookups have finished.
+     */
+    public void close() {
+        if (watcher != null) {
+            watcher.close();
+        }
+        for (DatabaseSlot slot : slots) {
+            slot.unload();
+        }
+    }
+
+    /**
+     * Reloads the database stored in the given file, keeping the current one if the new file is invalid.
+     */
+    private void reload(String fileName) {
+        for (DatabaseSlot slot : slots) {
+            if (slot.fileName.equals(fileName) && slot.load()) {
+                // Cached results may be stale under the new data
+                cache.clear();
+            }
+        }
     }
 
     /**
@@ -95,31 +170,175 @@ public class GeoIpService {
      * @return Optional country code, or empty if unknown
      */
     public Optional<String> getCountryCode(InetAddress ip) {
+        return Optional.of(getLocation(ip).region());
+    }
+
+    /**
+     * Resolves an IP address to its country and, where the optional databases are installed, ASN and subdivision.
+     * @param ip The IP address to resolve
+     * @return The location; the region is UNKNOWN if it could not be resolved
+     */
+    public GeoLocation getLocation(InetAddress ip) {
+        long start = internalMetrics.startNanos();
+        try {
+            return resolveLocation(ip);
+        } finally {
+            internalMetrics.recordGeoIpLookup(start);
+        }
+    }
+
+    private GeoLocation resolveLocation(InetAddress ip) {
         // In dev mode, assign random regions to localhost connections
-        if (DEV_MODE && (ip.isLoopbackAddress() || ip.isSiteLocalAddress())) {
+        if (devMode && (ip.isLoopbackAddress() || ip.isSiteLocalAddress())) {
             String region = TEST_REGIONS[random.nextInt(TEST_REGIONS.length)];
-            logger.info("DEV MODE: Assigning random region {} to local address {}", region, ip);
-            return Optional.of(region);
+            logger.debug("DEV MODE: Assigning random region {} to local address {}", region, ip);
+            return GeoLocation.ofRegion(region);
         }
 
-        if (dbAvailable) {
-            try {
-                CountryResponse response = dbReader.country(ip);
-                String countryCode = response.getCountry().getIsoCode();
-                logger.debug("Resolved {} to country code: {}", ip, countryCode);
-                return Optional.ofNullable(countryCode);
-            } catch (IOException | GeoIp2Exception e) {
-                logger.debug("GeoIP lookup failed for {}: {}", ip, e.getMessage());
-            }
+        GeoLocation cached = cache.get(ip);
+        if (cached != null) {
+            return cached;
+        }
+
+        long start = System.nanoTime();
+        String countryCode = country.lookup(ip, reader -> reader.tryCountry(ip)
+                .map(CountryResponse::getCountry).map(Country::getIsoCode).orElse(null));
+        String asnNumber = asn.lookup(ip, reader -> reader.tryAsn(ip)
+                .map(AsnResponse::getAutonomousSystemNumber).map(String::valueOf).orElse(null));
+        String subdivision = city.lookup(ip, reader -> reader.tryCity(ip)
+                .map(GeoIpService::subdivisionCode).orElse(null));
+        lookupSeconds.observe((System.nanoTime() - start) / 1e9);
+
+        if (countryCode != null) {
+            logger.debug("Resolved {} to country code: {}", ip, countryCode);
+            GeoLocation location = new GeoLocation(countryCode, asnNumber, subdivision);
+            cache.put(ip, location);
+            return location;
         }
 
         // Standard fallback for non-local addresses
         if (ip.isLoopbackAddress() || ip.isSiteLocalAddress()) {
             logger.debug("{} is a local address", ip);
-            return Optional.of("LOCAL");
+            cache.put(ip, GeoLocation.LOCAL);
+            return GeoLocation.LOCAL;
         }
 
         logger.debug("{} could not be resolved, marking as UNKNOWN", ip);
-        return Optional.of("UNKNOWN");
+        return new GeoLocation(GeoLocation.UNKNOWN.region(), asnNumber, subdivision);
+    }
+
+    private static String subdivisionCode(CityResponse response) {
+        String countryCode = response.getCountry().getIsoCode();
+        String subdivisionCode = response.getMostSpecificSubdivision().getIsoCode();
+        if (countryCode == null || subdivisionCode == null) {
+            return null;
+        }
+        return countryCode + "-" + subdivisionCode;
+    }
+
+    @Override
+    public void collect(ExpositionWriter out) {
+        out.family("sigil_geoip_lookup_seconds", "Time spent resolving addresses against the GeoIP databases in seconds", "histogram");
+        if (lookupSeconds.count() > 0) {
+            out.sample("sigil_geoip_lookup_seconds").histogram(lookupSeconds);
+        }
+
+        out.family("sigil_geoip_reloads_total", "GeoIP database loads by outcome", "counter");
+        for (DatabaseSlot slot : slots) {
+            out.sample("sigil_geoip_reloads_total").label("database", slot.name).label("result", "success").value(slot.loads.sum());
+            out.sample("sigil_geoip_reloads_total").label("database", slot.name).label("result", "failure").value(slot.failures.sum());
+        }
+
+        out.family("sigil_geoip_database_build_timestamp_seconds", "Build time of the loaded GeoIP database", "gauge");
+        for (DatabaseSlot slot : slots) {
+            long buildMillis = slot.buildEpochMillis;
+            if (buildMillis > 0) {
+                out.sample("sigil_geoip_database_build_timestamp_seconds").label("database", slot.name).value(buildMillis / 1000.0);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface Lookup {
+        String apply(DatabaseReader reader) throws IOException, GeoIp2Exception;
+    }
+
+    /**
+     * One kind of database and the currently loaded instance of it.
+     */
+    private final class DatabaseSlot {
+        final String name;
+        final String fileName;
+        final String expectedType;
+        final AtomicReference<GeoIpDatabase> current = new AtomicReference<>();
+        final LongAdder loads = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        volatile long buildEpochMillis;
+
+        DatabaseSlot(String name, String fileName, String expectedType) {
+            this.name = name;
+            this.fileName = fileName;
+            this.expectedType = expectedType;
+        }
+
+        boolean isLoaded() {
+            return current.get() != null;
+        }
+
+        /**
+         * Opens the file and swaps it in.
+         * @return Whether the new database is now in use
+         */
+        boolean load() {
+            Path path = dataDirectory.resolve(fileName);
+            GeoIpDatabase database;
+            try {
+                database = GeoIpDatabase.open(path, expectedType, logger);
+            } catch (IOException e) {
+                failures.increment();
+                logger.error("Failed to load {}, keeping the current database: {}", fileName, e.getMessage());
+                return false;
+            }
+
+            GeoIpDatabase previous = current.getAndSet(database);
+            buildEpochMillis = database.buildEpochMillis();
+            if (previous != null) {
+                previous.retire();
+            }
+            loads.increment();
+            logger.info("Successfully loaded {} (built {})", fileName, database.reader().getMetadata().getBuildDate());
+            return true;
+        }
+
+        void unload() {
+            GeoIpDatabase previous = current.getAndSet(null);
+            if (previous != null) {
+                previous.retire();
+            }
+        }
+
+        /**
+         * Runs a lookup against the current database.
+         * @return The lookup result, or null if no database is loaded, the address is unknown or the lookup failed
+         */
+        String lookup(InetAddress ip, Lookup lookup) {
+            GeoIpDatabase database;
+            do {
+                database = current.get();
+                if (database == null) {
+                    return null;
+                }
+                // A failed acquire means the database was retired and closed in between; retry with its replacement
+            } while (!database.acquire());
+
+            try {
+                return lookup.apply(database.reader());
+            } catch (IOException | GeoIp2Exception e) {
+                logger.debug("GeoIP {} lookup failed for {}: {}", name, ip, e.getMessage());
+                return null;
+            } finally {
+                database.release();
+            }
+        }
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,107 @@
+package com.confect1on.sigil.geo;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Watches the data directory for new database files on a background thread.
+ * Changes are debounced: a file is reported only once it has gone quiet for the settle delay,
+ * so a download that arrives in several writes triggers a single reload of the finished file.
+ */
+final class GeoIpWatcher implements AutoCloseable {
+    private final Path directory;
+    private final Set<String> fileNames;
+    private final Consumer<String> onChange;
+    private final long settleNanos;
+    private final Logger logger;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    /**
+     * @param directory Directory to watch
+     * @param fileNames File names to report; other files are ignored
+     * @param onChange Receives the name of a file that changed, on the watcher thread
+     * @param settleDelay How long a file must go without further changes before it is reported
+     */
+    GeoIpWatcher(Path directory, Set<String> fileNames, Consumer<String> onChange, Duration settleDelay, Logger logger) throws IOException {
+        this.directory = directory;
+        this.fileNames = fileNames;
+        this.onChange = onChange;
+        this.settleNanos = settleDelay.toNanos();
+        this.logger = logger;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        directory.register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        this.thread = new Thread(this::watch, "sigil-geoip-watcher");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+        logger.info("Watching {} for GeoIP database updates", directory.toAbsolutePath());
+    }
+
+    private void watch() {
+        // File name -> nanoTime of its last change
+        Map<String, Long> pending = new HashMap<>();
+        try {
+            while (true) {
+                WatchKey key = pending.isEmpty()
+                        ? watchService.take()
+                        : watchService.poll(settleNanos, TimeUnit.NANOSECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.context() instanceof Path changed && fileNames.contains(changed.toString())) {
+                            pending.put(changed.toString(), System.nanoTime());
+                        }
+                    }
+                    if (!key.reset()) {
+                        logger.warn("GeoIP watcher lost access to {}, database updates will not be picked up", directory);
+                        return;
+                    }
+                }
+
+                long now = System.nanoTime();
+                Iterator<Map.Entry<String, Long>> it = pending.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<String, Long> entry = it.next();
+                    if (now - entry.getValue() >= settleNanos) {
+                        it.remove();
+                        try {
+                            onChange.accept(entry.getKey());
+                        } catch (RuntimeException e) {
+                            logger.error("GeoIP reload of {} failed", entry.getKey(), e);
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Shutting down
+        }
+    }
+
+    @Override
+    public void close() {
+        thread.interrupt();
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            logger.debug("Failed to close GeoIP watch service: {}", e.getMessage());
+        }
+    }
+}
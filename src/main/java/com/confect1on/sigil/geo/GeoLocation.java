@@ -0,0 +1,16 @@
+package com.confect1on.sigil.geo;
+
+/**
+ * Result of resolving a player's address.
+ * @param region ISO 3166-1 alpha-2 country code, or a placeholder such as UNKNOWN or LOCAL
+ * @param asn Autonomous system number, or null if the ASN database is not installed or has no entry
+ * @param subdivision ISO 3166-2 subdivision code (e.g. US-CA), or null if the City database is not installed or has no entry
+ */
+public record GeoLocation(String region, String asn, String subdivision) {
+    public static final GeoLocation UNKNOWN = new GeoLocation("UNKNOWN", null, null);
+    public static final GeoLocation LOCAL = new GeoLocation("LOCAL", null, null);
+
+    public static GeoLocation ofRegion(String region) {
+        return new GeoLocation(region, null, null);
+    }
+}
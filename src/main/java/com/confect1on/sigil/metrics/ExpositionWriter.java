@@ -0,0 +1,164 @@
+package com.confect1on.sigil.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Streams metrics in a Prometheus exposition format straight into a reusable byte buffer.
+ * Callers describe metrics the same way whatever the format: declare a family, then for each
+ * series start a sample, add its labels and complete it with a value or a histogram.
+ * Label values and numbers are encoded without intermediate objects, so once the buffer has
+ * grown to its working size rendering a scrape produces no garbage per sample.
+ *
+ * Families are written lazily: a family declared with {@link #family} only appears in the
+ * output once its first sample is completed, so empty families are omitted automatically.
+ *
+ * Instances are not thread-safe; reuse one per thread and {@link #reset()} it between scrapes.
+ */
+public abstract class ExpositionWriter {
+    static final int DEFAULT_CAPACITY = 8 * 1024;
+    private static final int MAX_RETAINED_CAPACITY = 4 * 1024 * 1024;
+    static final int MAX_LABELS = 8;
+
+    protected byte[] buf;
+    protected int size;
+
+    // Labels of the sample being written, kept until the sample is completed
+    protected final String[] labelNames = new String[MAX_LABELS];
+    protected final String[] labelValues = new String[MAX_LABELS];
+    protected int labelCount;
+
+    protected ExpositionWriter(int initialCapacity) {
+        this.buf = new byte[initialCapacity];
+    }
+
+    /**
+     * Declares a metric family. It is written together with its first sample.
+     * @param name Metric family name
+     * @param help Help text
+     * @param type Prometheus metric type (gauge, counter, histogram, ...)
+     */
+    public abstract ExpositionWriter family(String name, String help, String type);
+
+    /**
+     * Starts a sample of the given metric in the current family.
+     */
+    public abstract ExpositionWriter sample(String name);
+
+    public ExpositionWriter label(String name, String value) {
+        if (labelCount == MAX_LABELS) {
+            throw new IllegalStateException("Too many labels on one sample, at most " + MAX_LABELS);
+        }
+        labelNames[labelCount] = name;
+        labelValues[labelCount] = value;
+        labelCount++;
+        return this;
+    }
+
+    /**
+     * Completes the current sample with an integer value.
+     */
+    public abstract void value(long value);
+
+    /**
+     * Completes the current sample with a floating point value.
+     */
+    public abstract void value(double value);
+
+    /**
+     * Completes the current sample with the contents of a histogram.
+     */
+    public abstract void histogram(Histogram histogram);
+
+    /**
+     * @return The Content-Type header value for this format
+     */
+    public abstract String contentType();
+
+    public int size() {
+        finish();
+        return size;
+    }
+
+    /**
+     * @return The writer whose output is served to scrapers, which is this one unless it also
+     *         feeds other formats
+     */
+    ExpositionWriter scrapeWriter() {
+        return this;
+    }
+
+    /**
+     * Clears the buffer for the next scrape, releasing it if an unusually large scrape grew it.
+     */
+    public void reset() {
+        if (buf.length > MAX_RETAINED_CAPACITY) {
+            buf = new byte[DEFAULT_CAPACITY];
+        }
+        size = 0;
+        labelCount = 0;
+        resetState();
+    }
+
+    /**
+     * Gzip-compresses the rendered exposition into the given encoder.
+     */
+    void compressTo(GzipEncoder encoder) {
+        finish();
+        encoder.encode(buf, 0, size);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        finish();
+        out.write(buf, 0, size);
+    }
+
+    public byte[] toByteArray() {
+        finish();
+        return Arrays.copyOf(buf, size);
+    }
+
+    @Override
+    public String toString() {
+        finish();
+        return new String(buf, 0, size, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Flushes anything still buffered by the format before the output is read.
+     */
+    protected void finish() {
+    }
+
+    /**
+     * Clears format-specific state on {@link #reset()}.
+     */
+    protected abstract void resetState();
+
+    protected void writeByte(int b) {
+        ensureCapacity(1);
+        buf[size++] = (byte) b;
+    }
+
+    protected void writeBytes(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buf, size, length);
+        size += length;
+    }
+
+    protected void writeAscii(String s) {
+        int length = s.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            buf[size++] = (byte) s.charAt(i);
+        }
+    }
+
+    protected void ensureCapacity(int additional) {
+        if (size + additional > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + additional));
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.confect1on.sigil.metrics;
+
+/**
+ * Renders one pass over the metrics into several writers at once, so producing a second format
+ * costs only its encoding and not another walk over the collectors. Output is read from the
+ * individual writers; this writer holds none itself.
+ */
+final class FanOutExpositionWriter extends ExpositionWriter {
+    private final ExpositionWriter[] writers;
+
+    FanOutExpositionWriter(ExpositionWriter... writers) {
+        super(0);
+        this.writers = writers;
+    }
+
+    @Override
+    public ExpositionWriter family(String name, String help, String type) {
+        for (ExpositionWriter writer : writers) {
+            writer.family(name, help, type);
+        }
+        return this;
+    }
+
+    @Override
+    public ExpositionWriter sample(String name) {
+        for (ExpositionWriter writer : writers) {
+            writer.sample(name);
+        }
+        return this;
+    }
+
+    @Override
+    public ExpositionWriter label(String name, String value) {
+        for (ExpositionWriter writer : writers) {
+            writer.label(name, value);
+        }
+        return this;
+    }
+
+    @Override
+    public void value(long value) {
+        for (ExpositionWriter writer : writers) {
+            writer.value(value);
+        }
+    }
+
+    @Override
+    public void value(double value) {
+        for (ExpositionWriter writer : writers) {
+            writer.value(value);
+        }
+    }
+
+    @Override
+    public void histogram(Histogram histogram) {
+        for (ExpositionWriter writer : writers) {
+            writer.histogram(histogram);
+        }
+    }
+
+    @Override
+    public String contentType() {
+        return writers[0].contentType();
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (ExpositionWriter writer : writers) {
+            size += writer.size();
+        }
+        return size;
+    }
+
+    @Override
+    ExpositionWriter scrapeWriter() {
+        return writers[0];
+    }
+
+    @Override
+    public void reset() {
+        for (ExpositionWriter writer : writers) {
+            writer.reset();
+        }
+    }
+
+    @Override
+    protected void resetState() {
+    }
+}
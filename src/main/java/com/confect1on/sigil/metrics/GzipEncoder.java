@@ -0,0 +1,72 @@
+package com.confect1on.sigil.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip-compresses into a reusable buffer with a reusable {@link Deflater},
+ * avoiding the per-response native allocation of {@link java.util.zip.GZIPOutputStream}.
+ * Instances are not thread-safe.
+ */
+final class GzipEncoder {
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int TRAILER_SIZE = 8;
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final CRC32 crc = new CRC32();
+    private byte[] buf = new byte[4 * 1024];
+    private int size;
+
+    /**
+     * Compresses the given bytes into a single gzip member, replacing any previous output.
+     */
+    void encode(byte[] input, int offset, int length) {
+        deflater.reset();
+        crc.reset();
+        crc.update(input, offset, length);
+
+        System.arraycopy(HEADER, 0, buf, 0, HEADER.length);
+        size = HEADER.length;
+
+        deflater.setInput(input, offset, length);
+        deflater.finish();
+        while (!deflater.finished()) {
+            if (size == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+            size += deflater.deflate(buf, size, buf.length - size);
+        }
+
+        if (size + TRAILER_SIZE > buf.length) {
+            buf = Arrays.copyOf(buf, size + TRAILER_SIZE);
+        }
+        writeIntLE((int) crc.getValue());
+        writeIntLE(length);
+    }
+
+    int size() {
+        return size;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, size);
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buf, size);
+    }
+
+    void close() {
+        deflater.end();
+    }
+
+    private void writeIntLE(int value) {
+        buf[size++] = (byte) value;
+        buf[size++] = (byte) (value >>> 8);
+        buf[size++] = (byte) (value >>> 16);
+        buf[size++] = (byte) (value >>> 24);
+    }
+}
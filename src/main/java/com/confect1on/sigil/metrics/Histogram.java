@@ -0,0 +1,137 @@
+package com.confect1on.sigil.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-bucket histogram. Counts are kept per bucket (non-cumulative) and the bucket is found by
+ * binary search, so an observation touches a single counter; cumulative counts are computed on export.
+ * Bucket counters and the sum are striped {@link LongAdder}/{@link DoubleAdder} cells, so bursts of
+ * concurrent observations (e.g. everyone disconnecting when a backend dies) do not contend on one atomic.
+ * A histogram can additionally keep {@link NativeHistogram native} exponential buckets, which are
+ * exported alongside the classic buckets when the scraper negotiates the protobuf format.
+ */
+public class Histogram {
+    private final double[] bounds;
+    private final LongAdder[] counts;
+    private final DoubleAdder sum = new DoubleAdder();
+    private final NativeHistogram nativeHistogram;
+
+    /**
+     * @param bounds Ascending bucket upper bounds; the +Inf bucket is implicit
+     */
+    public Histogram(double[] bounds) {
+        this(bounds, null);
+    }
+
+    /**
+     * @param bounds Ascending bucket upper bounds; the +Inf bucket is implicit
+     * @param nativeHistogram Native buckets to maintain alongside the classic ones, or null for classic only
+     */
+    public Histogram(double[] bounds, NativeHistogram nativeHistogram) {
+        for (int i = 1; i < bounds.length; i++) {
+            if (!(bounds[i] > bounds[i - 1])) {
+                throw new IllegalArgumentException("Histogram bounds must be strictly ascending: " + Arrays.toString(bounds));
+            }
+        }
+        this.bounds = bounds.clone();
+        this.counts = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+        this.nativeHistogram = nativeHistogram;
+    }
+
+    public void observe(double value) {
+        counts[bucketIndex(value)].increment();
+        sum.add(value);
+        if (nativeHistogram != null) {
+            nativeHistogram.observe(value);
+        }
+    }
+
+    /**
+     * Adds counts recorded elsewhere, such as a histogram restored from disk.
+     * Native buckets are not touched; merge those through {@link NativeHistogram#merge}.
+     * @param bucketCounts Non-cumulative counts for every bucket, ending with the +Inf bucket
+     * @param sum Sum of the observations behind the counts
+     */
+    public void add(long[] bucketCounts, double sum) {
+        if (bucketCounts.length != counts.length) {
+            throw new IllegalArgumentException("Expected " + counts.length + " bucket counts but got " + bucketCounts.length);
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i].add(bucketCounts[i]);
+        }
+        this.sum.add(sum);
+    }
+
+    /**
+     * Adds everything another histogram with the same bounds has observed, including its native
+     * buckets if both keep them.
+     */
+    public void add(Histogram other) {
+        long[] bucketCounts = new long[other.counts.length];
+        for (int i = 0; i < bucketCounts.length; i++) {
+            bucketCounts[i] = other.bucketCount(i);
+        }
+        add(bucketCounts, other.sum());
+        if (nativeHistogram != null && other.nativeHistogram != null) {
+            nativeHistogram.merge(other.nativeHistogram.snapshot());
+        }
+    }
+
+    /**
+     * @return The native buckets kept for this histogram, or null if it is classic only
+     */
+    public NativeHistogram nativeHistogram() {
+        return nativeHistogram;
+    }
+
+    public long count() {
+        long count = 0;
+        for (LongAdder bucket : counts) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @return The bucket upper bounds, excluding the implicit +Inf bucket
+     */
+    public double[] bounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * @return The number of finite bucket bounds
+     */
+    public int boundCount() {
+        return bounds.length;
+    }
+
+    /**
+     * @return The upper bound of the given finite bucket
+     */
+    public double bound(int index) {
+        return bounds[index];
+    }
+
+    /**
+     * @return The non-cumulative count of the given bucket; index {@code bounds().length} is the +Inf bucket
+     */
+    public long bucketCount(int index) {
+        return counts[index].sum();
+    }
+
+    public double sum() {
+        return sum.sum();
+    }
+
+    private int bucketIndex(double value) {
+        int index = Arrays.binarySearch(bounds, value);
+        // Buckets are upper-inclusive; a miss returns -(insertion point) - 1
+        return index >= 0 ? index : -index - 1;
+    }
+}
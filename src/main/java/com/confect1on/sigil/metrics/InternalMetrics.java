@@ -0,0 +1,189 @@
+package com.confect1on.sigil.metrics;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Sigil's own overhead: time spent in event handlers, GeoIP lookups and scrapes, and the size and
+ * allocations of each rendered exposition, exported as {@code sigil_internal_*} histograms.
+ *
+ * Recording is a {@link System#nanoTime()} pair and a {@link Histogram} observation, which lands on
+ * striped adders, so it is lock-free and cheap enough to leave on. Allocations are read from the
+ * JVM's per-thread allocation counter and are not reported on JVMs or threads (e.g. virtual threads)
+ * that do not support it.
+ *
+ * When disabled, callers take their start time from {@link #startNanos()}, which then skips the
+ * clock, and every record method returns at once, so nothing is measured or exported.
+ */
+public final class InternalMetrics implements MetricsCollector {
+    private static final String[] FORMATS = {"text", "protobuf"};
+    private static final double[] HANDLER_BUCKETS = {
+        0.000001, 0.0000025, 0.000005, 0.00001, 0.000025, 0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.01
+    };
+    private static final double[] SCRAPE_BUCKETS = {
+        0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 1
+    };
+    private static final double[] BYTES_BUCKETS = {
+        1024, 4096, 16384, 65536, 262144, 1048576, 4194304, 16777216
+    };
+
+    /**
+     * Velocity events Sigil handles.
+     */
+    public enum Event {
+        JOIN("join"),
+        DISCONNECT("disconnect"),
+        SERVER_CONNECTED("server_connected");
+
+        private final String label;
+
+        Event(String label) {
+            this.label = label;
+        }
+    }
+
+    private final boolean enabled;
+    private final com.sun.management.ThreadMXBean threadBean;
+    private final Histogram[] handlerSeconds = new Histogram[Event.values().length];
+    private final Histogram geoIpSeconds = new Histogram(HANDLER_BUCKETS);
+    private final Histogram httpRequestSeconds = new Histogram(SCRAPE_BUCKETS);
+    private final Histogram[] renderSeconds = new Histogram[FORMATS.length];
+    private final Histogram[] renderBytes = new Histogram[FORMATS.length];
+    private final Histogram[] renderAllocatedBytes = new Histogram[FORMATS.length];
+
+    public InternalMetrics() {
+        this(true);
+    }
+
+    /**
+     * @param enabled Whether anything is measured; a disabled instance records and exports nothing
+     */
+    public InternalMetrics(boolean enabled) {
+        this.enabled = enabled;
+        for (int i = 0; i < handlerSeconds.length; i++) {
+            handlerSeconds[i] = new Histogram(HANDLER_BUCKETS);
+        }
+        for (int i = 0; i < FORMATS.length; i++) {
+            renderSeconds[i] = new Histogram(SCRAPE_BUCKETS);
+            renderBytes[i] = new Histogram(BYTES_BUCKETS);
+            renderAllocatedBytes[i] = new Histogram(BYTES_BUCKETS);
+        }
+        this.threadBean = enabled ? allocationCounter() : null;
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        try {
+            if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+                    && bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+                return bean;
+            }
+        } catch (LinkageError | UnsupportedOperationException e) {
+            // Not a HotSpot-derived JVM
+        }
+        return null;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} to hand to a record method later, or 0 without reading the clock if disabled
+     */
+    public long startNanos() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * @param startNanos {@link #startNanos()} when the handler was entered
+     */
+    public void recordEventHandler(Event event, long startNanos) {
+        if (!enabled) {
+            return;
+        }
+        handlerSeconds[event.ordinal()].observe(secondsSince(startNanos));
+    }
+
+    /**
+     * @param startNanos {@link #startNanos()} when the lookup started, including the cache check
+     */
+    public void recordGeoIpLookup(long startNanos) {
+        if (!enabled) {
+            return;
+        }
+        geoIpSeconds.observe(secondsSince(startNanos));
+    }
+
+    /**
+     * @param startNanos {@link #startNanos()} when the request was accepted by a worker
+     */
+    public void recordHttpRequest(long startNanos) {
+        if (!enabled) {
+            return;
+        }
+        httpRequestSeconds.observe(secondsSince(startNanos));
+    }
+
+    /**
+     * @return Bytes allocated so far by the calling thread, or -1 if this cannot be measured
+     */
+    public long allocatedBytes() {
+        return threadBean != null ? threadBean.getCurrentThreadAllocatedBytes() : -1;
+    }
+
+    /**
+     * Records one rendering of the exposition.
+     * @param protobuf Whether the protobuf format was rendered
+     * @param startNanos {@link #startNanos()} when rendering started
+     * @param allocatedBefore {@link #allocatedBytes()} when rendering started
+     * @param bytes Size of the rendered exposition
+     */
+    public void recordRender(boolean protobuf, long startNanos, long allocatedBefore, int bytes) {
+        if (!enabled) {
+            return;
+        }
+        int format = protobuf ? 1 : 0;
+        renderSeconds[format].observe(secondsSince(startNanos));
+        renderBytes[format].observe(bytes);
+        long allocatedAfter = allocatedBytes();
+        if (allocatedBefore >= 0 && allocatedAfter >= allocatedBefore) {
+            renderAllocatedBytes[format].observe(allocatedAfter - allocatedBefore);
+        }
+    }
+
+    private static double secondsSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    @Override
+    public void collect(ExpositionWriter out) {
+        if (!enabled) {
+            return;
+        }
+        out.family("sigil_internal_event_handler_seconds", "Time Sigil spent handling Velocity events in seconds", "histogram");
+        for (Event event : Event.values()) {
+            Histogram histogram = handlerSeconds[event.ordinal()];
+            if (histogram.count() > 0) {
+                out.sample("sigil_internal_event_handler_seconds").label("event", event.label).histogram(histogram);
+            }
+        }
+
+        out.family("sigil_internal_geoip_lookup_seconds", "Time spent resolving an address, including the cache, in seconds", "histogram");
+        if (geoIpSeconds.count() > 0) {
+            out.sample("sigil_internal_geoip_lookup_seconds").histogram(geoIpSeconds);
+        }
+
+        out.family("sigil_internal_http_request_seconds", "Time spent serving a metrics request in seconds", "histogram");
+        if (httpRequestSeconds.count() > 0) {
+            out.sample("sigil_internal_http_request_seconds").histogram(httpRequestSeconds);
+        }
+
+        collectByFormat(out, "sigil_internal_scrape_render_seconds", "Time spent rendering the exposition in seconds", renderSeconds);
+        collectByFormat(out, "sigil_internal_scrape_bytes", "Size of the rendered exposition in bytes", renderBytes);
+        collectByFormat(out, "sigil_internal_scrape_allocated_bytes", "Heap allocated while rendering the exposition in bytes", renderAllocatedBytes);
+    }
+
+    private static void collectByFormat(ExpositionWriter out, String name, String help, Histogram[] histograms) {
+        out.family(name, help, "histogram");
+        for (int i = 0; i < FORMATS.length; i++) {
+            if (histograms[i].count() > 0) {
+                out.sample(name).label("format", FORMATS[i]).histogram(histograms[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.confect1on.sigil.metrics;
+
+/**
+ * Writes JSON string literals for the hand-built JSON of /sessions, /quantiles and the audit log.
+ */
+public final class JsonStrings {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private JsonStrings() {
+    }
+
+    /**
+     * Appends the value as a quoted JSON string, escaping quotes, backslashes and control characters.
+     */
+    public static void append(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,220 @@
+package com.confect1on.sigil.metrics;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Interns the values of one label to small integer IDs, counts how many sessions are using each,
+ * and bounds the number of distinct values, folding the rest into {@link #OTHER}.
+ *
+ * Which values are kept is decided by a Space-Saving heavy-hitters sketch over at most
+ * {@code limit} monitored values: a monitored value counts its occurrences, and a new value may
+ * take over the slot of the least frequent one, inheriting its count. Unlike the textbook sketch,
+ * a slot is only given up while no session is counted under it, so a value never moves between
+ * its own series and {@code other} while players are using it, and a recycled ID always starts
+ * from a zero gauge.
+ *
+ * Counts live in a padded {@link AtomicLongArray}, one cache line per ID, so sessions on different
+ * values do not contend. Admitting a value that already has a slot is lock-free and allocation-free;
+ * only new values take the lock to claim or recycle a slot.
+ *
+ * Callers keep the ID returned by {@link #admit} and hand it back to {@link #release} when the
+ * session no longer counts under it.
+ */
+public final class LabelLimiter {
+    /** Label value that absorbs everything beyond the limit. */
+    public static final String OTHER = "other";
+    /** ID of {@link #OTHER}. */
+    public static final int OTHER_ID = 0;
+    /** Placeholder for "no value", accepted and ignored by {@link #release}. */
+    public static final int NONE = -1;
+
+    // Longs per ID: 8 longs fill a 64-byte cache line
+    private static final int STRIDE = 8;
+    private static final int LIVE = 0;
+    private static final int HITS = 1;
+    // Marks a slot that is being handed to a new value
+    private static final long RECYCLING = -1;
+
+    private final String metric;
+    private final int limit;
+    private final int firstDynamicId;
+    private final AtomicReferenceArray<String> labels;
+    private final AtomicLongArray cells;
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final LongAdder dropped = new LongAdder();
+    // Written under the lock only
+    private volatile int nextId;
+
+    /**
+     * @param metric Name of the metric whose label is limited, reported with dropped values
+     * @param limit Maximum number of distinct values kept, not counting reserved ones
+     * @param reserved Values that are always kept and do not use up the limit, e.g. placeholders
+     */
+    public LabelLimiter(String metric, int limit, Set<String> reserved) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Label limit must not be negative: " + limit);
+        }
+        this.metric = metric;
+        this.limit = limit;
+        this.firstDynamicId = 1 + reserved.size();
+        int capacity = firstDynamicId + limit;
+        this.labels = new AtomicReferenceArray<>(capacity);
+        this.cells = new AtomicLongArray(capacity * STRIDE);
+
+        labels.set(OTHER_ID, OTHER);
+        // A value that is literally "other", e.g. restored from a snapshot, joins the folded values
+        ids.put(OTHER, OTHER_ID);
+        int id = OTHER_ID + 1;
+        for (String value : reserved) {
+            labels.set(id, value);
+            ids.put(value, id++);
+        }
+        this.nextId = firstDynamicId;
+    }
+
+    /**
+     * Records an occurrence of a value and counts one more session under the label it is kept as.
+     * @return The ID of the value if it is among the kept values, otherwise {@link #OTHER_ID}
+     */
+    public int admit(String value) {
+        Integer id = ids.get(value);
+        if (id != null && retain(id)) {
+            // The slot may have been recycled between the lookup and the retain
+            if (value.equals(labels.get(id))) {
+                cells.incrementAndGet(id * STRIDE + HITS);
+                return id;
+            }
+            release(id);
+        }
+        return admitSlow(value);
+    }
+
+    /**
+     * Counts one session fewer under the given ID.
+     * @param id An ID returned by {@link #admit}, or {@link #NONE}
+     */
+    public void release(int id) {
+        if (id != NONE) {
+            cells.decrementAndGet(id * STRIDE + LIVE);
+        }
+    }
+
+    /**
+     * @return The label value for an ID returned by {@link #admit}
+     */
+    public String label(int id) {
+        return labels.get(id);
+    }
+
+    /**
+     * @return The ID of a value that is currently kept, or {@link #NONE}; does not count an occurrence
+     */
+    public int idOf(String value) {
+        Integer id = ids.get(value);
+        return id != null ? id : NONE;
+    }
+
+    /**
+     * Visits every label that currently has sessions counted under it, with its count.
+     */
+    public void forEachCounted(ObjIntConsumer<String> action) {
+        int end = nextId;
+        for (int id = 0; id < end; id++) {
+            String label = labels.get(id);
+            long live = cells.get(id * STRIDE + LIVE);
+            // Skip a slot that was recycled while it was being read
+            if (live > 0 && label == labels.get(id)) {
+                action.accept(label, (int) live);
+            }
+        }
+    }
+
+    public String metric() {
+        return metric;
+    }
+
+    public int limit() {
+        return limit;
+    }
+
+    /**
+     * @return One more than the highest ID {@link #admit} can return
+     */
+    int capacity() {
+        return labels.length();
+    }
+
+    /**
+     * @return How many occurrences were folded into {@link #OTHER} because the limit was reached
+     */
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    private boolean retain(int id) {
+        int index = id * STRIDE + LIVE;
+        while (true) {
+            long live = cells.get(index);
+            if (live == RECYCLING) {
+                return false;
+            }
+            if (cells.compareAndSet(index, live, live + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private synchronized int admitSlow(String value) {
+        // Recycling only happens under this lock, so an existing slot can be retained outright
+        Integer existing = ids.get(value);
+        if (existing != null && retain(existing)) {
+            cells.incrementAndGet(existing * STRIDE + HITS);
+            return existing;
+        }
+
+        if (nextId < labels.length()) {
+            int id = nextId;
+            claim(id, value, 1);
+            nextId = id + 1;
+            return id;
+        }
+
+        // Take over the least frequent idle slot; O(limit), but only for values not yet kept
+        while (true) {
+            int victim = NONE;
+            long victimHits = Long.MAX_VALUE;
+            for (int id = firstDynamicId; id < nextId; id++) {
+                long hits = cells.get(id * STRIDE + HITS);
+                if (cells.get(id * STRIDE + LIVE) == 0 && hits < victimHits) {
+                    victim = id;
+                    victimHits = hits;
+                }
+            }
+            if (victim == NONE) {
+                dropped.increment();
+                cells.incrementAndGet(OTHER_ID * STRIDE + LIVE);
+                return OTHER_ID;
+            }
+            // Lock out lock-free admits of the old value; lost the race if one just retained it
+            if (cells.compareAndSet(victim * STRIDE + LIVE, 0, RECYCLING)) {
+                ids.remove(labels.get(victim));
+                claim(victim, value, victimHits + 1);
+                return victim;
+            }
+        }
+    }
+
+    private void claim(int id, String value, long hits) {
+        labels.set(id, value);
+        cells.set(id * STRIDE + HITS, hits);
+        ids.put(value, id);
+        // Publishing the count last makes the slot usable by lock-free admits
+        cells.set(id * STRIDE + LIVE, 1);
+    }
+}
@@ -0,0 +1,14 @@
+package com.confect1on.sigil.metrics;
+
+/**
+ * Maximum number of distinct label values kept per metric before the rest are folded into
+ * {@link LabelLimiter#OTHER}.
+ * @param regions Limit for {@code sigil_players_by_region}, which also bounds the region label of player latency
+ * @param backends Limit for {@code sigil_backend_players}, which also bounds the server label of player latency
+ * @param asns Limit for {@code sigil_players_by_asn}
+ * @param subdivisions Limit for {@code sigil_players_by_subdivision}
+ */
+public record LabelLimits(int regions, int backends, int asns, int subdivisions) {
+    /** Room for every country, a large network's backends, and the busiest networks and subdivisions. */
+    public static final LabelLimits DEFAULT = new LabelLimits(250, 100, 200, 200);
+}
@@ -0,0 +1,131 @@
+package com.confect1on.sigil.metrics;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Per-value series, such as counters or histograms, for one label bounded by a {@link LabelLimiter}.
+ *
+ * Series are stored by the limiter's ID rather than by value, so there are never more of them than
+ * the limiter has slots. When the limiter hands a slot to a new value, the next access to that slot
+ * starts a fresh series for the new value. The old value's series is dropped, the same way its
+ * gauge disappears, or folded into the series of {@link LabelLimiter#OTHER} for cumulative series
+ * whose totals should survive; values beyond the limit share that series too.
+ *
+ * Looking up the series of a kept value is lock-free and allocation-free.
+ *
+ * @param <T> The series kept per value
+ */
+public final class LabeledSeries<T> {
+    private final LabelLimiter limiter;
+    private final Supplier<T> factory;
+    private final BiConsumer<T, T> fold;
+    private final AtomicReferenceArray<Entry<T>> entries;
+
+    /**
+     * A series and the value it was started for, so a recycled slot is noticed.
+     */
+    private record Entry<T>(String label, T series) {
+    }
+
+    /**
+     * @param limiter Limiter deciding which values get their own series
+     * @param factory Creates an empty series
+     */
+    public LabeledSeries(LabelLimiter limiter, Supplier<T> factory) {
+        this(limiter, factory, null);
+    }
+
+    /**
+     * @param limiter Limiter deciding which values get their own series
+     * @param factory Creates an empty series
+     * @param fold Adds the series of a value that lost its slot (second) to the series of "other" (first), or null to drop it
+     */
+    public LabeledSeries(LabelLimiter limiter, Supplier<T> factory, BiConsumer<T, T> fold) {
+        this.limiter = limiter;
+        this.factory = factory;
+        this.fold = fold;
+        this.entries = new AtomicReferenceArray<>(limiter.capacity());
+    }
+
+    /**
+     * Records an occurrence of the value with the limiter and returns its series, for series that
+     * are not tied to a session holding the value.
+     */
+    public T get(String value) {
+        int id = limiter.admit(value);
+        limiter.release(id);
+        return forId(id);
+    }
+
+    /**
+     * @param id An ID returned by the limiter's {@link LabelLimiter#admit}
+     * @return The series of the value the ID currently stands for
+     */
+    public T forId(int id) {
+        String label = limiter.label(id);
+        while (true) {
+            Entry<T> entry = entries.get(id);
+            // Labels are the limiter's own instances, so identity tells whether the slot was recycled
+            if (entry != null && entry.label() == label) {
+                return entry.series();
+            }
+            Entry<T> fresh = new Entry<>(label, factory.get());
+            if (entries.compareAndSet(id, entry, fresh)) {
+                if (entry != null) {
+                    retire(entry);
+                }
+                return fresh.series();
+            }
+        }
+    }
+
+    /**
+     * Visits every series with the value it belongs to. Series of values whose slot has since been
+     * handed to another value are retired rather than visited, as they could otherwise show up twice
+     * once their value is readmitted. They are retired before anything is visited, so what they fold
+     * into "other" is part of the series visited for it.
+     */
+    public void forEach(BiConsumer<String, T> action) {
+        for (int id = 0; id < entries.length(); id++) {
+            Entry<T> entry = entries.get(id);
+            if (entry != null && entry.label() != limiter.label(id) && entries.compareAndSet(id, entry, null)) {
+                retire(entry);
+            }
+        }
+        for (int id = 0; id < entries.length(); id++) {
+            Entry<T> entry = entries.get(id);
+            if (entry != null && entry.label() == limiter.label(id)) {
+                action.accept(entry.label(), entry.series());
+            }
+        }
+    }
+
+    /**
+     * Folds every series into the series of the same value in another instance over the same
+     * limiter, for series that are themselves kept per value of another label, e.g. per backend
+     * within a region, when the value of that other label lost its slot. Series of values that
+     * lost their own slot meanwhile go to "other". Does nothing if series are not folded.
+     */
+    public void foldInto(LabeledSeries<T> target) {
+        if (fold == null) {
+            return;
+        }
+        for (int id = 0; id < entries.length(); id++) {
+            Entry<T> entry = entries.get(id);
+            if (entry != null) {
+                fold.accept(target.forId(entry.label() == limiter.label(id) ? id : LabelLimiter.OTHER_ID), entry.series());
+            }
+        }
+    }
+
+    /**
+     * Folds the series of a value that lost its slot into "other", if series are folded.
+     */
+    private void retire(Entry<T> entry) {
+        if (fold != null) {
+            fold.accept(forId(LabelLimiter.OTHER_ID), entry.series());
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.confect1on.sigil.metrics;
+
+/**
+ * A source of metrics that lives outside of {@link MetricsManager}.
+ * Collectors are registered with the {@link MetricsExporter} and rendered after the built-in metrics.
+ */
+public interface MetricsCollector {
+    /**
+     * Writes this collector's metrics to the exposition.
+     * @param out Writer for the scrape being rendered
+     */
+    void collect(ExpositionWriter out);
+}
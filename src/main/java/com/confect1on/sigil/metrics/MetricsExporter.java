@@ -1,21 +1,49 @@
 package com.confect1on.sigil.metrics;
 
-import java.util.Locale;
-import java.util.Map;
-import java.util.NavigableMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
- * Formats metrics in Prometheus text format.
- * Follows best practices:
- * - Only shows metrics with meaningful values
- * - No empty/zero gauges
- * - Proper help and type annotations
+ * Renders the proxy's metrics, followed by those of the registered collectors, into an
+ * {@link ExpositionWriter}, so the same pass produces Prometheus text, Prometheus protobuf or OTLP.
+ * Labeled families only list the label values that currently have a value, e.g. regions with
+ * players online, and every family carries its help and type.
  */
 public class MetricsExporter {
     private final MetricsManager metricsManager;
+    private final InternalMetrics internalMetrics;
+    private final List<MetricsCollector> collectors = new CopyOnWriteArrayList<>();
 
     public MetricsExporter(MetricsManager metricsManager) {
+        this(metricsManager, new InternalMetrics());
+    }
+
+    /**
+     * @param internalMetrics Receives the render time, size and allocations of every exposition
+     */
+    public MetricsExporter(MetricsManager metricsManager, InternalMetrics internalMetrics) {
         this.metricsManager = metricsManager;
+        this.internalMetrics = internalMetrics;
+    }
+
+    /**
+     * Registers an additional collector, rendered after the built-in metrics.
+     * @param collector The collector to add
+     */
+    public void register(MetricsCollector collector) {
+        collectors.add(collector);
+    }
+
+    /**
+     * Removes a collector so its metrics are no longer rendered.
+     * @param collector The collector to remove
+     */
+    public void unregister(MetricsCollector collector) {
+        collectors.remove(collector);
+    }
+
+    MetricsManager metricsManager() {
+        return metricsManager;
     }
 
     /**
@@ -23,75 +51,91 @@ public class MetricsExporter {
      * @return Formatted metrics string
      */
     public String exportMetrics() {
-        StringBuilder sb = new StringBuilder();
+        ExpositionWriter out = new TextExpositionWriter();
+        exportMetrics(out);
+        return out.toString();
+    }
 
+    /**
+     * Streams all metrics into the given writer, in whichever exposition format it produces.
+     * @param out Writer to render into
+     */
+    public void exportMetrics(ExpositionWriter out) {
+        long start = internalMetrics.startNanos();
+        long allocatedBefore = internalMetrics.allocatedBytes();
+        // Only the scrape format's bytes, not those of a push format rendered in the same pass
+        ExpositionWriter measured = out.scrapeWriter();
+        int sizeBefore = measured.size();
+        render(out);
+        internalMetrics.recordRender(measured instanceof ProtobufExpositionWriter, start, allocatedBefore,
+                measured.size() - sizeBefore);
+    }
+
+    private void render(ExpositionWriter out) {
         // Backend server status - always show all known backends
-        Map<String, Boolean> backendStatus = metricsManager.getBackendStatus();
-        if (!backendStatus.isEmpty()) {
-            sb.append("# HELP sigil_backend_status Backend server status (1 = up, 0 = down)\n");
-            sb.append("# TYPE sigil_backend_status gauge\n");
-            backendStatus.forEach((server, isUp) -> 
-                sb.append(String.format("sigil_backend_status{server=\"%s\"} %d\n",
-                        server, isUp ? 1 : 0))
-            );
-        }
+        out.family("sigil_backend_status", "Backend server status (1 = up, 0 = down)", "gauge");
+        metricsManager.forEachBackendStatus((server, isUp) ->
+                out.sample("sigil_backend_status").label("server", server).value(isUp));
+
+        // Backend ping latency - only backends that have answered a ping
+        out.family("sigil_backend_ping_seconds", "Round-trip time of backend server pings in seconds", "histogram");
+        metricsManager.forEachBackendPingLatency((server, histogram) ->
+                out.sample("sigil_backend_ping_seconds").label("server", server).histogram(histogram));
 
         // Active sessions gauge - only show if players are online
         int activeSessions = metricsManager.getActiveSessionCount();
         if (activeSessions > 0) {
-            if (sb.length() > 0) sb.append("\n");
-            sb.append("# HELP sigil_active_sessions Number of players currently connected\n");
-            sb.append("# TYPE sigil_active_sessions gauge\n");
-            sb.append("sigil_active_sessions ").append(activeSessions).append("\n");
+            out.family("sigil_active_sessions", "Number of players currently connected", "gauge");
+            out.sample("sigil_active_sessions").value(activeSessions);
         }
 
         // Players by region gauge - only output regions that have active players
-        Map<String, Integer> regionCounts = metricsManager.getPlayersByRegion();
-        boolean hasRegions = regionCounts.values().stream().anyMatch(count -> count > 0);
-        if (hasRegions) {
-            if (sb.length() > 0) sb.append("\n");
-            sb.append("# HELP sigil_players_by_region Number of active players by region\n");
-            sb.append("# TYPE sigil_players_by_region gauge\n");
-            regionCounts.forEach((region, count) -> {
-                if (count > 0) {
-                    sb.append(String.format("sigil_players_by_region{region=\"%s\"} %d\n",
-                            region, count));
-                }
-            });
-        }
+        out.family("sigil_players_by_region", "Number of active players by region", "gauge");
+        metricsManager.forEachPlayersByRegion((region, count) ->
+                out.sample("sigil_players_by_region").label("region", region).value(count));
+
+        // Players by autonomous system and subdivision - only present when the optional databases are installed
+        out.family("sigil_players_by_asn", "Number of active players by autonomous system number", "gauge");
+        metricsManager.forEachPlayersByAsn((asn, count) ->
+                out.sample("sigil_players_by_asn").label("asn", asn).value(count));
+
+        out.family("sigil_players_by_subdivision", "Number of active players by country subdivision (ISO 3166-2)", "gauge");
+        metricsManager.forEachPlayersBySubdivision((subdivision, count) ->
+                out.sample("sigil_players_by_subdivision").label("subdivision", subdivision).value(count));
 
         // Players by backend server - only show active servers
-        Map<String, Integer> backendCounts = metricsManager.getPlayersByBackend();
-        boolean hasBackendPlayers = backendCounts.values().stream().anyMatch(count -> count > 0);
-        if (hasBackendPlayers) {
-            if (sb.length() > 0) sb.append("\n");
-            sb.append("# HELP sigil_backend_players Number of players per backend server\n");
-            sb.append("# TYPE sigil_backend_players gauge\n");
-            backendCounts.forEach((server, count) -> {
-                if (count > 0) {
-                    sb.append(String.format("sigil_backend_players{server=\"%s\"} %d\n",
-                            server, count));
-                }
-            });
-        }
+        out.family("sigil_backend_players", "Number of players per backend server", "gauge");
+        metricsManager.forEachPlayersByBackend((server, count) ->
+                out.sample("sigil_backend_players").label("server", server).value(count));
+
+        // Player latency by region and backend - only pairs that have been sampled
+        out.family("sigil_player_ping_seconds", "Player network latency by region and backend server in seconds", "histogram");
+        metricsManager.forEachPlayerLatency((region, server, histogram) ->
+                out.sample("sigil_player_ping_seconds").label("region", region).label("server", server).histogram(histogram));
 
         // Session Duration Histogram
-        int completedSessionCount = metricsManager.getSessionDurationCount();
-        if (completedSessionCount > 0) {
-            if (sb.length() > 0) sb.append("\n");
-            sb.append("# HELP sigil_session_duration_seconds Duration of completed player sessions in seconds\n");
-            sb.append("# TYPE sigil_session_duration_seconds histogram\n");
-            
-            NavigableMap<Double, Integer> histogramBuckets = metricsManager.getSessionDurationHistogramBuckets();
-            for (Map.Entry<Double, Integer> entry : histogramBuckets.entrySet()) {
-                String le = entry.getKey().isInfinite() ? "+Inf" : String.format(Locale.US, "%.0f", entry.getKey());
-                sb.append(String.format(Locale.US, "sigil_session_duration_seconds_bucket{le=\"%s\"} %d\n", le, entry.getValue()));
-            }
-            
-            sb.append(String.format(Locale.US, "sigil_session_duration_seconds_sum %.1f\n", (double) metricsManager.getSessionDurationSum()));
-            sb.append(String.format(Locale.US, "sigil_session_duration_seconds_count %d\n", completedSessionCount));
+        Histogram sessionDuration = metricsManager.getSessionDurationHistogram();
+        if (sessionDuration.count() > 0) {
+            out.family("sigil_session_duration_seconds", "Duration of completed player sessions in seconds", "histogram");
+            out.sample("sigil_session_duration_seconds").histogram(sessionDuration);
         }
 
-        return sb.toString();
+        // Session duration by region and time spent per backend - only labels with completed sessions or stays
+        out.family("sigil_session_duration_by_region_seconds", "Duration of completed player sessions by region in seconds", "histogram");
+        metricsManager.forEachSessionDurationByRegion((region, histogram) ->
+                out.sample("sigil_session_duration_by_region_seconds").label("region", region).histogram(histogram));
+
+        out.family("sigil_backend_stay_seconds", "Time players spent on a backend server before switching away or disconnecting in seconds", "histogram");
+        metricsManager.forEachBackendStay((server, histogram) ->
+                out.sample("sigil_backend_stay_seconds").label("server", server).histogram(histogram));
+
+        // Label values folded into "other" by the cardinality limits
+        out.family("sigil_dropped_label_values_total", "Label values folded into \"other\" because the metric reached its series limit", "counter");
+        metricsManager.forEachLabelLimiter(limiter ->
+                out.sample("sigil_dropped_label_values_total").label("metric", limiter.metric()).value(limiter.droppedCount()));
+
+        for (MetricsCollector collector : collectors) {
+            collector.collect(out);
+        }
     }
-} 
\ No newline at end of file
+}
@@ -1,36 +1,128 @@
 package com.confect1on.sigil.metrics;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 /**
  * Simple HTTP server that exposes metrics in Prometheus format.
+ * Requests are read on their own threads and answered on a worker pool so a slow or hung scraper
+ * only ties up its own worker, while /health is answered straight away without waiting for one.
+ * Connections that take too long to send a request or receive a response are closed.
+ * Responses carry a byte-accurate Content-Length so connections can be kept alive.
+ * In snapshot mode the exposition is rendered at most once per interval and shared by all scrapers.
+ * When enabled, scrapers that accept the protobuf format receive it, which is required for native histograms.
+ * Recent session events can be queried at /sessions for incident forensics when they are kept,
+ * one query at a time so they cannot take over the workers, and session duration quantiles by
+ * region and backend at /quantiles.
  */
 public class MetricsHttpServer {
+    private static final String PROTOBUF_MEDIA_TYPE = "application/vnd.google.protobuf";
+    private static final String PROTOBUF_PROTO = "proto=io.prometheus.client.MetricFamily";
+    private static final int SESSIONS_BUFFER_SIZE = 8192;
+    private static final byte[] HEALTHY = "OK\n".getBytes(StandardCharsets.UTF_8);
+    private static final Duration CONNECTION_TIMEOUT = Duration.ofSeconds(30);
+
     private final MetricsExporter metricsExporter;
-    private final int port;
+    private final InetSocketAddress bindAddress;
+    private final int threads;
+    private final boolean virtualThreads;
+    // Pooled rather than thread-local so buffers are still reused when handlers run on virtual threads
+    private final BlockingQueue<ScrapeBuffer> buffers;
+    private final boolean protobufEnabled;
+    private final ScrapeSnapshotCache textSnapshotCache;
+    private final ScrapeSnapshotCache protobufSnapshotCache;
+    private final InternalMetrics internalMetrics;
+    private final SessionEventLog eventLog;
+    private final Semaphore sessionQueries = new Semaphore(1);
     private HttpServer server;
+    private ExecutorService requestExecutor;
+    private ExecutorService executor;
+    private ScheduledExecutorService deadlines;
 
-    public MetricsHttpServer(MetricsExporter metricsExporter, int port) {
+    /**
+     * @param metricsExporter Source of the exposition
+     * @param bindAddress Address and port to listen on
+     * @param threads Number of worker threads, also the number of pooled scrape buffers
+     * @param virtualThreads Whether to run handlers on virtual threads when the runtime supports them
+     * @param snapshotInterval How long a rendered snapshot is shared between scrapes, or zero to render every scrape
+     * @param protobufEnabled Whether to serve the protobuf format to scrapers that negotiate it
+     * @param internalMetrics Receives the time spent serving each scrape
+     * @param eventLog Recent session events served at /sessions, or null to not serve them
+     */
+    public MetricsHttpServer(MetricsExporter metricsExporter, InetSocketAddress bindAddress, int threads,
+                             boolean virtualThreads, Duration snapshotInterval, boolean protobufEnabled,
+                             InternalMetrics internalMetrics, SessionEventLog eventLog) {
         this.metricsExporter = metricsExporter;
-        this.port = port;
+        this.bindAddress = bindAddress;
+        this.threads = threads;
+        this.virtualThreads = virtualThreads;
+        this.buffers = new ArrayBlockingQueue<>(threads);
+        this.protobufEnabled = protobufEnabled;
+        this.internalMetrics = internalMetrics;
+        this.eventLog = eventLog;
+        boolean snapshots = !snapshotInterval.isZero() && !snapshotInterval.isNegative();
+        this.textSnapshotCache = snapshots
+                ? new ScrapeSnapshotCache(metricsExporter, snapshotInterval, new TextExpositionWriter())
+                : null;
+        this.protobufSnapshotCache = snapshots && protobufEnabled
+                ? new ScrapeSnapshotCache(metricsExporter, snapshotInterval, new ProtobufExpositionWriter())
+                : null;
+    }
+
+    /**
+     * Renders another format in the same pass as the text snapshots served to scrapers, so another
+     * consumer such as a push exporter does not walk the metrics a second time. Call before {@link #start()}.
+     * @param writer Writer for the other format, only used by the thread rendering a snapshot
+     * @return Source of the latest render in that format, no older than the snapshot interval,
+     *         or null if snapshots are disabled and there is nothing to share
+     */
+    public Supplier<byte[]> shareSnapshots(ExpositionWriter writer) {
+        if (textSnapshotCache == null) {
+            return null;
+        }
+        textSnapshotCache.share(writer);
+        return () -> textSnapshotCache.get().companion();
     }
 
     public void start() {
         try {
-            server = HttpServer.create(new InetSocketAddress(port), 0);
-            server.createContext("/metrics", httpExchange -> {
-                String response = metricsExporter.exportMetrics();
-                httpExchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
-                httpExchange.sendResponseHeaders(200, response.length());
-                try (OutputStream os = httpExchange.getResponseBody()) {
-                    os.write(response.getBytes(StandardCharsets.UTF_8));
-                }
-            });
-            server.setExecutor(null); // Use the default executor
+            server = HttpServer.create(bindAddress, 0);
+            executor = createExecutor();
+            requestExecutor = createRequestExecutor();
+            deadlines = createDeadlineScheduler();
+            server.createContext("/metrics", onWorker(this::handleMetrics));
+            server.createContext("/health", this::handleHealth);
+            if (eventLog != null) {
+                server.createContext("/sessions", onWorker(this::handleSessions));
+            }
+            server.createContext("/quantiles", onWorker(this::handleQuantiles));
+            server.setExecutor(withDeadline(requestExecutor));
             server.start();
         } catch (IOException e) {
             throw new RuntimeException("Failed to start metrics server", e);
@@ -41,5 +133,468 @@ public class MetricsHttpServer {
         if (server != null) {
             server.stop(0);
         }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (requestExecutor != null) {
+            requestExecutor.shutdownNow();
+        }
+        if (deadlines != null) {
+            deadlines.shutdownNow();
+        }
+        ScrapeBuffer buffer;
+        while ((buffer = buffers.poll()) != null) {
+            buffer.gzip.close();
+        }
+        if (textSnapshotCache != null) {
+            textSnapshotCache.close();
+        }
+        if (protobufSnapshotCache != null) {
+            protobufSnapshotCache.close();
+        }
+    }
+
+    public InetSocketAddress getAddress() {
+        return server != null ? server.getAddress() : bindAddress;
+    }
+
+    private void handleMetrics(HttpExchange httpExchange) throws IOException {
+        long start = internalMetrics.startNanos();
+        try {
+            serveMetrics(httpExchange);
+        } finally {
+            internalMetrics.recordHttpRequest(start);
+        }
+    }
+
+    private void serveMetrics(HttpExchange httpExchange) throws IOException {
+        try (httpExchange) {
+            drainRequestBody(httpExchange);
+            if (!"GET".equals(httpExchange.getRequestMethod())) {
+                httpExchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            boolean protobuf = protobufEnabled && acceptsProtobuf(httpExchange);
+            ScrapeBuffer buffer = acquireBuffer();
+            try {
+                ExpositionWriter writer = protobuf ? buffer.protobufWriter : buffer.textWriter;
+                httpExchange.getResponseHeaders().set("Content-Type", writer.contentType());
+                httpExchange.getResponseHeaders().set("Vary", "Accept, Accept-Encoding");
+
+                ScrapeSnapshotCache snapshotCache = protobuf ? protobufSnapshotCache : textSnapshotCache;
+                if (snapshotCache != null) {
+                    sendSnapshot(httpExchange, snapshotCache.get(), writer, buffer.gzip);
+                    return;
+                }
+
+                writer.reset();
+                metricsExporter.exportMetrics(writer);
+
+                OutputStream os = httpExchange.getResponseBody();
+                if (acceptsGzip(httpExchange)) {
+                    writer.compressTo(buffer.gzip);
+                    httpExchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                    httpExchange.sendResponseHeaders(200, buffer.gzip.size());
+                    buffer.gzip.writeTo(os);
+                } else {
+                    // A length of 0 would switch to chunked encoding, -1 means no body
+                    httpExchange.sendResponseHeaders(200, writer.size() > 0 ? writer.size() : -1);
+                    writer.writeTo(os);
+                }
+            } finally {
+                releaseBuffer(buffer);
+            }
+        }
+    }
+
+    /**
+     * Sends the shared snapshot followed by its age. The age is rendered per request and, for gzip,
+     * appended as a second gzip member so the shared compressed bytes can be sent untouched.
+     * Both formats tolerate concatenation: text is line based and protobuf is a stream of delimited messages.
+     */
+    private void sendSnapshot(HttpExchange httpExchange, ScrapeSnapshotCache.Snapshot snapshot,
+                              ExpositionWriter writer, GzipEncoder gzip) throws IOException {
+        writer.reset();
+        writer.family("sigil_scrape_snapshot_age_seconds", "Age of the shared metrics snapshot when it was served", "gauge");
+        writer.sample("sigil_scrape_snapshot_age_seconds").value(snapshot.ageSeconds());
+
+        OutputStream os = httpExchange.getResponseBody();
+        if (acceptsGzip(httpExchange)) {
+            writer.compressTo(gzip);
+            httpExchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            httpExchange.sendResponseHeaders(200, snapshot.gzip().length + gzip.size());
+            os.write(snapshot.gzip());
+            gzip.writeTo(os);
+        } else {
+            httpExchange.sendResponseHeaders(200, snapshot.plain().length + writer.size());
+            os.write(snapshot.plain());
+            writer.writeTo(os);
+        }
+    }
+
+    private void handleHealth(HttpExchange httpExchange) throws IOException {
+        try (httpExchange) {
+            drainRequestBody(httpExchange);
+            httpExchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            httpExchange.sendResponseHeaders(200, HEALTHY.length);
+            httpExchange.getResponseBody().write(HEALTHY);
+        }
+    }
+
+    /**
+     * Streams recent session events as NDJSON, optionally filtered with the query parameters
+     * {@code from} and {@code to} (epoch milliseconds or ISO-8601 instants), {@code player} (UUID),
+     * {@code server} (backend name) and {@code limit} (most recent N matches).
+     */
+    private void handleSessions(HttpExchange httpExchange) throws IOException {
+        try (httpExchange) {
+            drainRequestBody(httpExchange);
+            if (!"GET".equals(httpExchange.getRequestMethod())) {
+                httpExchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            if (!sessionQueries.tryAcquire()) {
+                byte[] message = "Another session query is running\n".getBytes(StandardCharsets.UTF_8);
+                httpExchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                httpExchange.getResponseHeaders().set("Retry-After", "1");
+                httpExchange.sendResponseHeaders(429, message.length);
+                httpExchange.getResponseBody().write(message);
+                return;
+            }
+            try {
+                serveSessions(httpExchange);
+            } finally {
+                sessionQueries.release();
+            }
+        }
+    }
+
+    private void serveSessions(HttpExchange httpExchange) throws IOException {
+        SessionEventLog.Query query;
+        try {
+            query = parseSessionQuery(httpExchange.getRequestURI().getRawQuery());
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            byte[] message = ("Invalid query: " + e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8);
+            httpExchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            httpExchange.sendResponseHeaders(400, message.length);
+            httpExchange.getResponseBody().write(message);
+            return;
+        }
+
+        httpExchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+        // Length 0 streams the records with chunked encoding as they are read from the log
+        httpExchange.sendResponseHeaders(200, 0);
+        try (OutputStream os = new BufferedOutputStream(httpExchange.getResponseBody(), SESSIONS_BUFFER_SIZE)) {
+            eventLog.writeNdjson(query, os);
+        }
+    }
+
+    /**
+     * Serves session duration and backend stay quantiles as JSON. The quantiles to estimate can be
+     * chosen with the query parameter {@code q}, a comma-separated list such as {@code q=0.5,0.95}.
+     */
+    private void handleQuantiles(HttpExchange httpExchange) throws IOException {
+        try (httpExchange) {
+            drainRequestBody(httpExchange);
+            if (!"GET".equals(httpExchange.getRequestMethod())) {
+                httpExchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            double[] quantiles;
+            try {
+                quantiles = parseQuantiles(httpExchange.getRequestURI().getRawQuery());
+            } catch (IllegalArgumentException e) {
+                byte[] message = ("Invalid query: " + e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8);
+                httpExchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                httpExchange.sendResponseHeaders(400, message.length);
+                httpExchange.getResponseBody().write(message);
+                return;
+            }
+
+            byte[] body = QuantileReport.render(metricsExporter.metricsManager(), quantiles);
+            httpExchange.getResponseHeaders().set("Content-Type", "application/json");
+            httpExchange.sendResponseHeaders(200, body.length);
+            httpExchange.getResponseBody().write(body);
+        }
+    }
+
+    private static double[] parseQuantiles(String rawQuery) {
+        if (rawQuery != null) {
+            for (String param : rawQuery.split("&")) {
+                int eq = param.indexOf('=');
+                if (eq < 0 || !URLDecoder.decode(param.substring(0, eq), StandardCharsets.UTF_8).equals("q")) {
+                    continue;
+                }
+                String[] values = URLDecoder.decode(param.substring(eq + 1), StandardCharsets.UTF_8).split(",");
+                double[] quantiles = new double[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    quantiles[i] = Double.parseDouble(values[i].trim());
+                    if (!(quantiles[i] >= 0 && quantiles[i] <= 1)) {
+                        throw new IllegalArgumentException("quantiles must be between 0 and 1");
+                    }
+                }
+                return quantiles;
+            }
+        }
+        return QuantileReport.DEFAULT_QUANTILES;
+    }
+
+    private static SessionEventLog.Query parseSessionQuery(String rawQuery) {
+        Long from = null;
+        Long to = null;
+        UUID player = null;
+        String server = null;
+        int limit = 0;
+        if (rawQuery != null) {
+            for (String param : rawQuery.split("&")) {
+                int eq = param.indexOf('=');
+                if (eq < 0) {
+                    continue;
+                }
+                String name = URLDecoder.decode(param.substring(0, eq), StandardCharsets.UTF_8);
+                String value = URLDecoder.decode(param.substring(eq + 1), StandardCharsets.UTF_8);
+                switch (name) {
+                    case "from" -> from = parseTime(value);
+                    case "to" -> to = parseTime(value);
+                    case "player" -> player = UUID.fromString(value);
+                    case "server" -> server = value;
+                    case "limit" -> limit = Integer.parseInt(value);
+                    default -> {
+                        // Ignore unknown parameters
+                    }
+                }
+            }
+        }
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+        return new SessionEventLog.Query(from, to, player, server, limit);
+    }
+
+    private static long parseTime(String value) {
+        return value.chars().allMatch(Character::isDigit)
+                ? Long.parseLong(value)
+                : Instant.parse(value).toEpochMilli();
+    }
+
+    private ScrapeBuffer acquireBuffer() {
+        ScrapeBuffer buffer = buffers.poll();
+        return buffer != null ? buffer : new ScrapeBuffer();
+    }
+
+    private void releaseBuffer(ScrapeBuffer buffer) {
+        if (!buffers.offer(buffer)) {
+            buffer.gzip.close();
+        }
+    }
+
+    /**
+     * Hands the exchange from the thread that read the request to the worker pool, so requests
+     * waiting for a worker do not hold up the ones answered without one.
+     */
+    private HttpHandler onWorker(HttpHandler handler) {
+        return httpExchange -> {
+            try {
+                executor.execute(() -> runWithDeadline(() -> {
+                    try {
+                        handler.handle(httpExchange);
+                    } catch (IOException | RuntimeException e) {
+                        // The scraper went away or timed out, drop the connection
+                        httpExchange.close();
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                // Stopping
+                httpExchange.close();
+            }
+        };
+    }
+
+    /**
+     * Runs the request threads' tasks, reading a request and answering it or handing it to a
+     * worker, under the connection timeout.
+     */
+    private Executor withDeadline(Executor target) {
+        return task -> target.execute(() -> runWithDeadline(task));
+    }
+
+    /**
+     * Bounds how long a connection may take to send its request or to receive the response, so a
+     * hung scraper cannot hold a thread indefinitely. The JDK's HTTP server reads and writes on
+     * blocking channels, which are closed when the thread blocked on them is interrupted, so the
+     * stuck read or write fails and the connection is dropped. Only this server's connections are
+     * affected, unlike the server's own JVM-wide time limits.
+     */
+    private void runWithDeadline(Runnable task) {
+        Deadline deadline = new Deadline(Thread.currentThread());
+        ScheduledFuture<?> timeout;
+        try {
+            timeout = deadlines.schedule(deadline::expire, CONNECTION_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopping, the connection is about to be closed anyway
+            timeout = null;
+        }
+        try {
+            task.run();
+        } finally {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            deadline.finish();
+        }
+    }
+
+    private static ScheduledExecutorService createDeadlineScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "sigil-metrics-http-deadline");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Nearly every deadline is cancelled, don't keep them queued for the full timeout
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    /**
+     * Threads that read requests and answer /health. They only block on a slow client, which the
+     * connection timeout cuts off, and exit when idle.
+     */
+    private ExecutorService createRequestExecutor() {
+        if (virtualThreads) {
+            ExecutorService virtualExecutor = newVirtualThreadExecutor();
+            if (virtualExecutor != null) {
+                return virtualExecutor;
+            }
+        }
+        AtomicInteger threadId = new AtomicInteger(0);
+        return Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "sigil-metrics-http-request-" + threadId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private ExecutorService createExecutor() {
+        if (virtualThreads) {
+            ExecutorService virtualExecutor = newVirtualThreadExecutor();
+            if (virtualExecutor != null) {
+                return virtualExecutor;
+            }
+        }
+        AtomicInteger threadId = new AtomicInteger(0);
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "sigil-metrics-http-" + threadId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // Virtual threads need Java 21, fall back to platform threads
+            return null;
+        }
+    }
+
+    private static boolean acceptsGzip(HttpExchange httpExchange) {
+        for (String header : httpExchange.getRequestHeaders().getOrDefault("Accept-Encoding", List.of())) {
+            for (String coding : header.split(",")) {
+                String[] parts = coding.split(";");
+                if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                    return parts.length < 2 || qualityOf(parts[1]) > 0;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean acceptsProtobuf(HttpExchange httpExchange) {
+        for (String header : httpExchange.getRequestHeaders().getOrDefault("Accept", List.of())) {
+            for (String mediaRange : header.split(",")) {
+                String[] parts = mediaRange.split(";");
+                if (!parts[0].trim().equalsIgnoreCase(PROTOBUF_MEDIA_TYPE)) {
+                    continue;
+                }
+                boolean metricFamily = false;
+                double quality = 1;
+                for (int i = 1; i < parts.length; i++) {
+                    String param = parts[i].trim();
+                    if (param.equals(PROTOBUF_PROTO)) {
+                        metricFamily = true;
+                    } else if (param.startsWith("q=")) {
+                        quality = qualityOf(param);
+                    }
+                }
+                return metricFamily && quality > 0;
+            }
+        }
+        return false;
+    }
+
+    private static double qualityOf(String param) {
+        String value = param.trim();
+        if (!value.startsWith("q=")) {
+            return 1;
+        }
+        try {
+            return Double.parseDouble(value.substring(2));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Consumes any request body so the connection can be reused for the next scrape.
+     */
+    private static void drainRequestBody(HttpExchange httpExchange) throws IOException {
+        try (InputStream is = httpExchange.getRequestBody()) {
+            is.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    /**
+     * The connection timeout of one task. The interrupt is only sent while the task is still
+     * running, so it never reaches whatever the thread runs next.
+     */
+    private static final class Deadline {
+        private final Thread thread;
+        private boolean finished;
+        private boolean expired;
+
+        Deadline(Thread thread) {
+            this.thread = thread;
+        }
+
+        synchronized void expire() {
+            if (!finished) {
+                expired = true;
+                thread.interrupt();
+            }
+        }
+
+        void finish() {
+            boolean interrupted;
+            synchronized (this) {
+                finished = true;
+                interrupted = expired;
+            }
+            if (interrupted) {
+                Thread.interrupted();
+            }
+        }
+    }
+
+    /**
+     * Render and compression buffers reused across scrapes.
+     */
+    private static final class ScrapeBuffer {
+        final ExpositionWriter textWriter = new TextExpositionWriter();
+        final ExpositionWriter protobufWriter = new ProtobufExpositionWriter();
+        final GzipEncoder gzip = new GzipEncoder();
     }
 }
@@ -3,22 +3,31 @@ package com.confect1on.sigil.metrics;
 import com.velocitypowered.api.proxy.Player;
 import com.velocitypowered.api.proxy.server.RegisteredServer;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.time.Duration;
-import java.time.Instant;
 import java.util.Map;
 import java.util.NavigableMap;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
 
 /**
  * Manages metrics collection and storage for Sigil.
  * Thread-safe implementation for concurrent access.
  */
 public class MetricsManager {
+    /** Region assigned to a session while its GeoIP lookup is still in flight. */
+    public static final String PENDING_REGION = "PENDING";
+    /** Largest supported label limit; label IDs are packed into 15 bits of the session state. */
+    public static final int MAX_LABEL_VALUES = 32000;
+
+    // Default session duration buckets in seconds; the +Inf bucket is implicit
     private static final double[] DURATION_HISTOGRAM_BUCKETS = {
         5,      // 5 seconds
         15,     // 15 seconds
@@ -40,108 +49,376 @@ public class MetricsManager {
         32400,  // 9 hours
         36000,  // 10 hours
         39600,  // 11 hours
-        43200,  // 12 hours
-        Double.POSITIVE_INFINITY
+        43200   // 12 hours
+    };
+    private static final double[] PLAYER_LATENCY_BUCKETS = {
+        0.005, 0.01, 0.02, 0.03, 0.05, 0.075, 0.1, 0.15, 0.2, 0.3, 0.5, 1
     };
+    private static final double[] BACKEND_PING_BUCKETS = {
+        0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5
+    };
+    // Resolution of the quantile sketches kept when native histograms are off: within about 4% of the true value
+    private static final int QUANTILE_SKETCH_SCHEMA = 3;
+    private static final int QUANTILE_SKETCH_MAX_BUCKETS = 160;
    
     private final Map<UUID, PlayerSession> activeSessions = new ConcurrentHashMap<>();
-    private final Map<String, AtomicInteger> playersByRegion = new ConcurrentHashMap<>();
-    private final Map<String, AtomicInteger> playersByBackend = new ConcurrentHashMap<>();
+    // Region -> backend -> latency, kept per ID of the region and backend limiters like the
+    // session durations below, so a sample needs no composite key and recycled pairs fold into "other"
+    private final LabeledSeries<LabeledSeries<Histogram>> playerLatency;
     
     // Session Duration Histogram
-    private final NavigableMap<Double, AtomicInteger> sessionDurationHistogramBuckets = new TreeMap<>();
-    private final AtomicLong sessionDurationSum = new AtomicLong(0);
-    private final AtomicInteger sessionDurationCount = new AtomicInteger(0);
+    private final Histogram sessionDuration;
+    private final double[] durationBuckets;
+    // Session duration by the region it was counted under, and the length of each stay on a backend,
+    // kept per ID of the region and backend limiters and folded into "other" when a slot is recycled.
+    // Both carry a quantile sketch so /quantiles can answer without a Prometheus query.
+    private final LabeledSeries<Histogram> sessionDurationByRegion;
+    private final LabeledSeries<Histogram> backendStay;
+
+    // Native (sparse exponential) buckets kept alongside the classic ones, disabled when maxBuckets is 0
+    private final int nativeSchema;
+    private final int nativeMaxBuckets;
+
+    // Label values interned to IDs; each limiter also holds the per-value player counts.
+    // Sessions store the IDs they were admitted under and release them when they leave.
+    private final LabelLimiter regionLimiter;
+    private final LabelLimiter backendLimiter;
+    private final LabelLimiter asnLimiter;
+    private final LabelLimiter subdivisionLimiter;
+    private final int pendingRegionId;
+
+    // Recent session transitions for forensics, or null
+    private final SessionEventLog eventLog;
 
     private final Map<String, Boolean> backendStatus = new ConcurrentHashMap<>();
     private final Map<String, Long> lastPingTime = new ConcurrentHashMap<>();
-    private static final long PING_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+    private final Map<String, Histogram> backendPingLatency = new ConcurrentHashMap<>();
+    private volatile long pingTimeoutMs = TimeUnit.SECONDS.toMillis(30);
 
     public MetricsManager() {
-        // Initialize duration histogram buckets
-        for (double bucket : DURATION_HISTOGRAM_BUCKETS) {
-            sessionDurationHistogramBuckets.put(bucket, new AtomicInteger(0));
+        this(DURATION_HISTOGRAM_BUCKETS);
+    }
+
+    /**
+     * @param durationBuckets Ascending session duration bucket upper bounds in seconds
+     */
+    public MetricsManager(double[] durationBuckets) {
+        this(durationBuckets, 0, 0);
+    }
+
+    /**
+     * @param nativeSchema Initial native histogram resolution, see {@link NativeHistogram}
+     * @param nativeMaxBuckets Native bucket limit per histogram, or 0 to keep classic buckets only
+     */
+    public MetricsManager(int nativeSchema, int nativeMaxBuckets) {
+        this(DURATION_HISTOGRAM_BUCKETS, nativeSchema, nativeMaxBuckets, LabelLimits.DEFAULT);
+    }
+
+    /**
+     * @param nativeSchema Initial native histogram resolution, see {@link NativeHistogram}
+     * @param nativeMaxBuckets Native bucket limit per histogram, or 0 to keep classic buckets only
+     * @param labelLimits Distinct label values kept per metric before folding into "other"
+     */
+    public MetricsManager(int nativeSchema, int nativeMaxBuckets, LabelLimits labelLimits) {
+        this(DURATION_HISTOGRAM_BUCKETS, nativeSchema, nativeMaxBuckets, labelLimits, null);
+    }
+
+    /**
+     * @param nativeSchema Initial native histogram resolution, see {@link NativeHistogram}
+     * @param nativeMaxBuckets Native bucket limit per histogram, or 0 to keep classic buckets only
+     * @param labelLimits Distinct label values kept per metric before folding into "other"
+     * @param eventLog Receives every session transition, or null to keep none
+     */
+    public MetricsManager(int nativeSchema, int nativeMaxBuckets, LabelLimits labelLimits, SessionEventLog eventLog) {
+        this(DURATION_HISTOGRAM_BUCKETS, nativeSchema, nativeMaxBuckets, labelLimits, eventLog);
+    }
+
+    /**
+     * @param durationBuckets Ascending session duration bucket upper bounds in seconds
+     * @param nativeSchema Initial native histogram resolution, see {@link NativeHistogram}
+     * @param nativeMaxBuckets Native bucket limit per histogram, or 0 to keep classic buckets only
+     */
+    public MetricsManager(double[] durationBuckets, int nativeSchema, int nativeMaxBuckets) {
+        this(durationBuckets, nativeSchema, nativeMaxBuckets, LabelLimits.DEFAULT);
+    }
+
+    /**
+     * @param durationBuckets Ascending session duration bucket upper bounds in seconds
+     * @param nativeSchema Initial native histogram resolution, see {@link NativeHistogram}
+     * @param nativeMaxBuckets Native bucket limit per histogram, or 0 to keep classic buckets only
+     * @param labelLimits Distinct label values kept per metric before folding into "other"
+     */
+    public MetricsManager(double[] durationBuckets, int nativeSchema, int nativeMaxBuckets, LabelLimits labelLimits) {
+        this(durationBuckets, nativeSchema, nativeMaxBuckets, labelLimits, null);
+    }
+
+    /**
+     * @param durationBuckets Ascending session duration bucket upper bounds in seconds
+     * @param nativeSchema Initial native histogram resolution, see {@link NativeHistogram}
+     * @param nativeMaxBuckets Native bucket limit per histogram, or 0 to keep classic buckets only
+     * @param labelLimits Distinct label values kept per metric before folding into "other"
+     * @param eventLog Receives every session transition, or null to keep none
+     */
+    public MetricsManager(double[] durationBuckets, int nativeSchema, int nativeMaxBuckets, LabelLimits labelLimits,
+                          SessionEventLog eventLog) {
+        this.eventLog = eventLog;
+        this.nativeSchema = nativeSchema;
+        this.nativeMaxBuckets = nativeMaxBuckets;
+        this.sessionDuration = newHistogram(durationBuckets);
+        this.durationBuckets = durationBuckets.clone();
+        this.regionLimiter = new LabelLimiter("sigil_players_by_region", labelLimits.regions(),
+                Set.of(PENDING_REGION, "UNKNOWN", "LOCAL"));
+        this.backendLimiter = new LabelLimiter("sigil_backend_players", labelLimits.backends(), Set.of());
+        this.asnLimiter = new LabelLimiter("sigil_players_by_asn", labelLimits.asns(), Set.of());
+        this.subdivisionLimiter = new LabelLimiter("sigil_players_by_subdivision", labelLimits.subdivisions(), Set.of());
+        this.pendingRegionId = regionLimiter.idOf(PENDING_REGION);
+        this.sessionDurationByRegion = new LabeledSeries<>(regionLimiter, () -> newSketchedHistogram(this.durationBuckets),
+                Histogram::add);
+        this.backendStay = new LabeledSeries<>(backendLimiter, () -> newSketchedHistogram(this.durationBuckets),
+                Histogram::add);
+        this.playerLatency = new LabeledSeries<>(regionLimiter,
+                () -> new LabeledSeries<>(backendLimiter, () -> newHistogram(PLAYER_LATENCY_BUCKETS), Histogram::add),
+                (other, retired) -> retired.foldInto(other));
+        for (int limit : new int[] {labelLimits.regions(), labelLimits.backends(), labelLimits.asns(), labelLimits.subdivisions()}) {
+            if (limit > MAX_LABEL_VALUES) {
+                throw new IllegalArgumentException("Label limits must not exceed " + MAX_LABEL_VALUES + ": " + labelLimits);
+            }
         }
-        // Prometheus also expects an +Inf bucket, often represented by the _count metric itself
-        // or explicitly if library requires it. We will handle it in exporter.
+    }
+
+    private Histogram newHistogram(double[] bounds) {
+        return nativeMaxBuckets > 0
+                ? new Histogram(bounds, new NativeHistogram(nativeSchema, nativeMaxBuckets))
+                : new Histogram(bounds);
+    }
+
+    /**
+     * A histogram that always keeps native buckets, as the sketch quantiles are estimated from.
+     */
+    private Histogram newSketchedHistogram(double[] bounds) {
+        return nativeMaxBuckets > 0
+                ? newHistogram(bounds)
+                : new Histogram(bounds, new NativeHistogram(QUANTILE_SKETCH_SCHEMA, QUANTILE_SKETCH_MAX_BUCKETS));
     }
 
     public void playerConnected(Player player, String region) {
         UUID playerId = player.getUniqueId();
-        
-        // Remove player from old region if they were already connected
-        PlayerSession oldSession = activeSessions.get(playerId);
+        PlayerSession session = new PlayerSession(regionLimiter.admit(region));
+
+        // Close out the old session if the player was already connected
+        PlayerSession oldSession = activeSessions.put(playerId, session);
         if (oldSession != null) {
-            decrementRegionCount(oldSession.region());
-            decrementBackendCount(oldSession.currentServer());
+            close(playerId, oldSession, null);
+        }
+        if (eventLog != null) {
+            eventLog.record(SessionEventLog.Type.JOIN, playerId, region, null, null, 0);
         }
-        
-        // Add to new region
-        activeSessions.put(playerId, new PlayerSession(player, region));
-        incrementRegionCount(region);
     }
 
     public void playerDisconnected(UUID playerId) {
         PlayerSession session = activeSessions.remove(playerId);
         if (session != null) {
-            decrementRegionCount(session.region());
-            decrementBackendCount(session.currentServer());
-            
-            // Update session duration metrics
-            Duration duration = Duration.between(session.connectTime(), Instant.now());
-            long seconds = duration.getSeconds();
-            sessionDurationSum.addAndGet(seconds);
-            sessionDurationCount.incrementAndGet();
-            
-            // Increment all relevant buckets (cumulative)
-            for (double bucket : sessionDurationHistogramBuckets.keySet()) { // Iterate sorted keys
-                if (seconds <= bucket) {
-                    sessionDurationHistogramBuckets.get(bucket).incrementAndGet();
+            close(playerId, session, SessionEventLog.Type.DISCONNECT);
+        }
+    }
+
+    /**
+     * Ends every open session, recording its duration so it is not lost when the proxy stops.
+     */
+    public void closeAllSessions() {
+        for (UUID playerId : activeSessions.keySet()) {
+            playerDisconnected(playerId);
+        }
+    }
+
+    /**
+     * Moves a session out of the provisional {@link #PENDING_REGION} once its GeoIP lookup has finished.
+     */
+    public void updatePlayerRegion(UUID playerId, String region) {
+        updatePlayerLocation(playerId, region, null, null);
+    }
+
+    /**
+     * Moves a session out of the provisional {@link #PENDING_REGION} once its GeoIP lookup has finished,
+     * recording its ASN and subdivision where the optional databases provided them.
+     * @param asn Autonomous system number, or null if unknown
+     * @param subdivision ISO 3166-2 subdivision code, or null if unknown
+     */
+    public void updatePlayerLocation(UUID playerId, String region, String asn, String subdivision) {
+        PlayerSession session = activeSessions.get(playerId);
+        if (session == null || !isPending(session.state())) {
+            return;
+        }
+
+        int regionId = regionLimiter.admit(region);
+        int asnId = asn != null ? asnLimiter.admit(asn) : LabelLimiter.NONE;
+        int subdivisionId = subdivision != null ? subdivisionLimiter.admit(subdivision) : LabelLimiter.NONE;
+        while (true) {
+            long state = session.state();
+            if (!isPending(state)) {
+                // Closed or already located by someone else: the new labels were never counted
+                regionLimiter.release(regionId);
+                asnLimiter.release(asnId);
+                subdivisionLimiter.release(subdivisionId);
+                return;
+            }
+            long next = PlayerSession.with(PlayerSession.with(PlayerSession.with(state,
+                    PlayerSession.REGION, regionId), PlayerSession.ASN, asnId), PlayerSession.SUBDIVISION, subdivisionId);
+            if (session.compareAndSet(state, next)) {
+                regionLimiter.release(pendingRegionId);
+                if (eventLog != null) {
+                    eventLog.record(SessionEventLog.Type.REGION, playerId, region, backendName(state), null, 0);
                 }
+                return;
             }
         }
     }
 
     public void updatePlayerServer(UUID playerId, RegisteredServer server) {
         PlayerSession session = activeSessions.get(playerId);
-        if (session != null) {
-            String oldServer = session.currentServer();
-            if (oldServer != null) {
-                decrementBackendCount(oldServer);
+        if (session == null) {
+            return;
+        }
+
+        int backendId = backendLimiter.admit(server.getServerInfo().getName());
+        while (true) {
+            long state = session.state();
+            // Read between the state and the CAS, so transitions that succeed carry ascending times
+            long now = System.nanoTime();
+            if (PlayerSession.isClosed(state)) {
+                backendLimiter.release(backendId);
+                return;
+            }
+            if (session.compareAndSet(state, PlayerSession.with(state, PlayerSession.BACKEND, backendId))) {
+                recordStay(session, state, now);
+                if (eventLog != null) {
+                    // Before the release, after which the old backend's ID may be recycled
+                    eventLog.record(SessionEventLog.Type.SWITCH, playerId, regionLimiter.label(PlayerSession.get(state, PlayerSession.REGION)),
+                            server.getServerInfo().getName(), backendName(state), 0);
+                }
+                backendLimiter.release(PlayerSession.get(state, PlayerSession.BACKEND));
+                return;
             }
-            session.updateServer(server.getServerInfo().getName());
-            incrementBackendCount(server.getServerInfo().getName());
         }
     }
 
-    private void incrementRegionCount(String region) {
-        playersByRegion.computeIfAbsent(region, k -> new AtomicInteger(0))
-                      .incrementAndGet();
+    /**
+     * Records a latency sample against the player's current region and backend server.
+     * Samples for players without a session or not yet on a backend are ignored.
+     */
+    public void recordPlayerLatency(UUID playerId, long pingMillis) {
+        PlayerSession session = activeSessions.get(playerId);
+        if (session == null) {
+            return;
+        }
+        // One read gives a consistent region and backend
+        long state = session.state();
+        int serverId = PlayerSession.get(state, PlayerSession.BACKEND);
+        if (serverId == LabelLimiter.NONE || PlayerSession.isClosed(state)) {
+            return;
+        }
+        playerLatency.forId(PlayerSession.get(state, PlayerSession.REGION)).forId(serverId).observe(pingMillis / 1000.0);
+    }
+
+    /**
+     * @return Whether a session is open for the player
+     */
+    public boolean hasSession(UUID playerId) {
+        return activeSessions.containsKey(playerId);
+    }
+
+    /**
+     * Visits the player ID of every open session.
+     */
+    public void forEachSessionId(Consumer<UUID> action) {
+        activeSessions.keySet().forEach(action);
+    }
+
+    /**
+     * Drops a session without recording its duration, for sessions whose disconnect was never seen.
+     * @return Whether there was a session to drop
+     */
+    public boolean discardSession(UUID playerId) {
+        PlayerSession session = activeSessions.remove(playerId);
+        if (session == null) {
+            return false;
+        }
+        close(playerId, session, SessionEventLog.Type.DISCARD);
+        return true;
     }
 
-    private void decrementRegionCount(String region) {
-        AtomicInteger count = playersByRegion.get(region);
-        if (count != null && count.decrementAndGet() <= 0) {
-            playersByRegion.remove(region);
+    /**
+     * @return Whether the player's session is counted under the given backend, taking folding into "other" into account
+     */
+    public boolean isOnServer(UUID playerId, String serverName) {
+        PlayerSession session = activeSessions.get(playerId);
+        if (session == null) {
+            return false;
         }
+        int counted = PlayerSession.get(session.state(), PlayerSession.BACKEND);
+        int expected = backendLimiter.idOf(serverName);
+        return counted == expected || (expected == LabelLimiter.NONE && counted == LabelLimiter.OTHER_ID);
+    }
+
+    private boolean isPending(long state) {
+        return !PlayerSession.isClosed(state) && PlayerSession.get(state, PlayerSession.REGION) == pendingRegionId;
     }
 
-    private void incrementBackendCount(String server) {
-        if (server != null) {
-            playersByBackend.computeIfAbsent(server, k -> new AtomicInteger(0))
-                          .incrementAndGet();
+    /**
+     * Marks a session closed and releases the labels it was counted under at that moment.
+     * Closing is a single atomic transition, so a concurrent update either lands before it and
+     * is released here, or sees the session closed and releases its own labels.
+     * @param reason {@link SessionEventLog.Type#DISCONNECT} to record the duration, {@link SessionEventLog.Type#DISCARD}
+     *               to drop it, or null for a session replaced by a new login, which is neither recorded nor logged
+     */
+    private void close(UUID playerId, PlayerSession session, SessionEventLog.Type reason) {
+        long now = System.nanoTime();
+        long state = session.close();
+        if (PlayerSession.isClosed(state)) {
+            return;
+        }
+        long durationNanos = now - session.connectNanos();
+        // Resolve names before releasing, after which the IDs may be recycled
+        if (eventLog != null && reason != null) {
+            eventLog.record(reason, playerId, regionLimiter.label(PlayerSession.get(state, PlayerSession.REGION)),
+                    backendName(state), null, reason == SessionEventLog.Type.DISCONNECT ? durationNanos : 0);
         }
+        if (reason == SessionEventLog.Type.DISCONNECT) {
+            // Update session duration metrics
+            sessionDuration.observe(durationNanos / 1e9);
+            sessionDurationByRegion.forId(PlayerSession.get(state, PlayerSession.REGION))
+                    .observe(durationNanos / 1e9);
+            recordStay(session, state, now);
+        }
+        regionLimiter.release(PlayerSession.get(state, PlayerSession.REGION));
+        backendLimiter.release(PlayerSession.get(state, PlayerSession.BACKEND));
+        asnLimiter.release(PlayerSession.get(state, PlayerSession.ASN));
+        subdivisionLimiter.release(PlayerSession.get(state, PlayerSession.SUBDIVISION));
     }
 
-    private void decrementBackendCount(String server) {
-        if (server != null) {
-            AtomicInteger count = playersByBackend.get(server);
-            if (count != null && count.decrementAndGet() <= 0) {
-                playersByBackend.remove(server);
-            }
+    /**
+     * Credits the backend a session is leaving with the time since it arrived there. Called by the
+     * thread whose transition moved the session off {@code state}, before its backend ID is released.
+     * The arrival time only moves forward, so when a later transition's call gets here first, this
+     * one credits nothing rather than a negative stay, and no stretch of time is credited twice.
+     * @param now {@link System#nanoTime()} taken just before the transition
+     */
+    private void recordStay(PlayerSession session, long state, long now) {
+        long arrivedNanos = session.advanceArrivedNanos(now);
+        int backendId = PlayerSession.get(state, PlayerSession.BACKEND);
+        if (backendId != LabelLimiter.NONE) {
+            backendStay.forId(backendId).observe(Math.max(0, now - arrivedNanos) / 1e9);
         }
     }
 
+    /**
+     * @return The name of the backend a session state is on, or null if it has not reached one
+     */
+    private String backendName(long state) {
+        int backendId = PlayerSession.get(state, PlayerSession.BACKEND);
+        return backendId != LabelLimiter.NONE ? backendLimiter.label(backendId) : null;
+    }
+
     // Metric accessors
     public int getActiveSessionCount() {
         return activeSessions.size();
@@ -149,39 +426,102 @@ public class MetricsManager {
 
     public Map<String, Integer> getPlayersByRegion() {
         Map<String, Integer> result = new ConcurrentHashMap<>();
-        playersByRegion.forEach((region, count) -> {
-            int value = count.get();
-            if (value > 0) {
-                result.put(region, value);
-            }
-        });
+        regionLimiter.forEachCounted(result::put);
         return result;
     }
 
     public Map<String, Integer> getPlayersByBackend() {
         Map<String, Integer> result = new ConcurrentHashMap<>();
-        playersByBackend.forEach((server, count) -> {
-            int value = count.get();
-            if (value > 0) {
-                result.put(server, value);
-            }
-        });
+        backendLimiter.forEachCounted(result::put);
         return result;
     }
 
+    /**
+     * Visits every region with active players without copying the underlying counts.
+     */
+    public void forEachPlayersByRegion(ObjIntConsumer<String> action) {
+        regionLimiter.forEachCounted(action);
+    }
+
+    /**
+     * Visits every autonomous system with active players; empty unless the ASN database is installed.
+     */
+    public void forEachPlayersByAsn(ObjIntConsumer<String> action) {
+        asnLimiter.forEachCounted(action);
+    }
+
+    /**
+     * Visits every subdivision with active players; empty unless the City database is installed.
+     */
+    public void forEachPlayersBySubdivision(ObjIntConsumer<String> action) {
+        subdivisionLimiter.forEachCounted(action);
+    }
+
+    /**
+     * Visits the limiter of every label-limited metric, for reporting dropped values.
+     */
+    public void forEachLabelLimiter(Consumer<LabelLimiter> action) {
+        action.accept(regionLimiter);
+        action.accept(backendLimiter);
+        action.accept(asnLimiter);
+        action.accept(subdivisionLimiter);
+    }
+
+    /**
+     * Visits every backend with active players without copying the underlying counts.
+     */
+    public void forEachPlayersByBackend(ObjIntConsumer<String> action) {
+        backendLimiter.forEachCounted(action);
+    }
+
+    /**
+     * Visits the latency histogram of every region and backend pair that has been sampled.
+     */
+    public void forEachPlayerLatency(LatencyHistogramConsumer action) {
+        playerLatency.forEach((region, byServer) ->
+                byServer.forEach((server, histogram) -> action.accept(region, server, histogram)));
+    }
+
     // Getters for Session Duration Histogram
+    public Histogram getSessionDurationHistogram() {
+        return sessionDuration;
+    }
+
+    /**
+     * Visits the session duration histogram of every region with a completed session.
+     */
+    public void forEachSessionDurationByRegion(BiConsumer<String, Histogram> action) {
+        sessionDurationByRegion.forEach(action);
+    }
+
+    /**
+     * Visits the stay histogram of every backend a player has left, whose sum is the total time
+     * players spent on that backend.
+     */
+    public void forEachBackendStay(BiConsumer<String, Histogram> action) {
+        backendStay.forEach(action);
+    }
+
+    /**
+     * @return Cumulative bucket counts keyed by upper bound, including the +Inf bucket
+     */
     public NavigableMap<Double, Integer> getSessionDurationHistogramBuckets() {
         NavigableMap<Double, Integer> result = new TreeMap<>();
-        sessionDurationHistogramBuckets.forEach((bucket, count) -> result.put(bucket, count.get()));
+        double[] bounds = sessionDuration.bounds();
+        long cumulative = 0;
+        for (int i = 0; i <= bounds.length; i++) {
+            cumulative += sessionDuration.bucketCount(i);
+            result.put(i < bounds.length ? bounds[i] : Double.POSITIVE_INFINITY, (int) cumulative);
+        }
         return result;
     }
 
     public long getSessionDurationSum() {
-        return sessionDurationSum.get();
+        return (long) sessionDuration.sum();
     }
 
     public int getSessionDurationCount() {
-        return sessionDurationCount.get();
+        return (int) sessionDuration.count();
     }
 
     /**
@@ -192,6 +532,27 @@ public class MetricsManager {
         lastPingTime.put(serverName, System.currentTimeMillis());
     }
 
+    /**
+     * Record the round-trip time of a successful backend ping
+     */
+    public void recordBackendPing(String serverName, double seconds) {
+        backendPingHistogram(serverName).observe(seconds);
+    }
+
+    /**
+     * Visits the ping latency histogram of every backend that has answered at least one ping.
+     */
+    public void forEachBackendPingLatency(BiConsumer<String, Histogram> action) {
+        backendPingLatency.forEach(action);
+    }
+
+    /**
+     * @param pingTimeout How long a backend stays up after its last successful ping
+     */
+    public void setPingTimeout(Duration pingTimeout) {
+        this.pingTimeoutMs = pingTimeout.toMillis();
+    }
+
     /**
      * Get current backend server status
      * @return Map of server names to their status (true = up, false = down)
@@ -201,34 +562,175 @@ public class MetricsManager {
         Map<String, Boolean> current = new ConcurrentHashMap<>();
         
         backendStatus.forEach((server, status) -> {
-            // Consider server down if we haven't received a ping in PING_TIMEOUT_MS
+            // Consider server down if we haven't received a ping within the ping timeout
             Long lastPing = lastPingTime.get(server);
             boolean isUp = status && lastPing != null && 
-                         (now - lastPing) <= PING_TIMEOUT_MS;
+                         (now - lastPing) <= pingTimeoutMs;
             current.put(server, isUp);
         });
         
         return current;
     }
 
-    private static class PlayerSession {
-        private final Player player;
-        private final String region;
-        private final Instant connectTime;
-        private String currentServer;
+    /**
+     * Visits the current status of every known backend (1 = up, 0 = down).
+     */
+    public void forEachBackendStatus(ObjIntConsumer<String> action) {
+        long now = System.currentTimeMillis();
+        backendStatus.forEach((server, status) -> {
+            Long lastPing = lastPingTime.get(server);
+            boolean isUp = status && lastPing != null &&
+                         (now - lastPing) <= pingTimeoutMs;
+            action.accept(server, isUp ? 1 : 0);
+        });
+    }
+
+    /**
+     * Visits every open session with the wall-clock times it started and reached its backend, and
+     * the labels it is counted under, for persisting.
+     */
+    void forEachOpenSession(Consumer<OpenSession> action) {
+        long nowMillis = System.currentTimeMillis();
+        long nowNanos = System.nanoTime();
+        activeSessions.forEach((playerId, session) -> {
+            long state = session.state();
+            if (PlayerSession.isClosed(state)) {
+                return;
+            }
+            action.accept(new OpenSession(playerId,
+                    nowMillis - TimeUnit.NANOSECONDS.toMillis(nowNanos - session.connectNanos()),
+                    regionLimiter.label(PlayerSession.get(state, PlayerSession.REGION)), backendName(state),
+                    nowMillis - TimeUnit.NANOSECONDS.toMillis(nowNanos - session.arrivedNanos())));
+        });
+    }
+
+    /**
+     * @return The backend ping histogram for a server, created if it does not exist yet
+     */
+    Histogram backendPingHistogram(String serverName) {
+        return backendPingLatency.computeIfAbsent(serverName, k -> newHistogram(BACKEND_PING_BUCKETS));
+    }
+
+    /**
+     * @return The session duration histogram for a region, created if it does not exist yet; the
+     *         one of "other" if the region limit is reached
+     */
+    Histogram sessionDurationByRegionHistogram(String region) {
+        return sessionDurationByRegion.get(region);
+    }
+
+    /**
+     * @return The stay histogram for a backend, created if it does not exist yet; the one of
+     *         "other" if the backend limit is reached
+     */
+    Histogram backendStayHistogram(String server) {
+        return backendStay.get(server);
+    }
+
+    /**
+     * @return The player latency histogram for a region and server, created if it does not exist yet;
+     *         the one of "other" for a region or server beyond its limit
+     */
+    Histogram playerLatencyHistogram(String region, String server) {
+        return playerLatency.get(region).get(server);
+    }
+
+    @FunctionalInterface
+    public interface LatencyHistogramConsumer {
+        void accept(String region, String server, Histogram histogram);
+    }
+
+    /**
+     * An open session as persisted by {@link MetricsStore}.
+     * @param connectMillis Wall-clock time the session started
+     * @param region Region the session is counted under
+     * @param backend Backend the session is on, or null if it has not reached one
+     * @param arrivedMillis Wall-clock time the session reached its backend
+     */
+    record OpenSession(UUID playerId, long connectMillis, String region, String backend, long arrivedMillis) {
+    }
+
+    /**
+     * Per-player state: the start time, the time the current backend was reached, and one long
+     * packing the label IDs the session is counted under plus a closed flag. Every transition is a
+     * compare-and-set of the whole state, so concurrent join, switch, region and disconnect events
+     * for a player apply in a single order and each label ID taken is released exactly once.
+     */
+    private static final class PlayerSession {
+        // Bit offsets of the 16-bit slots holding 15-bit IDs; IDs are stored plus one so NONE packs as zero
+        static final int REGION = 0;
+        static final int BACKEND = 16;
+        static final int ASN = 32;
+        static final int SUBDIVISION = 48;
+        private static final long FIELD_MASK = 0x7FFF;
+        private static final long CLOSED = 1L << 63;
+
+        private static final VarHandle STATE;
+        private static final VarHandle ARRIVED_NANOS;
 
-        PlayerSession(Player player, String region) {
-            this.player = player;
-            this.region = region;
-            this.connectTime = Instant.now();
+        static {
+            try {
+                STATE = MethodHandles.lookup().findVarHandle(PlayerSession.class, "state", long.class);
+                ARRIVED_NANOS = MethodHandles.lookup().findVarHandle(PlayerSession.class, "arrivedNanos", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
         }
 
-        String region() { return region; }
-        Instant connectTime() { return connectTime; }
-        String currentServer() { return currentServer; }
-        
-        void updateServer(String server) {
-            this.currentServer = server;
+        private final long connectNanos;
+        private volatile long state;
+        // When the session reached its current backend
+        private volatile long arrivedNanos;
+
+        PlayerSession(int regionId) {
+            this.connectNanos = System.nanoTime();
+            this.arrivedNanos = connectNanos;
+            this.state = with(with(with(with(0, REGION, regionId),
+                    BACKEND, LabelLimiter.NONE), ASN, LabelLimiter.NONE), SUBDIVISION, LabelLimiter.NONE);
+        }
+
+        long connectNanos() { return connectNanos; }
+
+        long arrivedNanos() { return arrivedNanos; }
+
+        /**
+         * Moves the arrival time forward to {@code nanos}, unless it is already there or later.
+         * @return The previous arrival time, or {@code nanos} if it was not moved
+         */
+        long advanceArrivedNanos(long nanos) {
+            while (true) {
+                long previous = arrivedNanos;
+                if (nanos - previous <= 0) {
+                    return nanos;
+                }
+                if (ARRIVED_NANOS.compareAndSet(this, previous, nanos)) {
+                    return previous;
+                }
+            }
+        }
+        long state() { return state; }
+
+        boolean compareAndSet(long expected, long next) {
+            return STATE.compareAndSet(this, expected, next);
+        }
+
+        /**
+         * @return The state before closing; already closed if another thread closed it first
+         */
+        long close() {
+            return (long) STATE.getAndBitwiseOr(this, CLOSED);
+        }
+
+        static boolean isClosed(long state) {
+            return (state & CLOSED) != 0;
+        }
+
+        static int get(long state, int field) {
+            return (int) ((state >>> field) & FIELD_MASK) - 1;
+        }
+
+        static long with(long state, int field, int id) {
+            return (state & ~(FIELD_MASK << field)) | ((long) (id + 1) << field);
         }
     }
 }
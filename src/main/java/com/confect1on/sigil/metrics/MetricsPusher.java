@@ -0,0 +1,253 @@
+package com.confect1on.sigil.metrics;
+
+import org.slf4j.Logger;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Pushes the metrics to an OTLP/HTTP receiver, for environments where the proxy cannot be scraped.
+ *
+ * Each run queues the current render and, unless a send is already in flight, sends the oldest
+ * queued renders as one gzip-compressed request. Sends run on the HTTP client's threads, so a slow
+ * receiver never holds up the scheduler. A failed send goes back to the front of the queue and is
+ * retried with exponential backoff. The queue is bounded; when the receiver falls behind the oldest
+ * renders are shed first, since the newer cumulative values supersede them.
+ */
+public class MetricsPusher implements Runnable, MetricsCollector, AutoCloseable {
+    private static final long MAX_BACKOFF_NANOS = Duration.ofMinutes(5).toNanos();
+
+    private final Supplier<byte[]> source;
+    private final URI endpoint;
+    private final Map<String, String> headers;
+    private final int queueCapacity;
+    private final int batchSize;
+    private final Duration timeout;
+    private final long intervalNanos;
+    private final Logger logger;
+    private final HttpClient client;
+
+    // Guarded by this
+    private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+    private boolean sending;
+    private boolean failing;
+    private boolean closed;
+    private long backoffNanos;
+    private long retryAtNanos;
+
+    // Only used by the thread building a request, and only one request is built at a time
+    private final GzipEncoder gzip = new GzipEncoder();
+
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private volatile long lastSuccessMillis;
+
+    /**
+     * @param source Supplies the current render as an OTLP request, or null to skip a run
+     * @param endpoint OTLP/HTTP metrics endpoint, usually ending in /v1/metrics
+     * @param headers Extra request headers, e.g. for authentication
+     * @param queueCapacity Maximum number of renders waiting to be sent
+     * @param batchSize Maximum number of renders sent in one request
+     * @param interval The interval the pusher is scheduled at, also the first retry delay
+     * @param timeout Timeout for connecting and for each request
+     */
+    public MetricsPusher(Supplier<byte[]> source, URI endpoint, Map<String, String> headers, int queueCapacity,
+                         int batchSize, Duration interval, Duration timeout, Logger logger) {
+        this.source = source;
+        this.endpoint = endpoint;
+        this.headers = headers;
+        this.queueCapacity = queueCapacity;
+        this.batchSize = batchSize;
+        this.timeout = timeout;
+        this.intervalNanos = interval.toNanos();
+        this.logger = logger;
+        this.client = HttpClient.newBuilder().connectTimeout(timeout).build();
+    }
+
+    /**
+     * A source that renders the metrics into the writer on every push, for when there are no scrape
+     * snapshots to share.
+     */
+    public static Supplier<byte[]> rendering(MetricsExporter metricsExporter, ExpositionWriter writer) {
+        return () -> {
+            writer.reset();
+            metricsExporter.exportMetrics(writer);
+            return writer.toByteArray();
+        };
+    }
+
+    @Override
+    public void run() {
+        byte[] render;
+        try {
+            render = source.get();
+        } catch (RuntimeException e) {
+            logger.warn("Failed to render metrics for pushing: {}", e.getMessage());
+            return;
+        }
+        if (render != null) {
+            enqueue(render);
+        }
+        sendNext();
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        queue.clear();
+        if (!sending) {
+            gzip.close();
+        }
+    }
+
+    private synchronized void enqueue(byte[] render) {
+        while (queue.size() >= queueCapacity) {
+            queue.pollFirst();
+            dropped.increment();
+        }
+        queue.addLast(render);
+    }
+
+    private void sendNext() {
+        List<byte[]> batch = new ArrayList<>(batchSize);
+        synchronized (this) {
+            if (sending || closed || queue.isEmpty() || (backoffNanos > 0 && System.nanoTime() - retryAtNanos < 0)) {
+                return;
+            }
+            while (!queue.isEmpty() && batch.size() < batchSize) {
+                batch.add(queue.pollFirst());
+            }
+            sending = true;
+        }
+
+        byte[] body;
+        try {
+            body = compress(batch);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                sending = false;
+            }
+            throw e;
+        }
+        HttpRequest.Builder request = HttpRequest.newBuilder(endpoint)
+                .timeout(timeout)
+                .header("Content-Type", OtlpExpositionWriter.CONTENT_TYPE)
+                .header("Content-Encoding", "gzip")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body));
+        headers.forEach(request::header);
+        client.sendAsync(request.build(), HttpResponse.BodyHandlers.discarding())
+                .whenComplete((response, error) -> complete(batch, body.length, response, error));
+    }
+
+    /**
+     * Concatenates the renders into one request; their repeated resource fields merge.
+     */
+    private byte[] compress(List<byte[]> batch) {
+        int length = 0;
+        for (byte[] render : batch) {
+            length += render.length;
+        }
+        byte[] requests = new byte[length];
+        int offset = 0;
+        for (byte[] render : batch) {
+            System.arraycopy(render, 0, requests, offset, render.length);
+            offset += render.length;
+        }
+        gzip.encode(requests, 0, requests.length);
+        return gzip.toByteArray();
+    }
+
+    private void complete(List<byte[]> batch, int bytes, HttpResponse<Void> response, Throwable error) {
+        int status = response != null ? response.statusCode() : 0;
+        boolean success = error == null && status >= 200 && status < 300;
+        // Anything else the receiver refused outright and would refuse again
+        boolean retry = !success && (error != null || status == 408 || status == 429 || status >= 500);
+        boolean firstFailure = false;
+        boolean recovered = false;
+
+        synchronized (this) {
+            sending = false;
+            if (closed) {
+                gzip.close();
+            }
+            if (success) {
+                succeeded.increment();
+                bytesSent.add(bytes);
+                lastSuccessMillis = System.currentTimeMillis();
+                backoffNanos = 0;
+                recovered = failing;
+                failing = false;
+            } else {
+                firstFailure = !failing;
+                failing = true;
+                if (retry) {
+                    retried.increment();
+                    // Put the batch back in front, newest first, shedding its oldest renders if newer ones filled the queue
+                    for (int i = batch.size() - 1; i >= 0; i--) {
+                        if (queue.size() < queueCapacity && !closed) {
+                            queue.addFirst(batch.get(i));
+                        } else {
+                            dropped.increment();
+                        }
+                    }
+                    backoffNanos = backoffNanos == 0 ? intervalNanos : Math.min(backoffNanos * 2, MAX_BACKOFF_NANOS);
+                    retryAtNanos = System.nanoTime() + backoffNanos;
+                } else {
+                    rejected.increment();
+                    dropped.add(batch.size());
+                }
+            }
+        }
+
+        String reason = error != null ? String.valueOf(error.getMessage()) : "HTTP " + status;
+        if (recovered) {
+            logger.info("Pushing metrics to {} again", endpoint);
+        } else if (firstFailure) {
+            logger.warn("Failed to push metrics to {}{}: {}", endpoint, retry ? ", will retry" : "", reason);
+        } else if (!success) {
+            logger.debug("Failed to push metrics to {}: {}", endpoint, reason);
+        }
+        if (success) {
+            // Work through a backlog left by an outage without waiting for the next interval
+            sendNext();
+        }
+    }
+
+    @Override
+    public void collect(ExpositionWriter out) {
+        out.family("sigil_push_requests_total", "Push requests by result", "counter");
+        out.sample("sigil_push_requests_total").label("result", "success").value(succeeded.sum());
+        out.sample("sigil_push_requests_total").label("result", "retry").value(retried.sum());
+        out.sample("sigil_push_requests_total").label("result", "rejected").value(rejected.sum());
+
+        out.family("sigil_push_dropped_total", "Renders dropped without being pushed because the queue was full or the receiver rejected them", "counter");
+        out.sample("sigil_push_dropped_total").value(dropped.sum());
+
+        int queued;
+        synchronized (this) {
+            queued = queue.size();
+        }
+        out.family("sigil_push_queue_length", "Renders waiting to be pushed", "gauge");
+        out.sample("sigil_push_queue_length").value(queued);
+
+        out.family("sigil_push_bytes_total", "Compressed bytes of successful push requests", "counter");
+        out.sample("sigil_push_bytes_total").value(bytesSent.sum());
+
+        if (lastSuccessMillis != 0) {
+            out.family("sigil_push_last_success_timestamp_seconds", "Time of the last successful push in seconds since the epoch", "gauge");
+            out.sample("sigil_push_last_success_timestamp_seconds").value(lastSuccessMillis / 1000.0);
+        }
+    }
+}
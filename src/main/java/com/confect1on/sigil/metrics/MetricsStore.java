@@ -0,0 +1,393 @@
+package com.confect1on.sigil.metrics;
+
+import org.slf4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Persists the cumulative metrics (histogram buckets, counts and sums) to a small binary file so
+ * they survive proxy restarts and Prometheus does not see counter resets.
+ *
+ * The file is rewritten as a whole into a temporary file, synced, and atomically renamed over the
+ * previous one, so a crash mid-write leaves the last good snapshot in place. A CRC guards against
+ * torn or corrupted files. Saves are skipped while nothing has changed since the last one.
+ *
+ * Open sessions are stored with their wall-clock start time, their region, and their backend with
+ * the time they reached it. If the proxy died without closing them, they are closed out on restore
+ * using the time of the last snapshot as their end, in the per-region durations and backend stays
+ * as well as the overall session durations.
+ */
+public class MetricsStore implements Runnable, MetricsCollector {
+    private static final int MAGIC = 0x5347494C; // "SGIL"
+    private static final int VERSION = 3;
+    // Version 1 files lack the per-region session durations and backend stays, and versions before 3
+    // the region and backend of open sessions; both are still read
+    private static final int MIN_VERSION = 1;
+
+    private final MetricsManager metricsManager;
+    private final Path file;
+    private final Logger logger;
+
+    private final AtomicLong saveFailures = new AtomicLong();
+    private volatile long lastSaveMillis;
+    private long lastObservations = -1;
+    private int lastSessions = -1;
+
+    /**
+     * @param metricsManager The metrics to persist and restore
+     * @param file The snapshot file, usually in the plugin data directory
+     * @param logger Logger for restore and save problems
+     */
+    public MetricsStore(MetricsManager metricsManager, Path file, Logger logger) {
+        this.metricsManager = metricsManager;
+        this.file = file;
+        this.logger = logger;
+    }
+
+    /**
+     * Saves a snapshot if anything changed since the previous one; run on a schedule.
+     */
+    @Override
+    public void run() {
+        try {
+            saveIfChanged();
+        } catch (IOException e) {
+            saveFailures.incrementAndGet();
+            logger.warn("Failed to save metrics snapshot to {}: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Loads the snapshot file, if there is one, into the metrics manager.
+     * Must run before any sessions are recorded. A missing, corrupt or incompatible file is logged and ignored.
+     */
+    public void restore() {
+        byte[] data;
+        try {
+            data = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (IOException e) {
+            logger.warn("Failed to read metrics snapshot {}: {}", file, e.getMessage());
+            return;
+        }
+
+        if (data.length < Long.BYTES || !checksumMatches(data)) {
+            logger.warn("Ignoring corrupt metrics snapshot {}", file);
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - Long.BYTES))) {
+            if (in.readInt() != MAGIC) {
+                logger.warn("Ignoring metrics snapshot {}: not a Sigil snapshot", file);
+                return;
+            }
+            int version = in.readInt();
+            if (version < MIN_VERSION || version > VERSION) {
+                logger.warn("Ignoring metrics snapshot {}: unsupported version {}", file, version);
+                return;
+            }
+            long savedAtMillis = in.readLong();
+
+            readHistogram(in, metricsManager.getSessionDurationHistogram(), "sigil_session_duration_seconds");
+
+            int backends = in.readInt();
+            for (int i = 0; i < backends; i++) {
+                String server = in.readUTF();
+                readHistogram(in, metricsManager.backendPingHistogram(server), "sigil_backend_ping_seconds");
+            }
+
+            int latencies = in.readInt();
+            for (int i = 0; i < latencies; i++) {
+                String region = in.readUTF();
+                String server = in.readUTF();
+                readHistogram(in, metricsManager.playerLatencyHistogram(region, server), "sigil_player_ping_seconds");
+            }
+
+            // Sessions still open at the last snapshot never saw a clean disconnect; the snapshot
+            // time is the latest moment they are known to have been alive
+            int sessions = in.readInt();
+            for (int i = 0; i < sessions; i++) {
+                in.readLong();
+                in.readLong();
+                long connectMillis = in.readLong();
+                double seconds = Math.max(0, savedAtMillis - connectMillis) / 1000.0;
+                metricsManager.getSessionDurationHistogram().observe(seconds);
+                if (version >= 3) {
+                    String region = in.readUTF();
+                    String backend = in.readUTF();
+                    long arrivedMillis = in.readLong();
+                    metricsManager.sessionDurationByRegionHistogram(region).observe(seconds);
+                    if (!backend.isEmpty()) {
+                        metricsManager.backendStayHistogram(backend).observe(Math.max(0, savedAtMillis - arrivedMillis) / 1000.0);
+                    }
+                }
+            }
+            if (sessions > 0) {
+                logger.info("Closed out {} sessions left open by an unclean shutdown", sessions);
+            }
+
+            if (version >= 2) {
+                int regions = in.readInt();
+                for (int i = 0; i < regions; i++) {
+                    String region = in.readUTF();
+                    readHistogram(in, metricsManager.sessionDurationByRegionHistogram(region), "sigil_session_duration_by_region_seconds");
+                }
+
+                int stays = in.readInt();
+                for (int i = 0; i < stays; i++) {
+                    String server = in.readUTF();
+                    readHistogram(in, metricsManager.backendStayHistogram(server), "sigil_backend_stay_seconds");
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("Ignoring unreadable metrics snapshot {}: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Writes a snapshot unconditionally, e.g. on shutdown after sessions have been closed.
+     */
+    public synchronized void save() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(System.currentTimeMillis());
+
+        writeHistogram(out, metricsManager.getSessionDurationHistogram());
+
+        IOException[] failure = new IOException[1];
+        ByteArrayOutputStream section = new ByteArrayOutputStream();
+        DataOutputStream sectionOut = new DataOutputStream(section);
+        int[] entries = new int[1];
+        metricsManager.forEachBackendPingLatency((server, histogram) -> {
+            try {
+                sectionOut.writeUTF(server);
+                writeHistogram(sectionOut, histogram);
+                entries[0]++;
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+        writeSection(out, entries, section);
+
+        metricsManager.forEachPlayerLatency((region, server, histogram) -> {
+            try {
+                sectionOut.writeUTF(region);
+                sectionOut.writeUTF(server);
+                writeHistogram(sectionOut, histogram);
+                entries[0]++;
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+        writeSection(out, entries, section);
+
+        metricsManager.forEachOpenSession(session -> {
+            try {
+                sectionOut.writeLong(session.playerId().getMostSignificantBits());
+                sectionOut.writeLong(session.playerId().getLeastSignificantBits());
+                sectionOut.writeLong(session.connectMillis());
+                sectionOut.writeUTF(session.region());
+                // Backend names are never empty, so empty stands for none
+                sectionOut.writeUTF(session.backend() != null ? session.backend() : "");
+                sectionOut.writeLong(session.arrivedMillis());
+                entries[0]++;
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+        writeSection(out, entries, section);
+
+        metricsManager.forEachSessionDurationByRegion((region, histogram) -> {
+            try {
+                sectionOut.writeUTF(region);
+                writeHistogram(sectionOut, histogram);
+                entries[0]++;
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+        writeSection(out, entries, section);
+
+        metricsManager.forEachBackendStay((server, histogram) -> {
+            try {
+                sectionOut.writeUTF(server);
+                writeHistogram(sectionOut, histogram);
+                entries[0]++;
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+        writeSection(out, entries, section);
+
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+        out.flush();
+
+        writeAtomically(bytes.toByteArray());
+        lastSaveMillis = System.currentTimeMillis();
+    }
+
+    @Override
+    public void collect(ExpositionWriter out) {
+        long lastSave = lastSaveMillis;
+        if (lastSave > 0) {
+            out.family("sigil_state_last_save_timestamp_seconds", "Unix time of the last successful metrics snapshot", "gauge");
+            out.sample("sigil_state_last_save_timestamp_seconds").value(lastSave / 1000.0);
+        }
+
+        out.family("sigil_state_save_failures_total", "Metrics snapshots that could not be written", "counter");
+        out.sample("sigil_state_save_failures_total").value(saveFailures.get());
+    }
+
+    /**
+     * Saves only when histograms have gained observations or sessions have opened or closed.
+     * Every session change alters one of the two: a disconnect adds an observation, a connect adds a session.
+     */
+    private synchronized void saveIfChanged() throws IOException {
+        long[] observations = {metricsManager.getSessionDurationHistogram().count()};
+        metricsManager.forEachBackendPingLatency((server, histogram) -> observations[0] += histogram.count());
+        metricsManager.forEachPlayerLatency((region, server, histogram) -> observations[0] += histogram.count());
+        // Backend switches add a stay without changing the session count
+        metricsManager.forEachBackendStay((server, histogram) -> observations[0] += histogram.count());
+        int sessions = metricsManager.getActiveSessionCount();
+        if (observations[0] == lastObservations && sessions == lastSessions) {
+            return;
+        }
+        save();
+        lastObservations = observations[0];
+        lastSessions = sessions;
+    }
+
+    private void writeAtomically(byte[] data) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void writeSection(DataOutputStream out, int[] entries, ByteArrayOutputStream section) throws IOException {
+        out.writeInt(entries[0]);
+        section.writeTo(out);
+        section.reset();
+        entries[0] = 0;
+    }
+
+    private static void writeHistogram(DataOutputStream out, Histogram histogram) throws IOException {
+        int boundCount = histogram.boundCount();
+        out.writeInt(boundCount);
+        for (int i = 0; i < boundCount; i++) {
+            out.writeDouble(histogram.bound(i));
+        }
+        for (int i = 0; i <= boundCount; i++) {
+            out.writeLong(histogram.bucketCount(i));
+        }
+        out.writeDouble(histogram.sum());
+
+        NativeHistogram nativeHistogram = histogram.nativeHistogram();
+        out.writeBoolean(nativeHistogram != null);
+        if (nativeHistogram != null) {
+            NativeHistogram.Snapshot snapshot = nativeHistogram.snapshot();
+            out.writeInt(snapshot.schema());
+            out.writeLong(snapshot.zeroCount());
+            out.writeLong(snapshot.count());
+            out.writeDouble(snapshot.sum());
+            out.writeInt(snapshot.firstIndex());
+            out.writeInt(snapshot.counts().length);
+            for (long count : snapshot.counts()) {
+                out.writeLong(count);
+            }
+        }
+    }
+
+    /**
+     * Reads a stored histogram and adds it to the live one. Classic buckets are only restored if the
+     * bucket layout is unchanged, since counts cannot be redistributed across different bounds.
+     */
+    private void readHistogram(DataInputStream in, Histogram target, String name) throws IOException {
+        int boundCount = in.readInt();
+        if (boundCount < 0 || boundCount > 4096) {
+            throw new IOException("Invalid bucket count " + boundCount);
+        }
+        double[] bounds = new double[boundCount];
+        for (int i = 0; i < boundCount; i++) {
+            bounds[i] = in.readDouble();
+        }
+        long[] counts = new long[boundCount + 1];
+        for (int i = 0; i <= boundCount; i++) {
+            counts[i] = in.readLong();
+        }
+        double sum = in.readDouble();
+
+        NativeHistogram.Snapshot nativeSnapshot = null;
+        if (in.readBoolean()) {
+            int schema = in.readInt();
+            long zeroCount = in.readLong();
+            long count = in.readLong();
+            double nativeSum = in.readDouble();
+            int firstIndex = in.readInt();
+            int length = in.readInt();
+            if (schema < NativeHistogram.MIN_SCHEMA || schema > NativeHistogram.MAX_SCHEMA || length < 0 || length > 1 << 16) {
+                throw new IOException("Invalid native histogram layout");
+            }
+            long[] nativeCounts = new long[length];
+            for (int i = 0; i < length; i++) {
+                nativeCounts[i] = in.readLong();
+            }
+            nativeSnapshot = new NativeHistogram.Snapshot(schema, NativeHistogram.DEFAULT_ZERO_THRESHOLD,
+                    zeroCount, count, nativeSum, firstIndex, nativeCounts);
+        }
+
+        if (!Arrays.equals(bounds, target.bounds())) {
+            logger.warn("Bucket layout of {} changed, discarding its stored counts", name);
+            return;
+        }
+        target.add(counts, sum);
+        if (nativeSnapshot != null && target.nativeHistogram() != null) {
+            target.nativeHistogram().merge(nativeSnapshot);
+        }
+    }
+
+    private static boolean checksumMatches(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - Long.BYTES);
+        return crc.getValue() == ByteBuffer.wrap(data, data.length - Long.BYTES, Long.BYTES).getLong();
+    }
+}
@@ -0,0 +1,371 @@
+package com.confect1on.sigil.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sparse exponential buckets in the style of Prometheus native histograms.
+ * With schema {@code s} the bucket with index {@code i} covers {@code (base^(i-1), base^i]} where
+ * {@code base = 2^(2^-s)}, so resolution is relative to the value rather than fixed per bucket.
+ * Only the populated index range is stored; when it would exceed the bucket limit the schema is
+ * lowered, merging neighbouring buckets pairwise, which keeps memory bounded at the cost of resolution.
+ * Values at or below the zero threshold are counted in a separate zero bucket.
+ *
+ * Observations are lock-free: buckets live in an atomic window over a range of indexes, and a value
+ * whose bucket is inside the window only increments that bucket and the striped sum. Only a value
+ * outside the window takes the lock, to move or widen the window or lower the schema. The window is
+ * then retired, observations already inside it are allowed to finish, and its counts are carried
+ * over to the replacement; observations arriving meanwhile wait for the lock and retry.
+ */
+public final class NativeHistogram {
+    /** Highest resolution schema defined by Prometheus. */
+    public static final int MAX_SCHEMA = 8;
+    /** Lowest resolution schema defined by Prometheus. */
+    public static final int MIN_SCHEMA = -4;
+    /** Default zero threshold used by the Prometheus client libraries, 2^-128. */
+    public static final double DEFAULT_ZERO_THRESHOLD = 2.938735877055719e-39;
+    private static final int INITIAL_WINDOW = 16;
+
+    private final int maxBuckets;
+    private final double zeroThreshold;
+    private final LongAdder zeroCount = new LongAdder();
+    private final DoubleAdder sum = new DoubleAdder();
+    private volatile Window window;
+
+    // Dense counts for bucket indexes firstIndex .. firstIndex + used - 1, only used under the lock
+    // while a retired window is rebuilt
+    private int schema;
+    private long[] counts;
+    private int firstIndex;
+    private int used;
+
+    /**
+     * @param schema Initial resolution, between {@link #MIN_SCHEMA} and {@link #MAX_SCHEMA}
+     * @param maxBuckets Upper bound on the populated bucket range before the schema is lowered
+     */
+    public NativeHistogram(int schema, int maxBuckets) {
+        if (schema < MIN_SCHEMA || schema > MAX_SCHEMA) {
+            throw new IllegalArgumentException("Native histogram schema must be between " + MIN_SCHEMA + " and " + MAX_SCHEMA);
+        }
+        if (maxBuckets < 2) {
+            throw new IllegalArgumentException("Native histogram needs at least 2 buckets: " + maxBuckets);
+        }
+        this.maxBuckets = maxBuckets;
+        this.zeroThreshold = DEFAULT_ZERO_THRESHOLD;
+        this.counts = new long[Math.min(maxBuckets, INITIAL_WINDOW)];
+        // An empty window, placed by the first observation
+        this.window = new Window(schema, 0, 0);
+    }
+
+    public void observe(double value) {
+        sum.add(value);
+        if (value <= zeroThreshold) {
+            zeroCount.increment();
+            return;
+        }
+
+        while (true) {
+            Window current = window;
+            int stripe = current.enter();
+            if (current.retired) {
+                current.exit(stripe);
+                awaitRebuild();
+                continue;
+            }
+            int offset = bucketIndex(value, current.schema) - current.firstIndex;
+            if (offset >= 0 && offset < current.counts.length()) {
+                current.counts.incrementAndGet(offset);
+                current.exit(stripe);
+                return;
+            }
+            current.exit(stripe);
+            makeRoom(value);
+        }
+    }
+
+    /**
+     * Adds the contents of a snapshot, such as one restored from disk.
+     * A snapshot with a finer schema is downscaled to this histogram's schema; a coarser one lowers
+     * this histogram's schema to match.
+     */
+    public synchronized void merge(Snapshot other) {
+        retire();
+        while (schema > other.schema()) {
+            downscale();
+        }
+        sum.add(other.sum());
+        zeroCount.add(other.zeroCount());
+
+        long[] otherCounts = other.counts();
+        for (int i = 0; i < otherCounts.length; i++) {
+            if (otherCounts[i] == 0) {
+                continue;
+            }
+            int index = downscaleIndex(other.firstIndex() + i, other.schema() - schema);
+            while (!fits(index)) {
+                downscale();
+                index = downscaleIndex(other.firstIndex() + i, other.schema() - schema);
+            }
+            add(index, otherCounts[i]);
+        }
+        install(false);
+    }
+
+    /**
+     * Copies the current state so it can be encoded without holding the lock. The count is the
+     * total of the buckets as read, so it always matches them even while values are observed.
+     */
+    public synchronized Snapshot snapshot() {
+        Window current = window;
+        long[] copy = new long[current.counts.length()];
+        int low = -1;
+        int high = -1;
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = current.counts.get(i);
+            if (copy[i] != 0) {
+                low = low < 0 ? i : low;
+                high = i;
+            }
+        }
+        long zeros = zeroCount.sum();
+        long count = zeros;
+        for (long bucket : copy) {
+            count += bucket;
+        }
+        long[] populated = low < 0 ? new long[0] : Arrays.copyOfRange(copy, low, high + 1);
+        return new Snapshot(current.schema, zeroThreshold, zeros, count, sum.sum(),
+                low < 0 ? 0 : current.firstIndex + low, populated);
+    }
+
+    private synchronized void awaitRebuild() {
+        // The retired window has been replaced once the lock is free
+    }
+
+    /**
+     * Replaces the window with one that has a bucket for the value, lowering the schema if the
+     * populated range would otherwise exceed the bucket limit. Another thread may already have done so.
+     */
+    private synchronized void makeRoom(double value) {
+        Window current = window;
+        int offset = bucketIndex(value, current.schema) - current.firstIndex;
+        if (offset >= 0 && offset < current.counts.length()) {
+            return;
+        }
+        retire();
+        int index = bucketIndex(value, schema);
+        while (!fits(index)) {
+            downscale();
+            index = bucketIndex(value, schema);
+        }
+        boolean growingDown = used > 0 && index < firstIndex;
+        add(index, 0);
+        install(growingDown);
+    }
+
+    /**
+     * Stops observations into the current window, waits for the ones already in it to finish and
+     * copies its counts into the dense buckets. Called with the lock held.
+     */
+    private void retire() {
+        Window current = window;
+        current.retired = true;
+        while (current.active()) {
+            Thread.onSpinWait();
+        }
+
+        schema = current.schema;
+        used = 0;
+        Arrays.fill(counts, 0);
+        for (int i = 0; i < current.counts.length(); i++) {
+            long bucket = current.counts.get(i);
+            if (bucket != 0) {
+                add(current.firstIndex + i, bucket);
+            }
+        }
+    }
+
+    /**
+     * Publishes a new window holding the dense buckets, with spare room on the side the range is
+     * growing towards so the next values in that direction do not need another rebuild.
+     * Called with the lock held.
+     */
+    private void install(boolean growingDown) {
+        int length = Math.max(used, Math.min(maxBuckets, Math.max(INITIAL_WINDOW, used * 2)));
+        int first = used == 0 ? 0 : growingDown ? firstIndex + used - length : firstIndex;
+        Window next = new Window(schema, first, length);
+        for (int i = 0; i < used; i++) {
+            if (counts[i] != 0) {
+                next.counts.set(firstIndex + i - first, counts[i]);
+            }
+        }
+        window = next;
+    }
+
+    /**
+     * Computes the bucket index of a positive value for the given schema.
+     * Powers of two are handled exactly; other values use the fractional part of their base-2 logarithm.
+     */
+    static int bucketIndex(double value, int schema) {
+        int exponent = Math.getExponent(value);
+        double mantissa = value / Math.scalb(1.0, exponent);
+        if (schema > 0) {
+            int perOctave = 1 << schema;
+            if (mantissa == 1.0) {
+                return exponent * perOctave;
+            }
+            double log2Mantissa = Math.log(mantissa) / Math.log(2);
+            return exponent * perOctave + (int) Math.ceil(log2Mantissa * perOctave);
+        }
+        int zeroSchemaIndex = mantissa == 1.0 ? exponent : exponent + 1;
+        // ceil(index / 2^-schema) for negative schemas
+        int shift = -schema;
+        return (zeroSchemaIndex + (1 << shift) - 1) >> shift;
+    }
+
+    private static int downscaleIndex(int index, int steps) {
+        for (int i = 0; i < steps; i++) {
+            // ceil(index / 2), correct for negative indexes too
+            index = (index + 1) >> 1;
+        }
+        return index;
+    }
+
+    private boolean fits(int index) {
+        if (used == 0) {
+            return true;
+        }
+        int low = Math.min(firstIndex, index);
+        int high = Math.max(firstIndex + used - 1, index);
+        return high - low + 1 <= maxBuckets || schema == MIN_SCHEMA;
+    }
+
+    private void add(int index, long increment) {
+        if (used == 0) {
+            firstIndex = index;
+            used = 1;
+            counts[0] = increment;
+            return;
+        }
+
+        if (index < firstIndex) {
+            int shift = firstIndex - index;
+            ensureLength(used + shift);
+            System.arraycopy(counts, 0, counts, shift, used);
+            Arrays.fill(counts, 0, shift, 0);
+            firstIndex = index;
+            used += shift;
+        } else if (index >= firstIndex + used) {
+            int newUsed = index - firstIndex + 1;
+            ensureLength(newUsed);
+            used = newUsed;
+        }
+        counts[index - firstIndex] += increment;
+    }
+
+    /**
+     * Lowers the schema by one, merging bucket pairs {@code (2k-1, 2k)} into bucket {@code k}.
+     */
+    private void downscale() {
+        long[] old = Arrays.copyOf(counts, used);
+        int oldFirst = firstIndex;
+        schema--;
+        Arrays.fill(counts, 0);
+        used = 0;
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] != 0) {
+                add(downscaleIndex(oldFirst + i, 1), old[i]);
+            }
+        }
+    }
+
+    private void ensureLength(int length) {
+        if (length > counts.length) {
+            counts = Arrays.copyOf(counts, Math.max(length, Math.min(counts.length * 2, maxBuckets)));
+        }
+    }
+
+    /**
+     * Atomic buckets for the indexes {@code firstIndex .. firstIndex + length - 1} at one schema.
+     * Observations in progress are counted on striped, padded counters so entering and leaving
+     * does not contend on one cache line; every access is volatile, so a writer that entered
+     * before the window was retired is always seen by {@link #active()}.
+     */
+    private static final class Window {
+        private static final int STRIPES = Math.min(16, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+        // One counter per 64-byte line
+        private static final int PADDING = 8;
+
+        final int schema;
+        final int firstIndex;
+        final AtomicLongArray counts;
+        private final AtomicLongArray writers = new AtomicLongArray(STRIPES * PADDING);
+        volatile boolean retired;
+
+        Window(int schema, int firstIndex, int length) {
+            this.schema = schema;
+            this.firstIndex = firstIndex;
+            this.counts = new AtomicLongArray(length);
+        }
+
+        int enter() {
+            int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+            writers.getAndIncrement(stripe);
+            return stripe;
+        }
+
+        void exit(int stripe) {
+            writers.getAndDecrement(stripe);
+        }
+
+        boolean active() {
+            for (int i = 0; i < STRIPES; i++) {
+                if (writers.get(i * PADDING) != 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Point-in-time copy of a native histogram.
+     * @param counts Dense bucket counts starting at {@code firstIndex}
+     */
+    public record Snapshot(int schema, double zeroThreshold, long zeroCount, long count, double sum,
+                           int firstIndex, long[] counts) {
+        /**
+         * Estimates a quantile in the manner of DDSketch: the bucket holding the requested rank is
+         * reported as the point {@code 2 * upper / (base + 1)}, which is within a relative error of
+         * {@code (base - 1) / (base + 1)} of every value in the bucket, about 4% at schema 3.
+         * @param q Quantile between 0 and 1
+         * @return The estimate, 0 if the rank falls in the zero bucket, or NaN if nothing was observed
+         */
+        public double quantile(double q) {
+            long total = zeroCount;
+            for (long bucket : counts) {
+                total += bucket;
+            }
+            if (total == 0) {
+                return Double.NaN;
+            }
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long cumulative = zeroCount;
+            if (rank <= cumulative) {
+                return 0;
+            }
+            int last = counts.length - 1;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                if (cumulative >= rank) {
+                    last = i;
+                    break;
+                }
+            }
+            double base = Math.pow(2, Math.scalb(1.0, -schema));
+            double upper = Math.pow(2, Math.scalb((double) (firstIndex + last), -schema));
+            return 2 * upper / (base + 1);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.confect1on.sigil.metrics;
+
+/**
+ * Writes an OpenTelemetry {@code ExportMetricsServiceRequest} for pushing to an OTLP/HTTP receiver.
+ *
+ * The request holds a single resource identifying this proxy. Counters become monotonic cumulative
+ * sums, gauges stay gauges and histograms keep their explicit buckets, which OTLP stores
+ * non-cumulatively just like {@link Histogram}. Native buckets are not carried; OTLP's exponential
+ * histograms use a different bucket layout. Every data point is stamped with the time of the render
+ * and with the writer's creation as the start of the cumulative series.
+ *
+ * Metrics are streamed into the buffer as the body of the scope, and the enclosing resource and
+ * scope headers are put in front once the output is read, as their lengths depend on the body.
+ * Because repeated fields of concatenated messages merge, several rendered requests can be sent as
+ * one by concatenating them.
+ */
+public final class OtlpExpositionWriter extends ExpositionWriter {
+    public static final String CONTENT_TYPE = "application/x-protobuf";
+
+    private static final int VARINT = ProtoBuffer.VARINT;
+    private static final int FIXED64 = ProtoBuffer.FIXED64;
+    private static final int LENGTH_DELIMITED = ProtoBuffer.LENGTH_DELIMITED;
+
+    // Metric data fields
+    private static final int GAUGE = 5;
+    private static final int SUM = 7;
+    private static final int HISTOGRAM = 9;
+    private static final int AGGREGATION_TEMPORALITY_CUMULATIVE = 2;
+
+    private final String serviceInstanceId;
+    private final long startTimeNanos;
+    private long timeNanos;
+
+    private final ProtoBuffer points = new ProtoBuffer();
+    private final ProtoBuffer point = new ProtoBuffer();
+    private final ProtoBuffer nested = new ProtoBuffer();
+
+    private String familyName;
+    private String familyHelp;
+    private int familyData;
+    private int pointCount;
+    // Length of the resource and scope headers currently in front of the metrics, 0 while still writing
+    private int headerLength;
+
+    /**
+     * @param serviceInstanceId Identifies this proxy among the ones pushing to the same receiver
+     */
+    public OtlpExpositionWriter(String serviceInstanceId) {
+        super(DEFAULT_CAPACITY);
+        this.serviceInstanceId = serviceInstanceId;
+        this.startTimeNanos = System.currentTimeMillis() * 1_000_000L;
+        this.timeNanos = startTimeNanos;
+    }
+
+    @Override
+    public ExpositionWriter family(String name, String help, String type) {
+        unwrap();
+        finishFamily();
+        familyName = name;
+        familyHelp = help;
+        familyData = switch (type) {
+            case "counter" -> SUM;
+            case "histogram" -> HISTOGRAM;
+            default -> GAUGE;
+        };
+        points.reset();
+        pointCount = 0;
+        return this;
+    }
+
+    @Override
+    public ExpositionWriter sample(String name) {
+        labelCount = 0;
+        return this;
+    }
+
+    @Override
+    public void value(long value) {
+        // NumberDataPoint { as_int = 6 (sfixed64); }
+        startPoint(7);
+        point.tag(6, FIXED64);
+        point.fixed64(value);
+        appendPoint();
+    }
+
+    @Override
+    public void value(double value) {
+        // NumberDataPoint { as_double = 4; }
+        startPoint(7);
+        point.tag(4, FIXED64);
+        point.fixed64(Double.doubleToRawLongBits(value));
+        appendPoint();
+    }
+
+    @Override
+    public void histogram(Histogram histogram) {
+        startPoint(9);
+        int boundCount = histogram.boundCount();
+        // HistogramDataPoint { count = 4; sum = 5; bucket_counts = 6 (packed); explicit_bounds = 7 (packed); }
+        point.tag(5, FIXED64);
+        point.fixed64(Double.doubleToRawLongBits(histogram.sum()));
+        point.tag(6, LENGTH_DELIMITED);
+        point.varint(8L * (boundCount + 1));
+        long count = 0;
+        for (int i = 0; i <= boundCount; i++) {
+            long bucketCount = histogram.bucketCount(i);
+            count += bucketCount;
+            point.fixed64(bucketCount);
+        }
+        point.tag(7, LENGTH_DELIMITED);
+        point.varint(8L * boundCount);
+        for (int i = 0; i < boundCount; i++) {
+            point.fixed64(Double.doubleToRawLongBits(histogram.bound(i)));
+        }
+        // Written last as the sum of the buckets read above, so it matches them while observations arrive;
+        // protobuf fields may appear in any order
+        point.tag(4, FIXED64);
+        point.fixed64(count);
+        appendPoint();
+    }
+
+    @Override
+    public String contentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    protected void finish() {
+        unwrap();
+        finishFamily();
+        wrap();
+    }
+
+    @Override
+    protected void resetState() {
+        familyName = null;
+        pointCount = 0;
+        points.reset();
+        headerLength = 0;
+        timeNanos = System.currentTimeMillis() * 1_000_000L;
+    }
+
+    /**
+     * Starts a data point with its attributes and timestamps.
+     * @param attributesField Field number of the attributes in this kind of data point
+     */
+    private void startPoint(int attributesField) {
+        point.reset();
+        for (int i = 0; i < labelCount; i++) {
+            writeAttribute(point, attributesField, labelNames[i], labelValues[i]);
+        }
+        labelCount = 0;
+        // start_time_unix_nano = 2; time_unix_nano = 3;
+        point.tag(2, FIXED64);
+        point.fixed64(startTimeNanos);
+        point.tag(3, FIXED64);
+        point.fixed64(timeNanos);
+    }
+
+    private void appendPoint() {
+        // Gauge, Sum and Histogram all hold their data points in field 1
+        points.tag(1, LENGTH_DELIMITED);
+        points.varint(point.size);
+        points.append(point);
+        pointCount++;
+    }
+
+    private void finishFamily() {
+        if (familyName == null || pointCount == 0) {
+            return;
+        }
+        if (familyData != GAUGE) {
+            points.tag(2, VARINT);
+            points.varint(AGGREGATION_TEMPORALITY_CUMULATIVE);
+        }
+        if (familyData == SUM) {
+            // is_monotonic = 3
+            points.tag(3, VARINT);
+            points.varint(1);
+        }
+
+        // Metric { name = 1; description = 2; gauge = 5 | sum = 7 | histogram = 9; }
+        int nameLength = ProtoBuffer.utf8Length(familyName);
+        int helpLength = ProtoBuffer.utf8Length(familyHelp);
+        int metricSize = 1 + ProtoBuffer.varintSize(nameLength) + nameLength
+                + 1 + ProtoBuffer.varintSize(helpLength) + helpLength
+                + 1 + ProtoBuffer.varintSize(points.size) + points.size;
+
+        ProtoBuffer header = nested;
+        header.reset();
+        // ScopeMetrics { metrics = 2; }
+        header.tag(2, LENGTH_DELIMITED);
+        header.varint(metricSize);
+        header.tag(1, LENGTH_DELIMITED);
+        header.string(familyName, nameLength);
+        header.tag(2, LENGTH_DELIMITED);
+        header.string(familyHelp, helpLength);
+        header.tag(familyData, LENGTH_DELIMITED);
+        header.varint(points.size);
+
+        writeBytes(header.bytes, 0, header.size);
+        writeBytes(points.bytes, 0, points.size);
+        points.reset();
+        pointCount = 0;
+        familyName = null;
+    }
+
+    /**
+     * Puts the request, resource and scope headers in front of the metrics written so far.
+     */
+    private void wrap() {
+        int metricsSize = size;
+
+        // Resource { attributes = 1; }
+        ProtoBuffer resource = point;
+        resource.reset();
+        writeAttribute(resource, 1, "service.name", "sigil");
+        writeAttribute(resource, 1, "service.instance.id", serviceInstanceId);
+
+        // InstrumentationScope { name = 1; }
+        int scopeSize = 1 + 1 + "sigil".length();
+        int scopeMetricsSize = 1 + ProtoBuffer.varintSize(scopeSize) + scopeSize + metricsSize;
+        // ResourceMetrics { resource = 1; scope_metrics = 2; }
+        int resourceMetricsSize = 1 + ProtoBuffer.varintSize(resource.size) + resource.size
+                + 1 + ProtoBuffer.varintSize(scopeMetricsSize) + scopeMetricsSize;
+
+        ProtoBuffer header = nested;
+        header.reset();
+        // ExportMetricsServiceRequest { resource_metrics = 1; }
+        header.tag(1, LENGTH_DELIMITED);
+        header.varint(resourceMetricsSize);
+        header.tag(1, LENGTH_DELIMITED);
+        header.varint(resource.size);
+        header.append(resource);
+        header.tag(2, LENGTH_DELIMITED);
+        header.varint(scopeMetricsSize);
+        header.tag(1, LENGTH_DELIMITED);
+        header.varint(scopeSize);
+        header.tag(1, LENGTH_DELIMITED);
+        header.string("sigil", "sigil".length());
+
+        ensureCapacity(header.size);
+        System.arraycopy(buf, 0, buf, header.size, metricsSize);
+        System.arraycopy(header.bytes, 0, buf, 0, header.size);
+        size += header.size;
+        headerLength = header.size;
+    }
+
+    /**
+     * Removes the headers put in front by {@link #wrap()} so more metrics can be written.
+     */
+    private void unwrap() {
+        if (headerLength == 0) {
+            return;
+        }
+        System.arraycopy(buf, headerLength, buf, 0, size - headerLength);
+        size -= headerLength;
+        headerLength = 0;
+    }
+
+    private static void writeAttribute(ProtoBuffer out, int field, String key, String value) {
+        int keyLength = ProtoBuffer.utf8Length(key);
+        int valueLength = ProtoBuffer.utf8Length(value);
+        // AnyValue { string_value = 1; }
+        int anyValueSize = 1 + ProtoBuffer.varintSize(valueLength) + valueLength;
+        // KeyValue { key = 1; value = 2; }
+        out.tag(field, LENGTH_DELIMITED);
+        out.varint(1 + ProtoBuffer.varintSize(keyLength) + keyLength + 1 + ProtoBuffer.varintSize(anyValueSize) + anyValueSize);
+        out.tag(1, LENGTH_DELIMITED);
+        out.string(key, keyLength);
+        out.tag(2, LENGTH_DELIMITED);
+        out.varint(anyValueSize);
+        out.tag(1, LENGTH_DELIMITED);
+        out.string(value, valueLength);
+    }
+}
@@ -0,0 +1,249 @@
+package com.confect1on.sigil.metrics;
+
+/**
+ * Writes the Prometheus protobuf exposition format: a stream of length-delimited
+ * {@code io.prometheus.client.MetricFamily} messages.
+ * This is the only format that can carry native histogram buckets, so it is what scrapers with
+ * native histograms enabled ask for. Messages are encoded by hand into reusable buffers; each
+ * family is assembled in a scratch buffer and copied to the output once its length is known.
+ */
+public final class ProtobufExpositionWriter extends ExpositionWriter {
+    public static final String CONTENT_TYPE =
+            "application/vnd.google.protobuf; proto=io.prometheus.client.MetricFamily; encoding=delimited";
+
+    private static final int VARINT = ProtoBuffer.VARINT;
+    private static final int FIXED64 = ProtoBuffer.FIXED64;
+    private static final int LENGTH_DELIMITED = ProtoBuffer.LENGTH_DELIMITED;
+
+    // MetricFamily.type values
+    private static final int TYPE_COUNTER = 0;
+    private static final int TYPE_GAUGE = 1;
+    private static final int TYPE_SUMMARY = 2;
+    private static final int TYPE_UNTYPED = 3;
+    private static final int TYPE_HISTOGRAM = 4;
+
+    private final ProtoBuffer familyMetrics = new ProtoBuffer();
+    private final ProtoBuffer metric = new ProtoBuffer();
+    private final ProtoBuffer nested = new ProtoBuffer();
+
+    private String familyName;
+    private String familyHelp;
+    private int familyType;
+    private int metricCount;
+
+    public ProtobufExpositionWriter() {
+        super(DEFAULT_CAPACITY);
+    }
+
+    @Override
+    public ExpositionWriter family(String name, String help, String type) {
+        finishFamily();
+        familyName = name;
+        familyHelp = help;
+        familyType = typeOf(type);
+        familyMetrics.reset();
+        metricCount = 0;
+        return this;
+    }
+
+    @Override
+    public ExpositionWriter sample(String name) {
+        labelCount = 0;
+        return this;
+    }
+
+    @Override
+    public void value(long value) {
+        value((double) value);
+    }
+
+    @Override
+    public void value(double value) {
+        metric.reset();
+        writeLabels(metric);
+
+        // Gauge, Counter and Untyped all hold a single double in field 1
+        int field = switch (familyType) {
+            case TYPE_COUNTER -> 3;
+            case TYPE_UNTYPED -> 5;
+            default -> 2;
+        };
+        metric.tag(field, LENGTH_DELIMITED);
+        metric.varint(9);
+        metric.tag(1, FIXED64);
+        metric.fixed64(Double.doubleToRawLongBits(value));
+        appendMetric();
+    }
+
+    @Override
+    public void histogram(Histogram histogram) {
+        metric.reset();
+        writeLabels(metric);
+
+        nested.reset();
+        int boundCount = histogram.boundCount();
+        long cumulative = 0;
+        for (int i = 0; i < boundCount; i++) {
+            cumulative += histogram.bucketCount(i);
+            // Bucket { cumulative_count = 1; upper_bound = 2; }
+            nested.tag(3, LENGTH_DELIMITED);
+            nested.varint(1 + ProtoBuffer.varintSize(cumulative) + 1 + 8);
+            nested.tag(1, VARINT);
+            nested.varint(cumulative);
+            nested.tag(2, FIXED64);
+            nested.fixed64(Double.doubleToRawLongBits(histogram.bound(i)));
+        }
+        cumulative += histogram.bucketCount(boundCount);
+
+        nested.tag(1, VARINT);
+        nested.varint(cumulative);
+        nested.tag(2, FIXED64);
+        nested.fixed64(Double.doubleToRawLongBits(histogram.sum()));
+
+        NativeHistogram nativeHistogram = histogram.nativeHistogram();
+        if (nativeHistogram != null) {
+            writeNativeBuckets(nested, nativeHistogram.snapshot());
+        }
+
+        metric.tag(7, LENGTH_DELIMITED);
+        metric.varint(nested.size);
+        metric.append(nested);
+        appendMetric();
+    }
+
+    @Override
+    public String contentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    protected void finish() {
+        finishFamily();
+    }
+
+    @Override
+    protected void resetState() {
+        familyName = null;
+        metricCount = 0;
+        familyMetrics.reset();
+    }
+
+    /**
+     * Appends schema, zero bucket and positive spans/deltas to a Histogram message.
+     * Runs of empty buckets start a new span rather than being encoded as zero deltas.
+     */
+    private static void writeNativeBuckets(ProtoBuffer out, NativeHistogram.Snapshot snapshot) {
+        out.tag(5, VARINT);
+        out.varint(zigZag(snapshot.schema()));
+        out.tag(6, FIXED64);
+        out.fixed64(Double.doubleToRawLongBits(snapshot.zeroThreshold()));
+        out.tag(7, VARINT);
+        out.varint(snapshot.zeroCount());
+
+        long[] counts = snapshot.counts();
+        boolean anySpan = false;
+        int previousEnd = 0;
+        int i = 0;
+        while (i < counts.length) {
+            if (counts[i] == 0) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < counts.length && counts[i] != 0) {
+                i++;
+            }
+            int index = snapshot.firstIndex() + start;
+            int offset = anySpan ? index - previousEnd : index;
+            int length = i - start;
+            // BucketSpan { offset = 1 (sint32); length = 2 (uint32); }
+            out.tag(12, LENGTH_DELIMITED);
+            out.varint(1 + ProtoBuffer.varintSize(zigZag(offset)) + 1 + ProtoBuffer.varintSize(length));
+            out.tag(1, VARINT);
+            out.varint(zigZag(offset));
+            out.tag(2, VARINT);
+            out.varint(length);
+            previousEnd = index + length;
+            anySpan = true;
+        }
+
+        if (!anySpan) {
+            // An empty span marks the histogram as native even before the first observation
+            out.tag(12, LENGTH_DELIMITED);
+            out.varint(0);
+            return;
+        }
+
+        long previous = 0;
+        for (long count : counts) {
+            if (count != 0) {
+                out.tag(13, VARINT);
+                out.varint(zigZag(count - previous));
+                previous = count;
+            }
+        }
+    }
+
+    private void writeLabels(ProtoBuffer out) {
+        for (int i = 0; i < labelCount; i++) {
+            int nameLength = ProtoBuffer.utf8Length(labelNames[i]);
+            int valueLength = ProtoBuffer.utf8Length(labelValues[i]);
+            // LabelPair { name = 1; value = 2; }
+            out.tag(1, LENGTH_DELIMITED);
+            out.varint(1 + ProtoBuffer.varintSize(nameLength) + nameLength + 1 + ProtoBuffer.varintSize(valueLength) + valueLength);
+            out.tag(1, LENGTH_DELIMITED);
+            out.string(labelNames[i], nameLength);
+            out.tag(2, LENGTH_DELIMITED);
+            out.string(labelValues[i], valueLength);
+        }
+        labelCount = 0;
+    }
+
+    private void appendMetric() {
+        familyMetrics.tag(4, LENGTH_DELIMITED);
+        familyMetrics.varint(metric.size);
+        familyMetrics.append(metric);
+        metricCount++;
+    }
+
+    private void finishFamily() {
+        if (familyName == null || metricCount == 0) {
+            return;
+        }
+        int nameLength = ProtoBuffer.utf8Length(familyName);
+        int helpLength = ProtoBuffer.utf8Length(familyHelp);
+        int headerSize = 1 + ProtoBuffer.varintSize(nameLength) + nameLength
+                + 1 + ProtoBuffer.varintSize(helpLength) + helpLength
+                + 1 + ProtoBuffer.varintSize(familyType);
+
+        ProtoBuffer header = nested;
+        header.reset();
+        header.varint(headerSize + familyMetrics.size);
+        header.tag(1, LENGTH_DELIMITED);
+        header.string(familyName, nameLength);
+        header.tag(2, LENGTH_DELIMITED);
+        header.string(familyHelp, helpLength);
+        header.tag(3, VARINT);
+        header.varint(familyType);
+
+        writeBytes(header.bytes, 0, header.size);
+        writeBytes(familyMetrics.bytes, 0, familyMetrics.size);
+        familyMetrics.reset();
+        metricCount = 0;
+        familyName = null;
+    }
+
+    private static int typeOf(String type) {
+        return switch (type) {
+            case "counter" -> TYPE_COUNTER;
+            case "gauge" -> TYPE_GAUGE;
+            case "summary" -> TYPE_SUMMARY;
+            case "histogram" -> TYPE_HISTOGRAM;
+            default -> TYPE_UNTYPED;
+        };
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+}
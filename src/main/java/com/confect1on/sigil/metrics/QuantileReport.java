@@ -0,0 +1,80 @@
+package com.confect1on.sigil.metrics;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Renders the session duration and backend stay quantiles served at /quantiles as JSON.
+ *
+ * Quantiles are estimated on request from the native buckets of the labelled histograms rather
+ * than exported on every scrape, where they would cost a pass over every sketch for numbers few
+ * scrapes look at. The network-wide session duration is estimated by merging the per-region
+ * sketches, which is exact up to the coarsest schema among them.
+ */
+final class QuantileReport {
+    static final double[] DEFAULT_QUANTILES = {0.5, 0.9, 0.99};
+    private static final int MERGED_MAX_BUCKETS = 160;
+
+    private QuantileReport() {
+    }
+
+    /**
+     * @param quantiles Quantiles to estimate, each between 0 and 1
+     */
+    static byte[] render(MetricsManager metricsManager, double[] quantiles) {
+        StringBuilder out = new StringBuilder(1024);
+        out.append("{\"quantiles\":[");
+        for (int i = 0; i < quantiles.length; i++) {
+            out.append(i > 0 ? "," : "").append(quantiles[i]);
+        }
+        out.append(']');
+
+        List<NativeHistogram.Snapshot> regions = new ArrayList<>();
+        StringBuilder byRegion = new StringBuilder(512);
+        metricsManager.forEachSessionDurationByRegion((region, histogram) -> {
+            NativeHistogram.Snapshot snapshot = histogram.nativeHistogram().snapshot();
+            regions.add(snapshot);
+            appendEntry(byRegion, region, histogram.sum(), snapshot, quantiles);
+        });
+
+        NativeHistogram merged = new NativeHistogram(NativeHistogram.MAX_SCHEMA, MERGED_MAX_BUCKETS);
+        double sum = 0;
+        for (NativeHistogram.Snapshot snapshot : regions) {
+            merged.merge(snapshot);
+            sum += snapshot.sum();
+        }
+        out.append(",\"session_duration_seconds\":");
+        appendSummary(out, sum, merged.snapshot(), quantiles);
+
+        out.append(",\"session_duration_by_region_seconds\":{").append(byRegion).append('}');
+
+        StringBuilder byBackend = new StringBuilder(512);
+        metricsManager.forEachBackendStay((server, histogram) ->
+                appendEntry(byBackend, server, histogram.sum(), histogram.nativeHistogram().snapshot(), quantiles));
+        out.append(",\"backend_stay_seconds\":{").append(byBackend).append("}}\n");
+        return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void appendEntry(StringBuilder out, String label, double sum, NativeHistogram.Snapshot snapshot,
+                                    double[] quantiles) {
+        if (out.length() > 0) {
+            out.append(',');
+        }
+        JsonStrings.append(out, label);
+        out.append(':');
+        appendSummary(out, sum, snapshot, quantiles);
+    }
+
+    private static void appendSummary(StringBuilder out, double sum, NativeHistogram.Snapshot snapshot, double[] quantiles) {
+        out.append("{\"count\":").append(snapshot.count())
+                .append(",\"sum\":").append(sum)
+                .append(",\"values\":[");
+        for (int i = 0; i < quantiles.length; i++) {
+            double value = snapshot.quantile(quantiles[i]);
+            // JSON has no NaN
+            out.append(i > 0 ? "," : "").append(Double.isNaN(value) ? "null" : Double.toString(value));
+        }
+        out.append("]}");
+    }
+}
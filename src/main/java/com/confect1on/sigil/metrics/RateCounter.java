@@ -0,0 +1,80 @@
+package com.confect1on.sigil.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts events and reports their rate over the last 1, 10 and 60 seconds alongside a monotonic total.
+ *
+ * Events are counted into a ring of one-second slots. Each slot is a single long holding the second
+ * it belongs to and the count for that second, so moving a slot on to a new second and counting into
+ * it are one compare-and-set: recording is lock-free and allocation-free. Rates only cover complete
+ * seconds, so the 1s rate is the count of the previous second rather than a partial one.
+ */
+public final class RateCounter {
+    /** Windows reported by {@link #rate}, in seconds. */
+    public static final int[] WINDOWS = {1, 10, 60};
+
+    // Must exceed the largest window plus the second in progress
+    private static final int SLOTS = 64;
+    private static final int COUNT_BITS = 24;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+    private final AtomicLongArray slots = new AtomicLongArray(SLOTS);
+    private final LongAdder total = new LongAdder();
+    private final long originNanos;
+
+    public RateCounter() {
+        // Second 0 is never used so an empty slot cannot be mistaken for a current one
+        this.originNanos = System.nanoTime() - 1_000_000_000L;
+    }
+
+    public void increment() {
+        total.increment();
+        long second = currentSecond();
+        int index = (int) (second & (SLOTS - 1));
+        while (true) {
+            long slot = slots.get(index);
+            long next;
+            if (slot >>> COUNT_BITS == second) {
+                // Saturate rather than spill into the second; 16M events a second is far beyond any real flood
+                if ((slot & COUNT_MASK) == COUNT_MASK) {
+                    return;
+                }
+                next = slot + 1;
+            } else {
+                next = (second << COUNT_BITS) | 1;
+            }
+            if (slots.compareAndSet(index, slot, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param windowSeconds Length of the window, at most 60 seconds
+     * @return Events per second over the complete seconds of the window
+     */
+    public double rate(int windowSeconds) {
+        long current = currentSecond();
+        long count = 0;
+        for (long second = current - windowSeconds; second < current; second++) {
+            long slot = slots.get((int) (second & (SLOTS - 1)));
+            if (slot >>> COUNT_BITS == second) {
+                count += slot & COUNT_MASK;
+            }
+        }
+        return (double) count / windowSeconds;
+    }
+
+    /**
+     * @return Events counted since the counter was created
+     */
+    public long total() {
+        return total.sum();
+    }
+
+    private long currentSecond() {
+        return (System.nanoTime() - originNanos) / 1_000_000_000L;
+    }
+}
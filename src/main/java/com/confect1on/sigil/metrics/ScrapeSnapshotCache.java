@@ -0,0 +1,101 @@
+package com.confect1on.sigil.metrics;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Renders the exposition at most once per interval and shares the encoded bytes between scrapers.
+ * A scrape that finds the snapshot stale starts a render; scrapes arriving while it runs wait for
+ * that render rather than starting their own.
+ *
+ * A companion writer, such as the one for the push exporter, can be rendered in the same pass so a
+ * second consumer of the metrics shares the walk over the collectors instead of repeating it.
+ */
+class ScrapeSnapshotCache {
+    private final MetricsExporter metricsExporter;
+    private final long intervalNanos;
+    private final AtomicReference<CompletableFuture<Snapshot>> current = new AtomicReference<>();
+
+    // Only touched by the thread that won the render, one render at a time
+    private final ExpositionWriter writer;
+    private final GzipEncoder gzip = new GzipEncoder();
+    private volatile ExpositionWriter companion;
+
+    /**
+     * @param writer Writer for the exposition format this cache serves
+     */
+    ScrapeSnapshotCache(MetricsExporter metricsExporter, Duration interval, ExpositionWriter writer) {
+        this.metricsExporter = metricsExporter;
+        this.intervalNanos = interval.toNanos();
+        this.writer = writer;
+    }
+
+    /**
+     * Returns a snapshot no older than the configured interval, rendering one if needed.
+     */
+    Snapshot get() {
+        while (true) {
+            CompletableFuture<Snapshot> existing = current.get();
+            if (existing != null) {
+                if (!existing.isDone()) {
+                    return existing.join();
+                }
+                Snapshot snapshot = existing.isCompletedExceptionally() ? null : existing.join();
+                if (snapshot != null && snapshot.ageNanos() < intervalNanos) {
+                    return snapshot;
+                }
+            }
+
+            CompletableFuture<Snapshot> next = new CompletableFuture<>();
+            if (current.compareAndSet(existing, next)) {
+                try {
+                    next.complete(render());
+                } catch (RuntimeException | Error e) {
+                    next.completeExceptionally(e);
+                    throw e;
+                }
+                return next.join();
+            }
+        }
+    }
+
+    /**
+     * Renders another format alongside this cache's own from the next render on.
+     * @param companion Writer for the other format, read back through {@link Snapshot#companion()}
+     */
+    void share(ExpositionWriter companion) {
+        this.companion = companion;
+    }
+
+    void close() {
+        gzip.close();
+    }
+
+    private Snapshot render() {
+        ExpositionWriter companion = this.companion;
+        writer.reset();
+        if (companion == null) {
+            metricsExporter.exportMetrics(writer);
+        } else {
+            companion.reset();
+            metricsExporter.exportMetrics(new FanOutExpositionWriter(writer, companion));
+        }
+        writer.compressTo(gzip);
+        return new Snapshot(writer.toByteArray(), gzip.toByteArray(),
+                companion != null ? companion.toByteArray() : null, System.nanoTime());
+    }
+
+    /**
+     * An immutable rendered exposition, in plain and gzip form, plus the companion format if one is shared.
+     */
+    record Snapshot(byte[] plain, byte[] gzip, byte[] companion, long renderedAtNanos) {
+        long ageNanos() {
+            return System.nanoTime() - renderedAtNanos;
+        }
+
+        double ageSeconds() {
+            return ageNanos() / 1e9;
+        }
+    }
+}
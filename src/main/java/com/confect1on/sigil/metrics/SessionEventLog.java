@@ -0,0 +1,279 @@
+package com.confect1on.sigil.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the most recent session events (joins, resolved regions, backend switches, disconnects) for
+ * incident forensics, in a fixed-size ring of fixed-width records outside the heap.
+ *
+ * Writers claim a sequence number with a single atomic increment and write the record into its slot
+ * without locks. Each slot starts with a version word that works as a seqlock: it is odd while the
+ * record is being written and {@code 2 * sequence + 2} once complete, so readers can tell a finished
+ * record from one in progress or already overwritten and skip it.
+ *
+ * Region and backend names are stored as IDs into a small append-only dictionary, so records stay
+ * fixed-width and queries compare integers.
+ */
+public final class SessionEventLog {
+    /** Maximum number of distinct region and backend names; later ones are recorded as "other". */
+    private static final int MAX_NAMES = 4096;
+    private static final int NO_NAME = 0;
+    private static final int OTHER_NAME = 1;
+
+    // Record layout, 64 bytes so records stay 8-byte aligned
+    private static final int RECORD_SIZE = 64;
+    /** Largest capacity whose buffer fits in one {@link ByteBuffer}. */
+    public static final int MAX_CAPACITY = Integer.MAX_VALUE / RECORD_SIZE;
+    private static final int VERSION = 0;
+    private static final int TIMESTAMP = 8;
+    private static final int PLAYER_MSB = 16;
+    private static final int PLAYER_LSB = 24;
+    private static final int TYPE = 32;
+    private static final int REGION = 36;
+    private static final int BACKEND = 40;
+    private static final int PREVIOUS_BACKEND = 44;
+    private static final int DURATION = 48;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    /**
+     * Kinds of session event.
+     */
+    public enum Type {
+        JOIN("join"),
+        REGION("region"),
+        SWITCH("switch"),
+        DISCONNECT("disconnect"),
+        DISCARD("discard");
+
+        private final String label;
+
+        Type(String label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * Selects records for {@link #writeNdjson}. Null fields match everything.
+     * @param fromMillis Earliest timestamp in epoch milliseconds, inclusive
+     * @param toMillis Latest timestamp in epoch milliseconds, inclusive
+     * @param limit Maximum number of records, taking the most recent matches, or 0 for no limit
+     */
+    public record Query(Long fromMillis, Long toMillis, UUID player, String backend, int limit) {
+    }
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final Map<String, Integer> nameIds = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<String> names = new AtomicReferenceArray<>(MAX_NAMES);
+    private final AtomicInteger nextNameId = new AtomicInteger(OTHER_NAME + 1);
+
+    /**
+     * @param capacity Number of events kept; uses {@code 64 * capacity} bytes of direct memory
+     */
+    public SessionEventLog(int capacity) {
+        if (capacity <= 0 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Session event log capacity out of range: " + capacity);
+        }
+        this.capacity = capacity;
+        this.buffer = ByteBuffer.allocateDirect(capacity * RECORD_SIZE).order(ByteOrder.nativeOrder());
+        names.set(OTHER_NAME, LabelLimiter.OTHER);
+        nameIds.put(LabelLimiter.OTHER, OTHER_NAME);
+    }
+
+    /**
+     * Appends an event.
+     * @param region Region of the session, or null
+     * @param backend Backend the session is on, or null
+     * @param previousBackend Backend the session switched from, or null
+     * @param durationNanos Session duration for disconnects, otherwise 0
+     */
+    public void record(Type type, UUID player, String region, String backend, String previousBackend, long durationNanos) {
+        // Resolve names first so a new name never holds up a record that is half written
+        int regionId = nameId(region);
+        int backendId = nameId(backend);
+        int previousBackendId = nameId(previousBackend);
+        long sequence = nextSequence.getAndIncrement();
+        int offset = (int) (sequence % capacity) * RECORD_SIZE;
+
+        LONGS.setOpaque(buffer, offset + VERSION, 2 * sequence + 1);
+        // Keep the payload writes below from being reordered before the odd version
+        VarHandle.storeStoreFence();
+        buffer.putLong(offset + TIMESTAMP, System.currentTimeMillis());
+        buffer.putLong(offset + PLAYER_MSB, player.getMostSignificantBits());
+        buffer.putLong(offset + PLAYER_LSB, player.getLeastSignificantBits());
+        buffer.putInt(offset + TYPE, type.ordinal());
+        buffer.putInt(offset + REGION, regionId);
+        buffer.putInt(offset + BACKEND, backendId);
+        buffer.putInt(offset + PREVIOUS_BACKEND, previousBackendId);
+        buffer.putLong(offset + DURATION, durationNanos);
+        LONGS.setRelease(buffer, offset + VERSION, 2 * sequence + 2);
+    }
+
+    /**
+     * Streams the matching records, oldest first, as newline-delimited JSON. Records are decoded one
+     * at a time straight from the ring; nothing but the current record is copied onto the heap.
+     * @return Number of records written
+     */
+    public int writeNdjson(Query query, OutputStream out) throws IOException {
+        Cursor cursor = new Cursor(query);
+        long end = nextSequence.get();
+        long start = Math.max(0, end - capacity);
+
+        if (query.limit() > 0) {
+            // First pass counts matches so only the most recent ones are written
+            int matches = 0;
+            for (long sequence = start; sequence < end; sequence++) {
+                if (cursor.read(sequence)) {
+                    matches++;
+                }
+            }
+            int skip = matches - query.limit();
+            for (; skip > 0 && start < end; start++) {
+                if (cursor.read(start)) {
+                    skip--;
+                }
+            }
+        }
+
+        StringBuilder line = new StringBuilder(256);
+        int written = 0;
+        for (long sequence = start; sequence < end; sequence++) {
+            if (cursor.read(sequence)) {
+                line.setLength(0);
+                cursor.appendJson(line);
+                out.write(line.toString().getBytes(StandardCharsets.UTF_8));
+                written++;
+            }
+        }
+        return written;
+    }
+
+    private int nameId(String name) {
+        if (name == null) {
+            return NO_NAME;
+        }
+        Integer id = nameIds.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (nameIds) {
+            id = nameIds.get(name);
+            if (id != null) {
+                return id;
+            }
+            int next = nextNameId.get();
+            if (next == MAX_NAMES) {
+                return OTHER_NAME;
+            }
+            // Publish the name before its ID so readers never see an ID without a name
+            names.set(next, name);
+            nameIds.put(name, next);
+            nextNameId.set(next + 1);
+            return next;
+        }
+    }
+
+    /**
+     * Decodes records into reusable fields and applies a query's filters.
+     */
+    private final class Cursor {
+        private final Query query;
+        private final int backendId;
+        private final long playerMsb;
+        private final long playerLsb;
+
+        long sequence;
+        long timestamp;
+        long msb;
+        long lsb;
+        int type;
+        int region;
+        int backend;
+        int previousBackend;
+        long duration;
+
+        Cursor(Query query) {
+            this.query = query;
+            Integer id = query.backend() != null ? nameIds.get(query.backend()) : null;
+            // A backend that was never recorded matches nothing
+            this.backendId = query.backend() == null ? NO_NAME : id != null ? id : -1;
+            this.playerMsb = query.player() != null ? query.player().getMostSignificantBits() : 0;
+            this.playerLsb = query.player() != null ? query.player().getLeastSignificantBits() : 0;
+        }
+
+        /**
+         * @return Whether the record is complete, still present and matches the query
+         */
+        boolean read(long sequence) {
+            int offset = (int) (sequence % capacity) * RECORD_SIZE;
+            long expected = 2 * sequence + 2;
+            if ((long) LONGS.getAcquire(buffer, offset + VERSION) != expected) {
+                return false;
+            }
+            this.sequence = sequence;
+            timestamp = buffer.getLong(offset + TIMESTAMP);
+            msb = buffer.getLong(offset + PLAYER_MSB);
+            lsb = buffer.getLong(offset + PLAYER_LSB);
+            type = buffer.getInt(offset + TYPE);
+            region = buffer.getInt(offset + REGION);
+            backend = buffer.getInt(offset + BACKEND);
+            previousBackend = buffer.getInt(offset + PREVIOUS_BACKEND);
+            duration = buffer.getLong(offset + DURATION);
+            // The payload reads must complete before the version is checked again
+            VarHandle.loadLoadFence();
+            if ((long) LONGS.getVolatile(buffer, offset + VERSION) != expected) {
+                return false;
+            }
+            return matches();
+        }
+
+        private boolean matches() {
+            if (query.fromMillis() != null && timestamp < query.fromMillis()) {
+                return false;
+            }
+            if (query.toMillis() != null && timestamp > query.toMillis()) {
+                return false;
+            }
+            if (query.player() != null && (msb != playerMsb || lsb != playerLsb)) {
+                return false;
+            }
+            return backendId == NO_NAME || backend == backendId || previousBackend == backendId;
+        }
+
+        void appendJson(StringBuilder out) {
+            out.append("{\"seq\":").append(sequence)
+                    .append(",\"time\":").append(timestamp)
+                    .append(",\"event\":\"").append(Type.values()[type].label).append('"')
+                    .append(",\"player\":\"").append(new UUID(msb, lsb)).append('"');
+            appendName(out, "region", region);
+            appendName(out, "server", backend);
+            appendName(out, "previous_server", previousBackend);
+            if (type == Type.DISCONNECT.ordinal()) {
+                out.append(",\"duration_seconds\":").append(duration / 1e9);
+            }
+            out.append("}\n");
+        }
+
+        private void appendName(StringBuilder out, String field, int id) {
+            if (id == NO_NAME) {
+                return;
+            }
+            out.append(",\"").append(field).append("\":");
+            JsonStrings.append(out, names.get(id));
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.confect1on.sigil.metrics;
+
+/**
+ * Writes the Prometheus text exposition format (version 0.0.4).
+ * Histograms are written as classic cumulative buckets; native buckets are not representable here.
+ */
+public final class TextExpositionWriter extends ExpositionWriter {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final int FRACTION_DIGITS = 9;
+    private static final long FRACTION_SCALE = 1_000_000_000L;
+
+    private String sampleName;
+
+    private String pendingName;
+    private String pendingHelp;
+    private String pendingType;
+
+    public TextExpositionWriter() {
+        super(DEFAULT_CAPACITY);
+    }
+
+    @Override
+    public ExpositionWriter family(String name, String help, String type) {
+        pendingName = name;
+        pendingHelp = help;
+        pendingType = type;
+        return this;
+    }
+
+    @Override
+    public ExpositionWriter sample(String name) {
+        sampleName = name;
+        labelCount = 0;
+        return this;
+    }
+
+    @Override
+    public void value(long value) {
+        startLine(null);
+        writeLabels(null, 0);
+        writeLong(value);
+        writeByte('\n');
+        labelCount = 0;
+    }
+
+    @Override
+    public void value(double value) {
+        startLine(null);
+        writeLabels(null, 0);
+        writeDouble(value);
+        writeByte('\n');
+        labelCount = 0;
+    }
+
+    @Override
+    public void histogram(Histogram histogram) {
+        int boundCount = histogram.boundCount();
+        long cumulative = 0;
+        for (int i = 0; i <= boundCount; i++) {
+            cumulative += histogram.bucketCount(i);
+            startLine("_bucket");
+            writeLabels("le", i < boundCount ? histogram.bound(i) : Double.POSITIVE_INFINITY);
+            writeLong(cumulative);
+            writeByte('\n');
+        }
+
+        startLine("_sum");
+        writeLabels(null, 0);
+        writeDouble(histogram.sum());
+        writeByte('\n');
+
+        startLine("_count");
+        writeLabels(null, 0);
+        writeLong(cumulative);
+        writeByte('\n');
+        labelCount = 0;
+    }
+
+    @Override
+    public String contentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    protected void resetState() {
+        pendingName = null;
+        sampleName = null;
+    }
+
+    private void startLine(String suffix) {
+        flushFamily();
+        writeAscii(sampleName);
+        if (suffix != null) {
+            writeAscii(suffix);
+        }
+    }
+
+    /**
+     * Writes the sample's labels, plus an optional numeric label such as {@code le}, and the separating space.
+     */
+    private void writeLabels(String extraName, double extraValue) {
+        if (labelCount > 0 || extraName != null) {
+            writeByte('{');
+            for (int i = 0; i < labelCount; i++) {
+                if (i > 0) {
+                    writeByte(',');
+                }
+                writeAscii(labelNames[i]);
+                writeByte('=');
+                writeByte('"');
+                writeEscaped(labelValues[i], true);
+                writeByte('"');
+            }
+            if (extraName != null) {
+                if (labelCount > 0) {
+                    writeByte(',');
+                }
+                writeAscii(extraName);
+                writeByte('=');
+                writeByte('"');
+                writeDouble(extraValue);
+                writeByte('"');
+            }
+            writeByte('}');
+        }
+        writeByte(' ');
+    }
+
+    private void flushFamily() {
+        if (pendingName == null) {
+            return;
+        }
+        if (size > 0) {
+            writeByte('\n');
+        }
+        writeAscii("# HELP ");
+        writeAscii(pendingName);
+        writeByte(' ');
+        writeEscaped(pendingHelp, false);
+        writeByte('\n');
+        writeAscii("# TYPE ");
+        writeAscii(pendingName);
+        writeByte(' ');
+        writeAscii(pendingType);
+        writeByte('\n');
+        pendingName = null;
+    }
+
+    private void writeDouble(double value) {
+        if (Double.isNaN(value)) {
+            writeAscii("NaN");
+            return;
+        }
+        if (Double.isInfinite(value)) {
+            writeAscii(value > 0 ? "+Inf" : "-Inf");
+            return;
+        }
+
+        double abs = Math.abs(value);
+        if (abs < 1e15 && value == Math.rint(value)) {
+            writeLong((long) value);
+            return;
+        }
+        if (abs < 1e-6 || abs >= 1e15) {
+            // Extreme magnitudes are rare enough that the allocation does not matter
+            writeAscii(Double.toString(value));
+            return;
+        }
+
+        long integral = (long) abs;
+        long fraction = Math.round((abs - integral) * FRACTION_SCALE);
+        if (fraction == FRACTION_SCALE) {
+            integral++;
+            fraction = 0;
+        }
+        if (value < 0) {
+            writeByte('-');
+        }
+        writeLong(integral);
+        if (fraction == 0) {
+            return;
+        }
+
+        int digits = FRACTION_DIGITS;
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            digits--;
+        }
+        writeByte('.');
+        ensureCapacity(digits);
+        for (int i = size + digits - 1; i >= size; i--) {
+            buf[i] = (byte) ('0' + fraction % 10);
+            fraction /= 10;
+        }
+        size += digits;
+    }
+
+    private void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii("-9223372036854775808");
+            return;
+        }
+        if (value < 0) {
+            writeByte('-');
+            value = -value;
+        }
+
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        for (int i = size + digits - 1; i >= size; i--) {
+            buf[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        size += digits;
+    }
+
+    /**
+     * Writes a string as UTF-8, escaping backslashes and newlines, and double quotes inside label values.
+     */
+    private void writeEscaped(String s, boolean labelValue) {
+        int length = s.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c == '\\') {
+                writeByte('\\');
+                writeByte('\\');
+            } else if (c == '\n') {
+                writeByte('\\');
+                writeByte('n');
+            } else if (c == '"' && labelValue) {
+                writeByte('\\');
+                writeByte('"');
+            } else if (c < 0x80) {
+                writeByte(c);
+            } else if (c < 0x800) {
+                writeByte(0xC0 | (c >> 6));
+                writeByte(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                writeByte(0xF0 | (codePoint >> 18));
+                writeByte(0x80 | ((codePoint >> 12) & 0x3F));
+                writeByte(0x80 | ((codePoint >> 6) & 0x3F));
+                writeByte(0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                writeByte('?');
+            } else {
+                writeByte(0xE0 | (c >> 12));
+                writeByte(0x80 | ((c >> 6) & 0x3F));
+                writeByte(0x80 | (c & 0x3F));
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.confect1on.sigil.probe;
+
+import com.confect1on.sigil.metrics.MetricsManager;
+import com.velocitypowered.api.proxy.ProxyServer;
+import com.velocitypowered.api.proxy.server.RegisteredServer;
+import org.slf4j.Logger;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pings every registered backend and feeds the results into {@link MetricsManager}.
+ * Every server's ping is issued on its own after a random delay, so pings are spread out rather
+ * than fired in a burst, and at most {@code concurrency} are in flight at once. A ping holds its
+ * slot only until it answers or times out, so a dead backend never delays the servers behind it
+ * while slots are free. A round is skipped if the previous one is still running.
+ */
+public class BackendProber implements Runnable {
+    private final ProxyServer proxy;
+    private final MetricsManager metricsManager;
+    private final Logger logger;
+    private final long timeoutMillis;
+    private final long maxJitterMillis;
+    private final Semaphore inFlight;
+    private final AtomicBoolean roundInProgress = new AtomicBoolean(false);
+
+    /**
+     * @param timeout How long to wait for a single ping
+     * @param maxJitter Upper bound of the random delay before each ping
+     * @param concurrency Maximum number of pings in flight at once
+     */
+    public BackendProber(ProxyServer proxy, MetricsManager metricsManager, Logger logger,
+                         Duration timeout, Duration maxJitter, int concurrency) {
+        this.proxy = proxy;
+        this.metricsManager = metricsManager;
+        this.logger = logger;
+        this.timeoutMillis = timeout.toMillis();
+        this.maxJitterMillis = maxJitter.toMillis();
+        this.inFlight = new Semaphore(concurrency);
+    }
+
+    @Override
+    public void run() {
+        if (!roundInProgress.compareAndSet(false, true)) {
+            logger.debug("Skipping backend probe round, the previous round is still running");
+            return;
+        }
+
+        Collection<RegisteredServer> servers = proxy.getAllServers();
+        if (servers.isEmpty()) {
+            roundInProgress.set(false);
+            return;
+        }
+
+        Round round = new Round(servers.size());
+        for (RegisteredServer server : servers) {
+            long jitter = maxJitterMillis > 0 ? ThreadLocalRandom.current().nextLong(maxJitterMillis) : 0;
+            CompletableFuture.delayedExecutor(jitter, TimeUnit.MILLISECONDS).execute(() -> {
+                round.ready.add(server);
+                dispatch(round);
+            });
+        }
+    }
+
+    /**
+     * Starts pings for the ready servers while slots are free. Called again whenever a server
+     * becomes ready or a ping finishes; a call made while another is dispatching, including one from
+     * a ping that completed synchronously, is handed to that call's loop instead of recursing.
+     */
+    private void dispatch(Round round) {
+        if (round.dispatching.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            while (!round.ready.isEmpty() && inFlight.tryAcquire()) {
+                RegisteredServer server = round.ready.poll();
+                if (server == null) {
+                    inFlight.release();
+                    break;
+                }
+                ping(server).whenComplete((ignored, error) -> {
+                    inFlight.release();
+                    if (round.remaining.decrementAndGet() == 0) {
+                        roundInProgress.set(false);
+                    }
+                    dispatch(round);
+                });
+            }
+        } while (round.dispatching.decrementAndGet() != 0);
+    }
+
+    private CompletableFuture<Void> ping(RegisteredServer server) {
+        String name = server.getServerInfo().getName();
+        long start = System.nanoTime();
+        CompletableFuture<?> ping;
+        try {
+            ping = server.ping();
+        } catch (RuntimeException e) {
+            ping = CompletableFuture.failedFuture(e);
+        }
+
+        return ping.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .handle((result, error) -> {
+                    if (error == null) {
+                        metricsManager.recordBackendPing(name, (System.nanoTime() - start) / 1e9);
+                        metricsManager.updateBackendStatus(name, true);
+                    } else {
+                        logger.debug("Backend {} did not answer ping: {}", name, error.toString());
+                        metricsManager.updateBackendStatus(name, false);
+                    }
+                    return null;
+                });
+    }
+
+    /**
+     * Servers of one probe round whose delay has passed, waiting for a free slot.
+     */
+    private static final class Round {
+        final Queue<RegisteredServer> ready = new ConcurrentLinkedQueue<>();
+        final AtomicInteger remaining;
+        final AtomicInteger dispatching = new AtomicInteger(0);
+
+        Round(int servers) {
+            this.remaining = new AtomicInteger(servers);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.confect1on.sigil.probe;
+
+import com.confect1on.sigil.metrics.MetricsManager;
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.proxy.ProxyServer;
+
+/**
+ * Samples the network latency of every connected player in a single scheduled pass.
+ * {@link Player#getPing()} only reads the value Velocity already tracks from keep-alives,
+ * so a pass costs one session lookup and one histogram update per player.
+ */
+public class PlayerLatencySampler implements Runnable {
+    private final ProxyServer proxy;
+    private final MetricsManager metricsManager;
+
+    public PlayerLatencySampler(ProxyServer proxy, MetricsManager metricsManager) {
+        this.proxy = proxy;
+        this.metricsManager = metricsManager;
+    }
+
+    @Override
+    public void run() {
+        for (Player player : proxy.getAllPlayers()) {
+            long ping = player.getPing();
+            // Velocity reports -1 until the first keep-alive has been answered
+            if (ping >= 0) {
+                metricsManager.recordPlayerLatency(player.getUniqueId(), ping);
+            }
+        }
+    }
+}
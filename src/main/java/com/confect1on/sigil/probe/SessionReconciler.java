@@ -0,0 +1,137 @@
+package com.confect1on.sigil.probe;
+
+import com.confect1on.sigil.geo.GeoIpResolver;
+import com.confect1on.sigil.metrics.ExpositionWriter;
+import com.confect1on.sigil.metrics.MetricsCollector;
+import com.confect1on.sigil.metrics.MetricsManager;
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.proxy.ProxyServer;
+import com.velocitypowered.api.proxy.ServerConnection;
+import org.slf4j.Logger;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Periodically checks the tracked sessions against the players Velocity reports as online and
+ * corrects any drift left by missed or out-of-order events.
+ *
+ * A discrepancy is only corrected once it has been seen on two consecutive passes, so events that
+ * are simply still in flight (a login between the player list snapshot and the check, a
+ * disconnect being processed) are left alone.
+ */
+public class SessionReconciler implements Runnable, MetricsCollector {
+    private final ProxyServer proxy;
+    private final MetricsManager metricsManager;
+    private final GeoIpResolver geoIpResolver;
+    private final Logger logger;
+
+    // Discrepancies seen on the previous pass, confirmed if seen again
+    private Set<UUID> suspectedMissing = new HashSet<>();
+    private Set<UUID> suspectedStale = new HashSet<>();
+    private Map<UUID, String> suspectedBackend = new HashMap<>();
+
+    private final AtomicLong missingCorrections = new AtomicLong();
+    private final AtomicLong staleCorrections = new AtomicLong();
+    private final AtomicLong backendCorrections = new AtomicLong();
+    private volatile int lastMissing;
+    private volatile int lastStale;
+    private volatile int lastBackend;
+
+    public SessionReconciler(ProxyServer proxy, MetricsManager metricsManager, GeoIpResolver geoIpResolver, Logger logger) {
+        this.proxy = proxy;
+        this.metricsManager = metricsManager;
+        this.geoIpResolver = geoIpResolver;
+        this.logger = logger;
+    }
+
+    @Override
+    public synchronized void run() {
+        Map<UUID, Player> online = new HashMap<>();
+        for (Player player : proxy.getAllPlayers()) {
+            online.put(player.getUniqueId(), player);
+        }
+
+        Set<UUID> missing = new HashSet<>();
+        Map<UUID, String> backend = new HashMap<>();
+        for (Player player : online.values()) {
+            UUID playerId = player.getUniqueId();
+            if (!metricsManager.hasSession(playerId)) {
+                missing.add(playerId);
+                if (suspectedMissing.contains(playerId)) {
+                    openSession(player);
+                    missingCorrections.incrementAndGet();
+                }
+                continue;
+            }
+
+            Optional<ServerConnection> current = player.getCurrentServer();
+            if (current.isPresent()) {
+                String serverName = current.get().getServerInfo().getName();
+                if (!metricsManager.isOnServer(playerId, serverName)) {
+                    backend.put(playerId, serverName);
+                    if (serverName.equals(suspectedBackend.get(playerId))) {
+                        metricsManager.updatePlayerServer(playerId, current.get().getServer());
+                        backendCorrections.incrementAndGet();
+                    }
+                }
+            }
+        }
+
+        Set<UUID> stale = new HashSet<>();
+        metricsManager.forEachSessionId(playerId -> {
+            if (!online.containsKey(playerId)) {
+                stale.add(playerId);
+            }
+        });
+        for (UUID playerId : stale) {
+            if (suspectedStale.contains(playerId) && metricsManager.discardSession(playerId)) {
+                staleCorrections.incrementAndGet();
+            }
+        }
+
+        if (!missing.isEmpty() || !stale.isEmpty() || !backend.isEmpty()) {
+            logger.debug("Session drift: {} missing, {} stale, {} on the wrong backend", missing.size(), stale.size(), backend.size());
+        }
+        lastMissing = missing.size();
+        lastStale = stale.size();
+        lastBackend = backend.size();
+        suspectedMissing = missing;
+        suspectedStale = stale;
+        suspectedBackend = backend;
+    }
+
+    /**
+     * Opens a session for a player whose login was never seen, the same way the login handler does.
+     */
+    private void openSession(Player player) {
+        UUID playerId = player.getUniqueId();
+        metricsManager.playerConnected(player, MetricsManager.PENDING_REGION);
+        InetSocketAddress address = player.getRemoteAddress();
+        if (address != null && address.getAddress() != null) {
+            geoIpResolver.resolve(address.getAddress(), location ->
+                    metricsManager.updatePlayerLocation(playerId, location.region(), location.asn(), location.subdivision()));
+        }
+        player.getCurrentServer().ifPresent(connection ->
+                metricsManager.updatePlayerServer(playerId, connection.getServer()));
+    }
+
+    @Override
+    public void collect(ExpositionWriter out) {
+        out.family("sigil_reconcile_corrections_total", "Session tracking errors corrected against the proxy's player list", "counter");
+        out.sample("sigil_reconcile_corrections_total").label("kind", "missing_session").value(missingCorrections.get());
+        out.sample("sigil_reconcile_corrections_total").label("kind", "stale_session").value(staleCorrections.get());
+        out.sample("sigil_reconcile_corrections_total").label("kind", "backend").value(backendCorrections.get());
+
+        out.family("sigil_reconcile_drift", "Discrepancies between tracked sessions and online players found by the last pass", "gauge");
+        out.sample("sigil_reconcile_drift").label("kind", "missing_session").value(lastMissing);
+        out.sample("sigil_reconcile_drift").label("kind", "stale_session").value(lastStale);
+        out.sample("sigil_reconcile_drift").label("kind", "backend").value(lastBackend);
+    }
+}
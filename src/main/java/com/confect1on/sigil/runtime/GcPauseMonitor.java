@@ -0,0 +1,93 @@
+package com.confect1on.sigil.runtime;
+
+import com.confect1on.sigil.metrics.ExpositionWriter;
+import com.confect1on.sigil.metrics.Histogram;
+import com.confect1on.sigil.metrics.MetricsCollector;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import org.slf4j.Logger;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records the duration of every garbage collection from the notifications the collectors publish,
+ * so no collection is missed between scrapes and nothing is polled.
+ *
+ * Collections are labelled by collector and action as the JVM reports them. For concurrent
+ * collectors such as ZGC and G1's concurrent cycle the duration is that of the whole cycle rather
+ * than of a stop-the-world pause; those are reported under their own collector names.
+ */
+public class GcPauseMonitor implements MetricsCollector, AutoCloseable {
+    private static final double[] PAUSE_BUCKETS = {
+        0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+
+    private record Key(String gc, String action) {
+    }
+
+    private final Logger logger;
+    private final Map<Key, Histogram> pauses = new ConcurrentHashMap<>();
+    private final List<NotificationEmitter> emitters = new ArrayList<>();
+    private final NotificationListener listener = this::handleNotification;
+
+    public GcPauseMonitor(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Subscribes to the notifications of every garbage collector that publishes them.
+     */
+    public void start() {
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter emitter) {
+                emitter.addNotificationListener(listener, null, null);
+                emitters.add(emitter);
+            }
+        }
+        if (emitters.isEmpty()) {
+            logger.warn("No garbage collector publishes notifications, GC pause metrics are unavailable");
+        }
+    }
+
+    @Override
+    public void close() {
+        for (NotificationEmitter emitter : emitters) {
+            try {
+                emitter.removeNotificationListener(listener);
+            } catch (ListenerNotFoundException e) {
+                // Already removed
+            }
+        }
+        emitters.clear();
+    }
+
+    private void handleNotification(Notification notification, Object handback) {
+        if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+            return;
+        }
+        GarbageCollectionNotificationInfo info =
+                GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+        Key key = new Key(info.getGcName(), info.getGcAction());
+        Histogram histogram = pauses.get(key);
+        if (histogram == null) {
+            histogram = pauses.computeIfAbsent(key, k -> new Histogram(PAUSE_BUCKETS));
+        }
+        histogram.observe(info.getGcInfo().getDuration() / 1000.0);
+    }
+
+    @Override
+    public void collect(ExpositionWriter out) {
+        out.family("sigil_jvm_gc_pause_seconds", "Duration of JVM garbage collections in seconds", "histogram");
+        pauses.forEach((key, histogram) ->
+                out.sample("sigil_jvm_gc_pause_seconds").label("gc", key.gc()).label("action", key.action()).histogram(histogram));
+    }
+}
@@ -0,0 +1,205 @@
+package com.confect1on.sigil.runtime;
+
+import com.confect1on.sigil.metrics.ExpositionWriter;
+import com.confect1on.sigil.metrics.MetricsCollector;
+import org.slf4j.Logger;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Samples heap, memory pool, buffer pool, thread and Netty allocator usage of the proxy's JVM on a
+ * schedule. Scrapes render the last sample, so they never wait on MXBean calls; reading the thread
+ * states in particular is a VM operation that stops every thread.
+ *
+ * Netty is not a dependency of the plugin, so its pooled allocator is read reflectively from the
+ * copy Velocity ships and skipped if it cannot be found.
+ */
+public class JvmSampler implements Runnable, MetricsCollector {
+    private static final Thread.State[] THREAD_STATES = Thread.State.values();
+    private static final String[] THREAD_STATE_LABELS = Arrays.stream(THREAD_STATES)
+            .map(state -> state.name().toLowerCase(Locale.ROOT))
+            .toArray(String[]::new);
+
+    private final Logger logger;
+    private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private final List<MemoryPoolMXBean> memoryPools = ManagementFactory.getMemoryPoolMXBeans();
+    private final List<BufferPoolMXBean> bufferPools = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+    private final NettyAllocator nettyAllocator;
+    private volatile Sample sample;
+
+    public JvmSampler(Logger logger) {
+        this.logger = logger;
+        this.nettyAllocator = NettyAllocator.find(logger);
+    }
+
+    private record Usage(String name, long used, long committed, long max) {
+        static Usage of(String name, MemoryUsage usage) {
+            return new Usage(name, usage.getUsed(), usage.getCommitted(), usage.getMax());
+        }
+    }
+
+    private record BufferPool(String name, long count, long used, long capacity) {
+    }
+
+    private record Sample(List<Usage> areas, List<Usage> pools, List<BufferPool> buffers,
+                          int[] threadsByState, int daemonThreads, int peakThreads,
+                          long nettyHeapBytes, long nettyDirectBytes) {
+    }
+
+    @Override
+    public void run() {
+        try {
+            sample = takeSample();
+        } catch (RuntimeException e) {
+            logger.warn("Failed to sample JVM metrics: {}", e.getMessage());
+        }
+    }
+
+    private Sample takeSample() {
+        List<Usage> areas = List.of(
+                Usage.of("heap", memoryBean.getHeapMemoryUsage()),
+                Usage.of("nonheap", memoryBean.getNonHeapMemoryUsage()));
+
+        List<Usage> pools = new ArrayList<>(memoryPools.size());
+        for (MemoryPoolMXBean pool : memoryPools) {
+            MemoryUsage usage = pool.getUsage();
+            // Null once a pool is no longer valid
+            if (usage != null) {
+                pools.add(Usage.of(pool.getName(), usage));
+            }
+        }
+
+        List<BufferPool> buffers = new ArrayList<>(bufferPools.size());
+        for (BufferPoolMXBean pool : bufferPools) {
+            buffers.add(new BufferPool(pool.getName(), pool.getCount(), pool.getMemoryUsed(), pool.getTotalCapacity()));
+        }
+
+        int[] threadsByState = new int[THREAD_STATES.length];
+        for (ThreadInfo info : threadBean.getThreadInfo(threadBean.getAllThreadIds(), 0)) {
+            // Null for threads that ended between listing and lookup
+            if (info != null) {
+                threadsByState[info.getThreadState().ordinal()]++;
+            }
+        }
+
+        long nettyHeapBytes = -1;
+        long nettyDirectBytes = -1;
+        if (nettyAllocator != null) {
+            nettyHeapBytes = nettyAllocator.usedHeapMemory();
+            nettyDirectBytes = nettyAllocator.usedDirectMemory();
+        }
+
+        return new Sample(areas, pools, buffers, threadsByState,
+                threadBean.getDaemonThreadCount(), threadBean.getPeakThreadCount(), nettyHeapBytes, nettyDirectBytes);
+    }
+
+    @Override
+    public void collect(ExpositionWriter out) {
+        Sample sample = this.sample;
+        if (sample == null) {
+            return;
+        }
+
+        out.family("sigil_jvm_memory_used_bytes", "Used bytes of a JVM memory area", "gauge");
+        for (Usage area : sample.areas()) {
+            out.sample("sigil_jvm_memory_used_bytes").label("area", area.name()).value(area.used());
+        }
+        out.family("sigil_jvm_memory_committed_bytes", "Committed bytes of a JVM memory area", "gauge");
+        for (Usage area : sample.areas()) {
+            out.sample("sigil_jvm_memory_committed_bytes").label("area", area.name()).value(area.committed());
+        }
+        out.family("sigil_jvm_memory_max_bytes", "Maximum bytes of a JVM memory area, -1 if undefined", "gauge");
+        for (Usage area : sample.areas()) {
+            out.sample("sigil_jvm_memory_max_bytes").label("area", area.name()).value(area.max());
+        }
+
+        out.family("sigil_jvm_memory_pool_used_bytes", "Used bytes of a JVM memory pool", "gauge");
+        for (Usage pool : sample.pools()) {
+            out.sample("sigil_jvm_memory_pool_used_bytes").label("pool", pool.name()).value(pool.used());
+        }
+        out.family("sigil_jvm_memory_pool_committed_bytes", "Committed bytes of a JVM memory pool", "gauge");
+        for (Usage pool : sample.pools()) {
+            out.sample("sigil_jvm_memory_pool_committed_bytes").label("pool", pool.name()).value(pool.committed());
+        }
+        out.family("sigil_jvm_memory_pool_max_bytes", "Maximum bytes of a JVM memory pool, -1 if undefined", "gauge");
+        for (Usage pool : sample.pools()) {
+            out.sample("sigil_jvm_memory_pool_max_bytes").label("pool", pool.name()).value(pool.max());
+        }
+
+        out.family("sigil_jvm_buffer_pool_used_bytes", "Memory used by a JVM buffer pool, e.g. direct buffers", "gauge");
+        for (BufferPool pool : sample.buffers()) {
+            out.sample("sigil_jvm_buffer_pool_used_bytes").label("pool", pool.name()).value(pool.used());
+        }
+        out.family("sigil_jvm_buffer_pool_capacity_bytes", "Total capacity of the buffers in a JVM buffer pool", "gauge");
+        for (BufferPool pool : sample.buffers()) {
+            out.sample("sigil_jvm_buffer_pool_capacity_bytes").label("pool", pool.name()).value(pool.capacity());
+        }
+        out.family("sigil_jvm_buffer_pool_buffers", "Number of buffers in a JVM buffer pool", "gauge");
+        for (BufferPool pool : sample.buffers()) {
+            out.sample("sigil_jvm_buffer_pool_buffers").label("pool", pool.name()).value(pool.count());
+        }
+
+        out.family("sigil_jvm_threads", "Live JVM threads by state", "gauge");
+        for (int i = 0; i < THREAD_STATES.length; i++) {
+            out.sample("sigil_jvm_threads").label("state", THREAD_STATE_LABELS[i]).value(sample.threadsByState()[i]);
+        }
+        out.family("sigil_jvm_threads_daemon", "Live JVM daemon threads", "gauge");
+        out.sample("sigil_jvm_threads_daemon").value(sample.daemonThreads());
+        out.family("sigil_jvm_threads_peak", "Peak number of live JVM threads since start", "gauge");
+        out.sample("sigil_jvm_threads_peak").value(sample.peakThreads());
+
+        if (sample.nettyHeapBytes() >= 0) {
+            out.family("sigil_netty_allocator_used_bytes", "Memory used by Netty's default pooled buffer allocator", "gauge");
+            out.sample("sigil_netty_allocator_used_bytes").label("type", "heap").value(sample.nettyHeapBytes());
+            out.sample("sigil_netty_allocator_used_bytes").label("type", "direct").value(sample.nettyDirectBytes());
+        }
+    }
+
+    /**
+     * Reflective handle on {@code PooledByteBufAllocator.DEFAULT.metric()}.
+     */
+    private record NettyAllocator(Object metric, Method heapMethod, Method directMethod, Logger logger) {
+        static NettyAllocator find(Logger logger) {
+            try {
+                Class<?> allocatorClass = Class.forName("io.netty.buffer.PooledByteBufAllocator");
+                Object allocator = allocatorClass.getField("DEFAULT").get(null);
+                Object metric = allocatorClass.getMethod("metric").invoke(allocator);
+                Class<?> metricClass = Class.forName("io.netty.buffer.ByteBufAllocatorMetric");
+                return new NettyAllocator(metric, metricClass.getMethod("usedHeapMemory"),
+                        metricClass.getMethod("usedDirectMemory"), logger);
+            } catch (ReflectiveOperationException | LinkageError e) {
+                logger.debug("Netty pooled allocator not available, skipping its metrics: {}", e.toString());
+                return null;
+            }
+        }
+
+        long usedHeapMemory() {
+            return read(heapMethod);
+        }
+
+        long usedDirectMemory() {
+            return read(directMethod);
+        }
+
+        private long read(Method method) {
+            try {
+                return (long) method.invoke(metric);
+            } catch (ReflectiveOperationException e) {
+                logger.debug("Failed to read Netty allocator metric {}: {}", method.getName(), e.toString());
+                return -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.confect1on.sigil.runtime;
+
+import com.confect1on.sigil.metrics.ExpositionWriter;
+import com.confect1on.sigil.metrics.Histogram;
+import com.confect1on.sigil.metrics.MetricsCollector;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how late a task scheduled at a fixed interval actually runs. On a healthy proxy the lag
+ * stays near zero; it grows when the scheduler's threads are saturated or the JVM is stalled, for
+ * example by long GC pauses, which is the proxy-side equivalent of a server's dropped ticks.
+ */
+public class SchedulerLagProbe implements Runnable, MetricsCollector {
+    private static final double[] LAG_BUCKETS = {
+        0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5
+    };
+
+    private final long intervalNanos;
+    private final Histogram lag = new Histogram(LAG_BUCKETS);
+    private volatile double lastLagSeconds;
+    // Velocity may start a repeating task again before the previous run returns, so runs can overlap
+    private final AtomicLong lastRunNanos = new AtomicLong();
+
+    /**
+     * @param interval The interval the probe is scheduled at
+     */
+    public SchedulerLagProbe(Duration interval) {
+        this.intervalNanos = interval.toNanos();
+    }
+
+    @Override
+    public void run() {
+        long now = System.nanoTime();
+        long previous = lastRunNanos.getAndSet(now);
+        if (previous != 0) {
+            double lagSeconds = Math.max(0, now - previous - intervalNanos) / 1e9;
+            lag.observe(lagSeconds);
+            lastLagSeconds = lagSeconds;
+        }
+    }
+
+    @Override
+    public void collect(ExpositionWriter out) {
+        if (lag.count() == 0) {
+            return;
+        }
+        out.family("sigil_scheduler_lag_seconds", "How late the proxy scheduler ran a periodic task in seconds", "histogram");
+        out.sample("sigil_scheduler_lag_seconds").histogram(lag);
+        out.family("sigil_scheduler_last_lag_seconds", "Lag of the most recent periodic task run in seconds", "gauge");
+        out.sample("sigil_scheduler_last_lag_seconds").value(lastLagSeconds);
+    }
+}
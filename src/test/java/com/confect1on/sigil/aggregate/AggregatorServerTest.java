@@ -0,0 +1,436 @@
+package com.confect1on.sigil.aggregate;
+
+import com.confect1on.sigil.StandIns;
+import com.confect1on.sigil.metrics.LabelLimits;
+import com.confect1on.sigil.metrics.MetricsCollector;
+import com.confect1on.sigil.metrics.MetricsManager;
+import com.confect1on.sigil.metrics.TextExpositionWriter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.helpers.NOPLogger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Runs an aggregator and the proxies pushing to it as stand-ins on loopback, and compares the
+ * network totals it serves with the proxies' own metrics.
+ */
+class AggregatorServerTest {
+    private static final String SECRET = "test-secret";
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+    private static final String ACTIVE_SESSIONS = "sigil_network_active_sessions";
+    private static final String DURATION_COUNT = "sigil_network_session_duration_seconds_count";
+    private static final String DURATION_SUM = "sigil_network_session_duration_seconds_sum";
+
+    private final List<AutoCloseable> resources = new ArrayList<>();
+
+    @AfterEach
+    void stop() throws Exception {
+        for (AutoCloseable resource : resources) {
+            resource.close();
+        }
+    }
+
+    @Test
+    void sumsGaugesAndMergesHistogramsAcrossProxies() {
+        AggregatorServer aggregator = aggregator(TIMEOUT);
+        MetricsManager first = proxy("EU", "EU");
+        MetricsManager second = proxy("EU", "NA");
+        DeltaPusher firstPusher = pusher(first, "first", aggregator.getAddress(), SECRET);
+        DeltaPusher secondPusher = pusher(second, "second", aggregator.getAddress(), SECRET);
+
+        observe(first, 10, 10, 10);
+        observe(second, 100, 100);
+        firstPusher.run();
+        secondPusher.run();
+        Map<String, Double> network = scrape(aggregator);
+        assertEquals(4.0, network.get(ACTIVE_SESSIONS));
+        assertEquals(3.0, network.get("sigil_network_players_by_region{region=\"EU\"}"));
+        assertEquals(1.0, network.get("sigil_network_players_by_region{region=\"NA\"}"));
+        assertEquals(5.0, network.get(DURATION_COUNT));
+        assertEquals(230.0, network.get(DURATION_SUM), 1e-9);
+
+        // Nothing new is pushed twice
+        firstPusher.run();
+        secondPusher.run();
+        observe(first, 1000);
+        firstPusher.run();
+        network = scrape(aggregator);
+        assertEquals(4.0, network.get(ACTIVE_SESSIONS));
+        assertEquals(6.0, network.get(DURATION_COUNT));
+        assertEquals(1230.0, network.get(DURATION_SUM), 1e-9);
+    }
+
+    @Test
+    void rejectsProxyWithoutTheSecret() {
+        AggregatorServer aggregator = aggregator(TIMEOUT);
+        DeltaPusher pusher = pusher(proxy("EU"), "intruder", aggregator.getAddress(), "not-the-secret");
+
+        pusher.run();
+        assertEquals(0.0, scrape(pusher).get("sigil_aggregation_connected"));
+        assertEquals(1.0, scrape(pusher).get("sigil_aggregation_pushes_total{result=\"failed\"}"));
+        await("the failed handshake to be counted",
+                () -> scrape(aggregator).get("sigil_network_failed_handshakes_total") == 1);
+        assertNull(scrape(aggregator).get("sigil_network_proxy_up{proxy=\"intruder\"}"));
+        assertEquals(0.0, scrape(aggregator).get(ACTIVE_SESSIONS));
+    }
+
+    @Test
+    void countsPushesCutOffMidwayExactlyOnce() throws IOException {
+        AggregatorServer aggregator = aggregator(TIMEOUT);
+        Relay relay = new Relay(aggregator.getAddress());
+        resources.add(relay);
+        MetricsManager first = proxy("EU", "EU");
+        MetricsManager second = proxy("NA");
+        DeltaPusher firstPusher = pusher(first, "first", relay.address(), SECRET);
+        DeltaPusher secondPusher = pusher(second, "second", aggregator.getAddress(), SECRET);
+        observe(first, 1);
+        observe(second, 2);
+        firstPusher.run();
+        secondPusher.run();
+        assertNetworkTotals(aggregator, first, second);
+
+        // Applied, but the connection breaks before the pusher hears so
+        observe(first, 3, 3, 3);
+        relay.dropNextAck = true;
+        firstPusher.run();
+        assertEquals(1.0, scrape(firstPusher).get("sigil_aggregation_pushes_total{result=\"failed\"}"));
+        await("the broken connection's gauges to be dropped", () -> scrape(aggregator).get(ACTIVE_SESSIONS) == 1);
+        firstPusher.run();
+        assertNetworkTotals(aggregator, first, second);
+
+        // Broken halfway through the push, so the aggregator never applies it. A player leaving
+        // meanwhile must not be left counted when the pusher sends all its gauges again.
+        observe(first, 4, 4);
+        List<UUID> players = new ArrayList<>();
+        first.forEachSessionId(players::add);
+        first.playerDisconnected(players.get(0));
+        relay.cutNextPush = true;
+        firstPusher.run();
+        assertEquals(2.0, scrape(firstPusher).get("sigil_aggregation_pushes_total{result=\"failed\"}"));
+        observe(second, 5);
+        secondPusher.run();
+        firstPusher.run();
+        assertNetworkTotals(aggregator, first, second);
+        assertEquals(1.0, scrape(firstPusher).get("sigil_aggregation_connected"));
+    }
+
+    @Test
+    void dropsGaugesOfProxyThatGoesAway() {
+        AggregatorServer aggregator = aggregator(TIMEOUT);
+        MetricsManager first = proxy("EU");
+        MetricsManager second = proxy("NA", "NA");
+        DeltaPusher firstPusher = pusher(first, "first", aggregator.getAddress(), SECRET);
+        DeltaPusher secondPusher = pusher(second, "second", aggregator.getAddress(), SECRET);
+        observe(second, 7);
+        firstPusher.run();
+        secondPusher.run();
+        assertEquals(3.0, scrape(aggregator).get(ACTIVE_SESSIONS));
+
+        secondPusher.close();
+        await("the closed proxy's players to be dropped", () -> scrape(aggregator).get(ACTIVE_SESSIONS) == 1);
+        Map<String, Double> network = scrape(aggregator);
+        assertEquals(0.0, network.get("sigil_network_proxy_up{proxy=\"second\"}"));
+        assertNull(network.get("sigil_network_players_by_region{region=\"NA\"}"));
+        // Observations already merged keep counting, like any counter
+        assertEquals(1.0, network.get(DURATION_COUNT));
+    }
+
+    @Test
+    void dropsGaugesOfProxyThatStopsPushing() {
+        AggregatorServer aggregator = aggregator(Duration.ofMillis(300));
+        MetricsManager proxy = proxy("EU", "NA");
+        DeltaPusher pusher = pusher(proxy, "silent", aggregator.getAddress(), SECRET);
+        observe(proxy, 7);
+        pusher.run();
+        assertEquals(2.0, scrape(aggregator).get(ACTIVE_SESSIONS));
+
+        await("the silent proxy to time out",
+                () -> scrape(aggregator).get("sigil_network_proxy_up{proxy=\"silent\"}") == 0);
+        Map<String, Double> network = scrape(aggregator);
+        assertEquals(0.0, network.get(ACTIVE_SESSIONS));
+        assertNull(network.get("sigil_network_players_by_region{region=\"EU\"}"));
+        assertEquals(1.0, network.get(DURATION_COUNT));
+    }
+
+    @Test
+    void skipsHistogramWithOtherBoundsOnEveryPush() {
+        AggregatorServer aggregator = aggregator(TIMEOUT);
+        MetricsManager first = proxy("EU");
+        MetricsManager second = new MetricsManager(new double[]{1, 2});
+        connect(second, "NA");
+        DeltaPusher firstPusher = pusher(first, "first", aggregator.getAddress(), SECRET);
+        DeltaPusher secondPusher = pusher(second, "second", aggregator.getAddress(), SECRET);
+        observe(first, 10);
+        firstPusher.run();
+
+        // The bounds go with the first push only; the later ones must not be merged into the first proxy's buckets
+        for (int push = 0; push < 3; push++) {
+            observe(second, 0.5, 1.5, 100);
+            secondPusher.run();
+        }
+        Map<String, Double> pushed = scrape(secondPusher);
+        assertEquals(3.0, pushed.get("sigil_aggregation_pushes_total{result=\"ok\"}"));
+        assertEquals(0.0, pushed.get("sigil_aggregation_pushes_total{result=\"failed\"}"));
+
+        Map<String, Double> network = scrape(aggregator);
+        assertEquals(2.0, network.get(ACTIVE_SESSIONS));
+        assertEquals(1.0, network.get(DURATION_COUNT));
+        assertEquals(10.0, network.get(DURATION_SUM), 1e-9);
+    }
+
+    @Test
+    void doesNotPushFoldedLatencyAgain() {
+        AggregatorServer aggregator = aggregator(TIMEOUT);
+        // Room for one backend, so the second one takes over the first one's slot once it is empty
+        MetricsManager proxy = new MetricsManager(0, 0, new LabelLimits(10, 1, 10, 10));
+        DeltaPusher pusher = pusher(proxy, "first", aggregator.getAddress(), SECRET);
+        UUID firstPlayer = UUID.randomUUID();
+        proxy.playerConnected(StandIns.player(firstPlayer, "first"), "EU");
+        proxy.updatePlayerServer(firstPlayer, StandIns.server("lobby"));
+        proxy.recordPlayerLatency(firstPlayer, 20);
+        pusher.run();
+        proxy.playerDisconnected(firstPlayer);
+
+        UUID secondPlayer = UUID.randomUUID();
+        proxy.playerConnected(StandIns.player(secondPlayer, "second"), "EU");
+        proxy.updatePlayerServer(secondPlayer, StandIns.server("survival"));
+        proxy.recordPlayerLatency(secondPlayer, 40);
+        pusher.run();
+
+        long[] local = {0};
+        proxy.forEachPlayerLatency((region, server, histogram) -> local[0] += histogram.count());
+        assertEquals(2, local[0]);
+        double network = 0;
+        for (Map.Entry<String, Double> sample : scrape(aggregator).entrySet()) {
+            if (sample.getKey().startsWith("sigil_network_player_ping_seconds_count")) {
+                network += sample.getValue();
+            }
+        }
+        assertEquals(2.0, network);
+    }
+
+    private AggregatorServer aggregator(Duration timeout) {
+        AggregatorServer aggregator = new AggregatorServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                SECRET, timeout, 8, 1000, NOPLogger.NOP_LOGGER);
+        aggregator.start();
+        resources.add(aggregator::stop);
+        return aggregator;
+    }
+
+    private DeltaPusher pusher(MetricsManager metricsManager, String proxyId, InetSocketAddress address, String secret) {
+        DeltaPusher pusher = new DeltaPusher(metricsManager, address, proxyId, secret, TIMEOUT, NOPLogger.NOP_LOGGER);
+        resources.add(pusher);
+        return pusher;
+    }
+
+    /**
+     * @return A proxy with one player connected from each of the regions
+     */
+    private static MetricsManager proxy(String... regions) {
+        MetricsManager metricsManager = new MetricsManager();
+        connect(metricsManager, regions);
+        return metricsManager;
+    }
+
+    private static void connect(MetricsManager metricsManager, String... regions) {
+        for (String region : regions) {
+            UUID playerId = UUID.randomUUID();
+            metricsManager.playerConnected(StandIns.player(playerId, "player-" + playerId), region);
+        }
+    }
+
+    private static void observe(MetricsManager metricsManager, double... durations) {
+        for (double duration : durations) {
+            metricsManager.getSessionDurationHistogram().observe(duration);
+        }
+    }
+
+    /**
+     * Asserts the aggregator serves exactly the proxies' combined players and session durations.
+     */
+    private static void assertNetworkTotals(AggregatorServer aggregator, MetricsManager... proxies) {
+        long sessions = 0;
+        long count = 0;
+        double sum = 0;
+        for (MetricsManager proxy : proxies) {
+            sessions += proxy.getActiveSessionCount();
+            count += proxy.getSessionDurationHistogram().count();
+            sum += proxy.getSessionDurationHistogram().sum();
+        }
+        Map<String, Double> network = scrape(aggregator);
+        assertEquals((double) sessions, network.get(ACTIVE_SESSIONS));
+        assertEquals((double) count, network.get(DURATION_COUNT));
+        assertEquals(sum, network.get(DURATION_SUM), 1e-9);
+    }
+
+    /**
+     * @return The collector's samples by name and labels, as they appear in the text format
+     */
+    private static Map<String, Double> scrape(MetricsCollector collector) {
+        TextExpositionWriter out = new TextExpositionWriter();
+        collector.collect(out);
+        Map<String, Double> samples = new HashMap<>();
+        for (String line : out.toString().split("\n")) {
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                int space = line.lastIndexOf(' ');
+                samples.put(line.substring(0, space), Double.parseDouble(line.substring(space + 1)));
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Waits for something the aggregator does on its own connection threads.
+     */
+    private static void await(String what, BooleanSupplier condition) {
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                fail("Timed out waiting for " + what);
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail("Interrupted waiting for " + what);
+            }
+        }
+    }
+
+    /**
+     * Forwards pushers' connections to the aggregator and breaks one at a chosen point of a push,
+     * the way a proxy crashing or the network failing would.
+     */
+    private static final class Relay implements AutoCloseable {
+        private final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        private final InetSocketAddress target;
+        private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+        // Close the connection halfway through forwarding the next push
+        volatile boolean cutNextPush;
+        // Close the connection instead of forwarding the next acknowledgement, after the push was applied
+        volatile boolean dropNextAck;
+
+        Relay(InetSocketAddress target) throws IOException {
+            this.target = target;
+            daemon(this::accept);
+        }
+
+        InetSocketAddress address() {
+            return (InetSocketAddress) server.getLocalSocketAddress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+            sockets.forEach(Relay::closeQuietly);
+        }
+
+        private void accept() {
+            try {
+                while (true) {
+                    Socket pusher = server.accept();
+                    Socket aggregator = new Socket(target.getAddress(), target.getPort());
+                    sockets.add(pusher);
+                    sockets.add(aggregator);
+                    daemon(() -> forwardPushes(pusher, aggregator));
+                    daemon(() -> forwardAcknowledgements(aggregator, pusher));
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+
+        private void forwardPushes(Socket from, Socket to) {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(from.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(to.getOutputStream()));
+                out.writeInt(in.readInt());
+                out.writeByte(in.readUnsignedByte());
+                out.writeUTF(in.readUTF());
+                out.writeLong(in.readLong());
+                out.flush();
+                out.write(in.readNBytes(DeltaProtocol.MAC_BYTES));
+                out.flush();
+                while (true) {
+                    byte[] frame = new byte[in.readInt()];
+                    in.readFully(frame);
+                    out.writeInt(frame.length);
+                    if (cutNextPush) {
+                        cutNextPush = false;
+                        out.write(frame, 0, frame.length / 2);
+                        out.flush();
+                        return;
+                    }
+                    out.write(frame);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // Either side closed the connection
+            } finally {
+                closeQuietly(from);
+                closeQuietly(to);
+            }
+        }
+
+        private void forwardAcknowledgements(Socket from, Socket to) {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(from.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(to.getOutputStream()));
+                out.write(in.readNBytes(DeltaProtocol.NONCE_BYTES));
+                out.flush();
+                out.writeLong(in.readLong());
+                out.flush();
+                while (true) {
+                    long acknowledged = in.readLong();
+                    if (dropNextAck) {
+                        dropNextAck = false;
+                        return;
+                    }
+                    out.writeLong(acknowledged);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // Either side closed the connection
+            } finally {
+                closeQuietly(from);
+                closeQuietly(to);
+            }
+        }
+
+        private static void daemon(Runnable task) {
+            Thread thread = new Thread(task, "aggregator-test-relay");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private static void closeQuietly(Socket socket) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.confect1on.sigil.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class LabelLimiterTest {
+    private static final int THREADS = 8;
+    private static final int ITERATIONS = 200_000;
+
+    @Test
+    void recyclesOnlySlotsWithoutSessions() {
+        LabelLimiter limiter = new LabelLimiter("test", 2, Set.of());
+        int a = limiter.admit("a");
+        int b = limiter.admit("b");
+        assertEquals(LabelLimiter.OTHER_ID, limiter.admit("c"));
+
+        limiter.release(a);
+        int c = limiter.admit("c");
+        assertEquals(a, c);
+        assertEquals("c", limiter.label(c));
+        assertEquals(LabelLimiter.NONE, limiter.idOf("a"));
+        assertEquals("b", limiter.label(b));
+        assertEquals(b, limiter.idOf("b"));
+    }
+
+    @Test
+    void recyclesTheLeastFrequentIdleSlot() {
+        LabelLimiter limiter = new LabelLimiter("test", 2, Set.of());
+        for (int i = 0; i < 5; i++) {
+            limiter.release(limiter.admit("frequent"));
+        }
+        int rare = limiter.admit("rare");
+        limiter.release(rare);
+
+        assertEquals(rare, limiter.admit("new"));
+        assertNotEquals(LabelLimiter.NONE, limiter.idOf("frequent"));
+    }
+
+    @Test
+    void countsValuesFoldedIntoOther() {
+        LabelLimiter limiter = new LabelLimiter("test", 1, Set.of("reserved"));
+        limiter.admit("kept");
+        limiter.admit("reserved");
+        limiter.admit("first");
+        limiter.admit("second");
+        limiter.admit("first");
+
+        assertEquals(3, limiter.droppedCount());
+        assertEquals(Map.of("kept", 1, "reserved", 1, LabelLimiter.OTHER, 3), counted(limiter));
+        // A value that is literally "other" is folded without using up a slot or counting as dropped
+        assertEquals(LabelLimiter.OTHER_ID, limiter.admit(LabelLimiter.OTHER));
+        assertEquals(3, limiter.droppedCount());
+    }
+
+    @Test
+    void recycledSlotStartsFromZero() {
+        LabelLimiter limiter = new LabelLimiter("test", 1, Set.of());
+        int old = limiter.admit("old");
+        limiter.admit("old");
+        limiter.release(old);
+        limiter.release(old);
+
+        int recycled = limiter.admit("new");
+        assertEquals(old, recycled);
+        assertEquals(Map.of("new", 1), counted(limiter));
+        limiter.release(recycled);
+        assertEquals(Map.of(), counted(limiter));
+    }
+
+    @Test
+    void neverRecyclesASlotWhileItIsHeld() throws InterruptedException {
+        LabelLimiter limiter = new LabelLimiter("test", 8, Set.of());
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        // Twice as many values as slots, so slots are recycled all the time
+                        String value = "value-" + random.nextInt(16);
+                        int id = limiter.admit(value);
+                        if (id != LabelLimiter.OTHER_ID && !value.equals(limiter.label(id))) {
+                            throw new AssertionError("Admitted " + value + " as " + limiter.label(id));
+                        }
+                        Thread.onSpinWait();
+                        if (id != LabelLimiter.OTHER_ID && !value.equals(limiter.label(id))) {
+                            throw new AssertionError(value + " lost its slot to " + limiter.label(id) + " while held");
+                        }
+                        limiter.release(id);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+        // Every admit was released again
+        assertEquals(Map.of(), counted(limiter));
+    }
+
+    private static Map<String, Integer> counted(LabelLimiter limiter) {
+        Map<String, Integer> counted = new HashMap<>();
+        limiter.forEachCounted(counted::put);
+        return counted;
+    }
+}
@@ -0,0 +1,106 @@
+package com.confect1on.sigil.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LabeledSeriesTest {
+    private static final int THREADS = 8;
+
+    @Test
+    void foldsRecycledSeriesIntoOther() {
+        LabelLimiter limiter = new LabelLimiter("test", 1, Set.of());
+        LabeledSeries<LongAdder> series = counters(limiter);
+        series.get("old").add(5);
+
+        series.get("new").add(1);
+        assertEquals(Map.of(LabelLimiter.OTHER, 5L, "new", 1L), sums(series));
+        // Visiting again does not fold anything a second time
+        assertEquals(Map.of(LabelLimiter.OTHER, 5L, "new", 1L), sums(series));
+
+        // A readmitted value starts over, its old observations stay in "other"
+        series.get("old").add(2);
+        assertEquals(Map.of(LabelLimiter.OTHER, 6L, "old", 2L), sums(series));
+    }
+
+    @Test
+    void dropsRecycledSeriesWithoutFold() {
+        LabelLimiter limiter = new LabelLimiter("test", 1, Set.of());
+        LabeledSeries<LongAdder> series = new LabeledSeries<>(limiter, LongAdder::new);
+        series.get("old").add(5);
+        series.get("new").add(1);
+        assertEquals(Map.of("new", 1L), sums(series));
+    }
+
+    @Test
+    void foldsRecycledSeriesExactlyOnceWhenRacing() throws InterruptedException {
+        for (int round = 0; round < 200; round++) {
+            LabelLimiter limiter = new LabelLimiter("test", 1, Set.of());
+            LabeledSeries<LongAdder> series = counters(limiter);
+            series.get("old").add(5);
+            int id = limiter.admit("new");
+
+            // Both lookups and visits notice the recycled slot; only one may fold it
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                boolean visit = t % 2 == 0;
+                Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (visit) {
+                        series.forEach((label, counter) -> { });
+                    } else {
+                        series.forId(id);
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(Map.of(LabelLimiter.OTHER, 5L, "new", 0L), sums(series), "round " + round);
+        }
+    }
+
+    @Test
+    void foldsNestedSeriesByInnerValue() {
+        LabelLimiter regions = new LabelLimiter("regions", 1, Set.of());
+        LabelLimiter servers = new LabelLimiter("servers", 2, Set.of());
+        LabeledSeries<LabeledSeries<LongAdder>> series = new LabeledSeries<>(regions, () -> counters(servers),
+                (other, retired) -> retired.foldInto(other));
+        series.get("EU").get("lobby").add(3);
+        series.get("EU").get("survival").add(4);
+        series.get(LabelLimiter.OTHER).get("lobby").add(1);
+
+        // EU loses its slot: its servers are folded into the same servers of "other"
+        series.get("NA").get("lobby").add(2);
+        Map<String, Long> sums = new HashMap<>();
+        series.forEach((region, byServer) ->
+                byServer.forEach((server, counter) -> sums.put(region + "/" + server, counter.sum())));
+        assertEquals(Map.of("other/lobby", 4L, "other/survival", 4L, "NA/lobby", 2L), sums);
+    }
+
+    private static LabeledSeries<LongAdder> counters(LabelLimiter limiter) {
+        return new LabeledSeries<>(limiter, LongAdder::new, (other, retired) -> other.add(retired.sum()));
+    }
+
+    private static Map<String, Long> sums(LabeledSeries<LongAdder> series) {
+        Map<String, Long> sums = new HashMap<>();
+        series.forEach((label, counter) -> sums.put(label, counter.sum()));
+        return sums;
+    }
+}
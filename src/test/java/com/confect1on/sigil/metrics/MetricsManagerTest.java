@@ -0,0 +1,38 @@
+package com.confect1on.sigil.metrics;
+
+import com.confect1on.sigil.StandIns;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MetricsManagerTest {
+    private static final LabelLimits SMALL_LIMITS = new LabelLimits(2, 2, 2, 2);
+
+    @Test
+    void playerLatencyStaysWithinTheLabelLimits() {
+        MetricsManager metricsManager = new MetricsManager(0, 0, SMALL_LIMITS);
+        for (int i = 0; i < 50; i++) {
+            UUID playerId = UUID.randomUUID();
+            metricsManager.playerConnected(StandIns.player(playerId, "player-" + i), "region-" + i);
+            metricsManager.updatePlayerServer(playerId, StandIns.server("server-" + i));
+            metricsManager.recordPlayerLatency(playerId, 20);
+            metricsManager.playerDisconnected(playerId);
+        }
+
+        Set<String> series = new HashSet<>();
+        long[] count = {0};
+        metricsManager.forEachPlayerLatency((region, server, histogram) -> {
+            series.add(region + "/" + server);
+            count[0] += histogram.count();
+        });
+        // Recycled pairs were folded into "other" rather than dropped
+        assertEquals(50, count[0]);
+        // The kept regions and "other" by the kept servers and "other"
+        assertTrue(series.size() <= 3 * 3, "Too many series: " + series);
+    }
+}
@@ -0,0 +1,299 @@
+package com.confect1on.sigil.metrics;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.helpers.NOPLogger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Pushes to an in-process OTLP/HTTP receiver and decodes what it received.
+ */
+class MetricsPusherTest {
+    private static final double[] BOUNDS = {0.1, 1, 10};
+    private static final Duration INTERVAL = Duration.ofMillis(20);
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+    private static final int OBSERVERS = 4;
+
+    /**
+     * A request as the receiver saw it, with the body already decompressed.
+     */
+    private record Received(Headers headers, byte[] body) {
+    }
+
+    private HttpServer server;
+    private URI endpoint;
+    private final BlockingQueue<Received> received = new LinkedBlockingQueue<>();
+    // Status codes to answer with, in order; 200 once used up
+    private final ConcurrentLinkedQueue<Integer> statuses = new ConcurrentLinkedQueue<>();
+    private MetricsPusher pusher;
+
+    @BeforeEach
+    void startReceiver() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/v1/metrics", exchange -> {
+            try (exchange; InputStream in = new GZIPInputStream(exchange.getRequestBody())) {
+                received.add(new Received(exchange.getRequestHeaders(), in.readAllBytes()));
+                Integer status = statuses.poll();
+                exchange.sendResponseHeaders(status != null ? status : 200, -1);
+            }
+        });
+        server.start();
+        endpoint = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/v1/metrics");
+    }
+
+    @AfterEach
+    void stopReceiver() {
+        if (pusher != null) {
+            pusher.close();
+        }
+        server.stop(0);
+    }
+
+    @Test
+    void pushesCompressedOtlpRequest() throws Exception {
+        Histogram histogram = new Histogram(BOUNDS);
+        histogram.observe(0.05);
+        histogram.observe(0.5);
+        histogram.observe(0.5);
+        histogram.observe(50);
+        pusher = new MetricsPusher(render(histogram), endpoint, Map.of("Authorization", "Bearer token"), 4, 4,
+                INTERVAL, TIMEOUT, NOPLogger.NOP_LOGGER);
+        pusher.run();
+
+        Received request = take();
+        assertEquals(OtlpExpositionWriter.CONTENT_TYPE, request.headers().getFirst("Content-Type"));
+        assertEquals("gzip", request.headers().getFirst("Content-Encoding"));
+        assertEquals("Bearer token", request.headers().getFirst("Authorization"));
+
+        Message resourceMetrics = Message.parse(request.body()).message(1);
+        Map<String, String> resource = new HashMap<>();
+        for (Message attribute : resourceMetrics.message(1).messages(1)) {
+            resource.put(attribute.string(1), attribute.message(2).string(1));
+        }
+        assertEquals(Map.of("service.name", "sigil", "service.instance.id", "proxy-1"), resource);
+
+        Map<String, Message> metrics = new HashMap<>();
+        for (Message metric : resourceMetrics.message(2).messages(2)) {
+            metrics.put(metric.string(1), metric);
+        }
+        assertEquals(7, metrics.get("test_total").message(7).message(1).fixed64(6));
+
+        Message point = metrics.get("test_seconds").message(9).message(1);
+        assertArrayEquals(new long[]{1, 2, 0, 1}, point.packedFixed64(6));
+        assertEquals(4, point.fixed64(4));
+        assertEquals(51.05, Double.longBitsToDouble(point.fixed64(5)), 1e-9);
+        long[] bounds = point.packedFixed64(7);
+        for (int i = 0; i < BOUNDS.length; i++) {
+            assertEquals(BOUNDS[i], Double.longBitsToDouble(bounds[i]));
+        }
+    }
+
+    @Test
+    void histogramCountMatchesBucketsWhileObserving() throws Exception {
+        Histogram histogram = new Histogram(BOUNDS);
+        // Written many times per render, so observations keep landing while the points are written
+        pusher = new MetricsPusher(render(histogram, 1000), endpoint, Map.of(), 4, 1, INTERVAL, TIMEOUT,
+                NOPLogger.NOP_LOGGER);
+
+        AtomicBoolean observing = new AtomicBoolean(true);
+        List<Thread> observers = new ArrayList<>();
+        for (int t = 0; t < OBSERVERS; t++) {
+            Thread observer = new Thread(() -> {
+                for (int i = 0; observing.get(); i++) {
+                    histogram.observe(i % 20);
+                }
+            });
+            observer.start();
+            observers.add(observer);
+        }
+        try {
+            for (int push = 0; push < 20; push++) {
+                pusher.run();
+                for (Message point : histogramPoints(take())) {
+                    long bucketSum = 0;
+                    for (long count : point.packedFixed64(6)) {
+                        bucketSum += count;
+                    }
+                    assertEquals(bucketSum, point.fixed64(4), "count of push " + push);
+                }
+            }
+        } finally {
+            observing.set(false);
+            for (Thread observer : observers) {
+                observer.join();
+            }
+        }
+    }
+
+    @Test
+    void retriesFailedPushWithTheSameRender() throws Exception {
+        Histogram histogram = new Histogram(BOUNDS);
+        histogram.observe(1);
+        Supplier<byte[]> render = render(histogram);
+        AtomicInteger renders = new AtomicInteger();
+        // Only the first run renders, so every request afterwards can only be a retry
+        pusher = new MetricsPusher(() -> renders.getAndIncrement() == 0 ? render.get() : null, endpoint, Map.of(), 4, 4,
+                INTERVAL, TIMEOUT, NOPLogger.NOP_LOGGER);
+        statuses.add(503);
+        pusher.run();
+        byte[] failed = take().body();
+
+        Received retry = null;
+        for (int attempt = 0; attempt < 100 && retry == null; attempt++) {
+            pusher.run();
+            retry = received.poll(INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        assertNotNull(retry, "the failed push was not retried");
+        assertArrayEquals(failed, retry.body());
+
+        // Rejected outright, so it is dropped instead of retried
+        statuses.add(400);
+        renders.set(0);
+        pusher.run();
+        take();
+        for (int attempt = 0; attempt < 5; attempt++) {
+            pusher.run();
+            assertNull(received.poll(INTERVAL.toMillis() * 2, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private Received take() throws InterruptedException {
+        Received request = received.poll(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        assertNotNull(request, "nothing was pushed");
+        return request;
+    }
+
+    private static List<Message> histogramPoints(Received request) {
+        for (Message metric : Message.parse(request.body()).message(1).message(2).messages(2)) {
+            if (metric.string(1).equals("test_seconds")) {
+                return metric.message(9).messages(1);
+            }
+        }
+        throw new AssertionError("test_seconds was not pushed");
+    }
+
+    private static Supplier<byte[]> render(Histogram histogram) {
+        return render(histogram, 1);
+    }
+
+    /**
+     * Renders a counter and the histogram as an OTLP request, the way the push exporter does.
+     * @param series How many times the histogram is written, under different labels
+     */
+    private static Supplier<byte[]> render(Histogram histogram, int series) {
+        OtlpExpositionWriter writer = new OtlpExpositionWriter("proxy-1");
+        return () -> {
+            writer.reset();
+            writer.family("test_total", "A counter", "counter");
+            writer.sample("test_total").value(7L);
+            writer.family("test_seconds", "A histogram", "histogram");
+            for (int i = 0; i < series; i++) {
+                writer.sample("test_seconds").label("server", "server-" + i);
+                writer.histogram(histogram);
+            }
+            return writer.toByteArray();
+        };
+    }
+
+    /**
+     * Just enough of a protobuf decoder for the fields the writer uses. Varints and fixed64 values
+     * are kept as longs, length-delimited fields as bytes to be decoded as what they are.
+     */
+    private record Message(Map<Integer, List<Object>> fields) {
+        static Message parse(byte[] bytes) {
+            ByteBuffer in = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            Map<Integer, List<Object>> fields = new HashMap<>();
+            while (in.hasRemaining()) {
+                long tag = varint(in);
+                Object value = switch ((int) (tag & 7)) {
+                    case 0 -> varint(in);
+                    case 1 -> in.getLong();
+                    case 2 -> {
+                        byte[] field = new byte[(int) varint(in)];
+                        in.get(field);
+                        yield field;
+                    }
+                    default -> throw new AssertionError("Unexpected wire type in tag " + tag);
+                };
+                fields.computeIfAbsent((int) (tag >>> 3), k -> new ArrayList<>()).add(value);
+            }
+            return new Message(fields);
+        }
+
+        private static long varint(ByteBuffer in) {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = in.get();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        Object only(int field) {
+            List<Object> values = fields.get(field);
+            assertNotNull(values, "field " + field + " is missing");
+            assertEquals(1, values.size(), "field " + field + " is repeated");
+            return values.get(0);
+        }
+
+        long fixed64(int field) {
+            return (Long) only(field);
+        }
+
+        String string(int field) {
+            return new String((byte[]) only(field), StandardCharsets.UTF_8);
+        }
+
+        Message message(int field) {
+            return parse((byte[]) only(field));
+        }
+
+        List<Message> messages(int field) {
+            List<Message> messages = new ArrayList<>();
+            for (Object value : fields.getOrDefault(field, List.of())) {
+                messages.add(parse((byte[]) value));
+            }
+            return messages;
+        }
+
+        long[] packedFixed64(int field) {
+            ByteBuffer in = ByteBuffer.wrap((byte[]) only(field)).order(ByteOrder.LITTLE_ENDIAN);
+            long[] values = new long[in.remaining() / Long.BYTES];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = in.getLong();
+            }
+            return values;
+        }
+    }
+}
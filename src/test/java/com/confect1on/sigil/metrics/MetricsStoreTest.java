@@ -0,0 +1,73 @@
+package com.confect1on.sigil.metrics;
+
+import com.confect1on.sigil.StandIns;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.helpers.NOPLogger;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MetricsStoreTest {
+    private static final LabelLimits SMALL_LIMITS = new LabelLimits(2, 2, 2, 2);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void closesOutSessionsLeftOpenByACrash() throws IOException {
+        MetricsManager crashed = new MetricsManager();
+        UUID onBackend = UUID.randomUUID();
+        crashed.playerConnected(StandIns.player(onBackend, "on-backend"), "EU");
+        crashed.updatePlayerServer(onBackend, StandIns.server("lobby"));
+        UUID connecting = UUID.randomUUID();
+        crashed.playerConnected(StandIns.player(connecting, "connecting"), "NA");
+        Path file = directory.resolve("metrics.dat");
+        new MetricsStore(crashed, file, NOPLogger.NOP_LOGGER).save();
+
+        MetricsManager restored = new MetricsManager();
+        new MetricsStore(restored, file, NOPLogger.NOP_LOGGER).restore();
+        assertEquals(2, restored.getSessionDurationHistogram().count());
+        Map<String, Long> byRegion = new HashMap<>();
+        restored.forEachSessionDurationByRegion((region, histogram) -> byRegion.put(region, histogram.count()));
+        assertEquals(Map.of("EU", 1L, "NA", 1L), byRegion);
+        Map<String, Long> stays = new HashMap<>();
+        restored.forEachBackendStay((server, histogram) -> stays.put(server, histogram.count()));
+        assertEquals(Map.of("lobby", 1L), stays);
+    }
+
+    @Test
+    void restoresPlayerLatencyWithinTheLabelLimits() throws IOException {
+        MetricsManager saved = new MetricsManager(0, 0, LabelLimits.DEFAULT);
+        for (int i = 0; i < 20; i++) {
+            saved.playerLatencyHistogram("region-" + i, "server-" + i).observe(0.02);
+        }
+        Path file = directory.resolve("metrics.dat");
+        new MetricsStore(saved, file, NOPLogger.NOP_LOGGER).save();
+
+        // Each restart reads what the previous one saved, which must not grow past the limits
+        for (int restart = 0; restart < 2; restart++) {
+            MetricsManager restored = new MetricsManager(0, 0, SMALL_LIMITS);
+            MetricsStore store = new MetricsStore(restored, file, NOPLogger.NOP_LOGGER);
+            store.restore();
+
+            Set<String> series = new HashSet<>();
+            long[] count = {0};
+            restored.forEachPlayerLatency((region, server, histogram) -> {
+                series.add(region + "/" + server);
+                count[0] += histogram.count();
+            });
+            assertEquals(20, count[0]);
+            assertTrue(series.size() <= 3 * 3, "Too many series: " + series);
+            store.save();
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.confect1on.sigil.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks native histogram bucketing against the Prometheus reference, the lock-free window handoff
+ * under concurrent observations and snapshots, and the quantile error bound.
+ */
+class NativeHistogramTest {
+    private static final int THREADS = 4;
+    private static final int ROUNDS = 20;
+    private static final int OBSERVATIONS = 50_000;
+    private static final int MAX_BUCKETS = 40;
+    private static final NativeHistogram.Snapshot EMPTY = new NativeHistogram.Snapshot(
+            NativeHistogram.MAX_SCHEMA, NativeHistogram.DEFAULT_ZERO_THRESHOLD, 0, 0, 0, 0, new long[0]);
+
+    @Test
+    void bucketIndexMatchesThePrometheusReference() {
+        // Known boundaries: bucket i covers (base^(i-1), base^i]
+        assertEquals(0, NativeHistogram.bucketIndex(1.0, 3));
+        assertEquals(1, NativeHistogram.bucketIndex(1.05, 3));
+        assertEquals(8, NativeHistogram.bucketIndex(2.0, 3));
+        assertEquals(-8, NativeHistogram.bucketIndex(0.5, 3));
+        assertEquals(2, NativeHistogram.bucketIndex(3.0, 0));
+        assertEquals(2, NativeHistogram.bucketIndex(4.0, 0));
+        assertEquals(-1, NativeHistogram.bucketIndex(0.25, -1));
+        assertEquals(2, NativeHistogram.bucketIndex(5.0, -1));
+
+        Random random = new Random(1);
+        for (int schema = NativeHistogram.MIN_SCHEMA; schema <= NativeHistogram.MAX_SCHEMA; schema++) {
+            double[] bounds = referenceBounds(schema);
+            for (int i = 0; i < 20_000; i++) {
+                double value = Math.scalb(1 + random.nextDouble(), random.nextInt(200) - 100);
+                if (schema > 0 && nearBound(value, bounds)) {
+                    // The reference table and Math.pow may round a boundary differently
+                    continue;
+                }
+                assertEquals(referenceIndex(value, schema, bounds), NativeHistogram.bucketIndex(value, schema),
+                        "schema " + schema + " value " + value);
+            }
+            for (int exponent = -100; exponent <= 100; exponent++) {
+                double power = Math.scalb(1.0, exponent);
+                assertEquals(referenceIndex(power, schema, bounds), NativeHistogram.bucketIndex(power, schema),
+                        "schema " + schema + " value " + power);
+            }
+        }
+    }
+
+    @Test
+    void countsEveryObservationAcrossWindowHandoffs() throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            double[][] values = new double[THREADS][];
+            for (int t = 0; t < THREADS; t++) {
+                values[t] = values(new Random(round * THREADS + t), OBSERVATIONS);
+            }
+            NativeHistogram.Snapshot snapshot = observeConcurrently(values);
+            assertTrue(snapshot.schema() < 3, "Schema was never lowered");
+            assertEquals((long) THREADS * OBSERVATIONS, snapshot.count());
+
+            // Every value must have landed in its own bucket at the final schema
+            long zeros = 0;
+            double sum = 0;
+            long[] expected = new long[snapshot.counts().length];
+            for (double[] mine : values) {
+                for (double value : mine) {
+                    sum += value;
+                    if (value <= snapshot.zeroThreshold()) {
+                        zeros++;
+                        continue;
+                    }
+                    int offset = NativeHistogram.bucketIndex(value, snapshot.schema()) - snapshot.firstIndex();
+                    assertTrue(offset >= 0 && offset < expected.length, "Bucket of " + value + " not in snapshot");
+                    expected[offset]++;
+                }
+            }
+            assertEquals(zeros, snapshot.zeroCount());
+            assertEquals(Arrays.toString(expected), Arrays.toString(snapshot.counts()));
+            assertEquals(sum, snapshot.sum(), sum * 1e-9);
+        }
+    }
+
+    @Test
+    void quantileStaysWithinTheRelativeErrorBound() {
+        for (int schema = 0; schema <= 5; schema++) {
+            NativeHistogram histogram = new NativeHistogram(schema, 1000);
+            double[] observed = values(new Random(schema), 50_000);
+            for (double value : observed) {
+                histogram.observe(value);
+            }
+            Arrays.sort(observed);
+
+            NativeHistogram.Snapshot snapshot = histogram.snapshot();
+            assertEquals(schema, snapshot.schema());
+            double base = Math.pow(2, Math.scalb(1.0, -schema));
+            double bound = (base - 1) / (base + 1) + 1e-12;
+            for (double q : new double[] {0.5, 0.9, 0.95, 0.99, 0.999, 1.0}) {
+                double exact = observed[(int) Math.ceil(q * observed.length) - 1];
+                double estimate = snapshot.quantile(q);
+                if (exact == 0) {
+                    assertEquals(0.0, estimate);
+                } else {
+                    double error = Math.abs(estimate - exact) / exact;
+                    assertTrue(error <= bound, "schema " + schema + " q " + q + " error " + error + " > " + bound);
+                }
+            }
+        }
+    }
+
+    @Test
+    void quantileOfEmptyOrZeroHistograms() {
+        NativeHistogram histogram = new NativeHistogram(3, 160);
+        assertTrue(Double.isNaN(histogram.snapshot().quantile(0.5)));
+
+        histogram.observe(0);
+        histogram.observe(0);
+        histogram.observe(10);
+        NativeHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(0.0, snapshot.quantile(0.5));
+        assertEquals(10, snapshot.quantile(1.0), 10 * 0.05);
+    }
+
+    /**
+     * Observes each array on its own thread while another thread takes snapshots, checking the count
+     * never goes backwards, and merges empty snapshots, which hands off the window every time.
+     * Returns the final snapshot.
+     */
+    private static NativeHistogram.Snapshot observeConcurrently(double[][] values) throws InterruptedException {
+        NativeHistogram histogram = new NativeHistogram(3, MAX_BUCKETS);
+        AtomicBoolean observing = new AtomicBoolean(true);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread reader = new Thread(() -> {
+            long previous = 0;
+            while (observing.get()) {
+                long count = histogram.snapshot().count();
+                if (count < previous) {
+                    failure.compareAndSet(null, new AssertionError("Count went from " + previous + " to " + count));
+                }
+                previous = count;
+                histogram.merge(EMPTY);
+            }
+        });
+        List<Thread> writers = new ArrayList<>();
+        for (double[] mine : values) {
+            Thread writer = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (double value : mine) {
+                    histogram.observe(value);
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        reader.start();
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        observing.set(false);
+        reader.join();
+        assertNull(failure.get());
+        return histogram.snapshot();
+    }
+
+    /**
+     * Log-uniform values over about 29 octaves, with a few zeros.
+     */
+    private static double[] values(Random random, int count) {
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = random.nextInt(100) == 0 ? 0 : Math.exp(random.nextDouble() * 20 - 10);
+        }
+        return values;
+    }
+
+    /**
+     * Upper bounds of the buckets within one octave, as fractions of the next power of two, like the
+     * {@code nativeHistogramBounds} table of the Prometheus Go client.
+     */
+    private static double[] referenceBounds(int schema) {
+        if (schema <= 0) {
+            return new double[] {0.5};
+        }
+        double[] bounds = new double[1 << schema];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = Math.pow(2, (double) i / bounds.length) / 2;
+        }
+        return bounds;
+    }
+
+    /**
+     * Bucket key as computed by the Prometheus Go client: split the value into a fraction in
+     * [0.5, 1) and an exponent, then search the fraction in the bounds of its octave.
+     */
+    private static int referenceIndex(double value, int schema, double[] bounds) {
+        int exponent = Math.getExponent(value) + 1;
+        double fraction = value / Math.scalb(1.0, exponent);
+        if (schema > 0) {
+            if (fraction == 0.5) {
+                return (exponent - 1) * bounds.length;
+            }
+            int search = Arrays.binarySearch(bounds, fraction);
+            int position = search >= 0 ? search : -search - 1;
+            return position + (exponent - 1) * bounds.length;
+        }
+        int key = fraction == 0.5 ? exponent - 1 : exponent;
+        int offset = (1 << -schema) - 1;
+        return (key + offset) >> -schema;
+    }
+
+    private static boolean nearBound(double value, double[] bounds) {
+        double fraction = value / Math.scalb(1.0, Math.getExponent(value) + 1);
+        for (double bound : bounds) {
+            if (Math.abs(fraction - bound) <= 1e-12) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,170 @@
+package com.confect1on.sigil.metrics;
+
+import com.confect1on.sigil.metrics.SessionEventLog.Query;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the session event ring: wrap-around, query filters and limits, and that concurrent readers
+ * only ever see whole records.
+ */
+class SessionEventLogTest {
+    private static final Query ALL = new Query(null, null, null, null, 0);
+    private static final Pattern SEQUENCE = Pattern.compile("\"seq\":(\\d+)");
+    private static final Pattern PLAYER = Pattern.compile("\"player\":\"([^\"]+)\"");
+    private static final Pattern SERVER = Pattern.compile("\"server\":\"([^\"]+)\"");
+    private static final Pattern PREVIOUS_SERVER = Pattern.compile("\"previous_server\":\"([^\"]+)\"");
+    private static final Pattern DURATION = Pattern.compile("\"duration_seconds\":([0-9.E-]+)");
+    private static final int BACKENDS = 8;
+    private static final long RACE_MILLIS = 2_000;
+
+    @Test
+    void keepsOnlyTheLastCapacityRecords() throws IOException {
+        SessionEventLog log = new SessionEventLog(4);
+        for (int i = 0; i < 10; i++) {
+            log.record(SessionEventLog.Type.JOIN, player(i), null, null, null, 0);
+        }
+
+        List<String> lines = query(log, ALL);
+        assertEquals(4, lines.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(6 + i, sequence(lines.get(i)));
+            assertEquals(player(6 + i).toString(), field(PLAYER, lines.get(i)));
+        }
+    }
+
+    @Test
+    void limitKeepsTheMostRecentMatches() throws IOException {
+        SessionEventLog log = new SessionEventLog(16);
+        for (int i = 0; i < 12; i++) {
+            log.record(SessionEventLog.Type.SWITCH, player(i), null, i % 2 == 0 ? "even" : "odd", null, 0);
+        }
+
+        List<String> lines = query(log, new Query(null, null, null, "even", 3));
+        assertEquals(3, lines.size());
+        assertEquals(6, sequence(lines.get(0)));
+        assertEquals(8, sequence(lines.get(1)));
+        assertEquals(10, sequence(lines.get(2)));
+
+        assertEquals(12, query(log, new Query(null, null, null, null, 20)).size());
+    }
+
+    @Test
+    void filtersByServerAndPreviousServer() throws IOException {
+        SessionEventLog log = new SessionEventLog(16);
+        log.record(SessionEventLog.Type.JOIN, player(0), "eu", "lobby", null, 0);
+        log.record(SessionEventLog.Type.SWITCH, player(0), "eu", "survival", "lobby", 0);
+        log.record(SessionEventLog.Type.SWITCH, player(1), "eu", "creative", "survival", 0);
+        log.record(SessionEventLog.Type.DISCONNECT, player(1), "eu", "creative", null, 1_000_000_000L);
+
+        List<String> lines = query(log, new Query(null, null, null, "survival", 0));
+        assertEquals(2, lines.size());
+        assertEquals("survival", field(SERVER, lines.get(0)));
+        assertEquals("survival", field(PREVIOUS_SERVER, lines.get(1)));
+
+        lines = query(log, new Query(null, null, player(1), "creative", 0));
+        assertEquals(2, lines.size());
+        assertEquals("1.0", field(DURATION, lines.get(1)));
+
+        assertEquals(0, query(log, new Query(null, null, null, "never-seen", 0)).size());
+    }
+
+    @Test
+    void recordsNamesPastTheDictionaryAsOther() throws IOException {
+        SessionEventLog log = new SessionEventLog(4);
+        // IDs 0 and 1 are taken by "no name" and "other"
+        for (int i = 2; i < 4096; i++) {
+            log.record(SessionEventLog.Type.JOIN, player(i), null, "backend-" + i, null, 0);
+        }
+        log.record(SessionEventLog.Type.JOIN, player(0), null, "overflow", "backend-2", 0);
+
+        List<String> lines = query(log, new Query(null, null, null, null, 1));
+        assertEquals(LabelLimiter.OTHER, field(SERVER, lines.get(0)));
+        assertEquals("backend-2", field(PREVIOUS_SERVER, lines.get(0)));
+        assertEquals(0, query(log, new Query(null, null, null, "overflow", 0)).size());
+    }
+
+    @Test
+    void readersNeverSeeTornRecords() throws Exception {
+        SessionEventLog log = new SessionEventLog(64);
+        AtomicBoolean running = new AtomicBoolean(true);
+
+        List<Thread> writers = new ArrayList<>();
+        for (int w = 0; w < 2; w++) {
+            Thread writer = new Thread(() -> {
+                for (long i = 1; running.get(); i++) {
+                    // Every field is derived from i, so a mix of two records is detectable
+                    log.record(SessionEventLog.Type.DISCONNECT, new UUID(i, ~i), null,
+                            "b" + i % BACKENDS, "b" + (i + 1) % BACKENDS, i);
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+
+        long deadline = System.currentTimeMillis() + RACE_MILLIS;
+        int checked = 0;
+        try {
+            while (System.currentTimeMillis() < deadline) {
+                long previous = -1;
+                for (String line : query(log, ALL)) {
+                    long sequence = sequence(line);
+                    assertTrue(sequence > previous, "Records out of order: " + line);
+                    previous = sequence;
+                    assertConsistent(line);
+                    checked++;
+                }
+            }
+        } finally {
+            running.set(false);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        }
+        assertTrue(checked > 0, "No records read");
+    }
+
+    private static void assertConsistent(String line) {
+        UUID player = UUID.fromString(field(PLAYER, line));
+        long i = player.getMostSignificantBits();
+        assertEquals(~i, player.getLeastSignificantBits(), line);
+        assertEquals("b" + i % BACKENDS, field(SERVER, line), line);
+        assertEquals("b" + (i + 1) % BACKENDS, field(PREVIOUS_SERVER, line), line);
+        assertEquals(i / 1e9, Double.parseDouble(field(DURATION, line)), line);
+    }
+
+    private static List<String> query(SessionEventLog log, Query query) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int written = log.writeNdjson(query, out);
+        String text = out.toString(StandardCharsets.UTF_8);
+        List<String> lines = text.isEmpty() ? List.of() : List.of(text.split("\n"));
+        assertEquals(written, lines.size());
+        return lines;
+    }
+
+    private static long sequence(String line) {
+        return Long.parseLong(field(SEQUENCE, line));
+    }
+
+    private static String field(Pattern pattern, String line) {
+        Matcher matcher = pattern.matcher(line);
+        assertTrue(matcher.find(), "Missing " + pattern + " in " + line);
+        return matcher.group(1);
+    }
+
+    private static UUID player(int i) {
+        return new UUID(0, i);
+    }
+}